@@ -0,0 +1,89 @@
+/*******************************************************************************
+ * Copyright (c) 2014 uniVocity Software Pty Ltd. All rights reserved.
+ * This file is subject to the terms and conditions defined in file
+ * 'LICENSE.txt', which is part of this source code package.
+ ******************************************************************************/
+package com.univocity.articles.kairosdb;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang.*;
+import org.openjdk.jmh.annotations.*;
+
+import com.univocity.articles.kairosdb.custom.*;
+
+/**
+ * Microbenchmarks of the functions invoked for every row by the mapping of {@link KairosDbLoadProcess}:
+ * "mergeFunction", which builds metric names, and "from_s_to_ms", which converts timestamps.
+ *
+ * Series keys are shaped like the key columns of the observation table: zone, field unit address, device and kind.
+ *
+ * Run with the GC profiler to get allocations per row: {@code java -jar target/benchmarks.jar MappingFunctions -prof gc}
+ *
+ * @author uniVocity Software Pty Ltd - <a href="mailto:dev@univocity.com">dev@univocity.com</a>
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MappingFunctionsBenchmark {
+
+	private static final String[] KINDS = { "temperature", "humidity", "pressure", "battery" };
+
+	@Param({ "100", "10000", "100000" })
+	int series;
+
+	private Object[][] keys;
+	private Integer[] seconds;
+	private SeriesDictionary dictionary;
+	private int next;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		keys = new Object[series][];
+		seconds = new Integer[series];
+		for (int s = 0; s < series; s++) {
+			// new instances, as values read from the database are not the same objects on every row.
+			keys[s] = new Object[] { new String("ZONE_" + (s / 20 % 10)), new Integer(s / 200), new String("DEV" + (s / 4 % 5)), new String(KINDS[s % KINDS.length]) };
+			seconds[s] = new Integer(1400000000 + s);
+		}
+		dictionary = new SeriesDictionary(100000);
+		for (Object[] key : keys) {
+			dictionary.getName(key);
+		}
+	}
+
+	private int nextIndex() {
+		int index = next;
+		next = index + 1 == series ? 0 : index + 1;
+		return index;
+	}
+
+	/**
+	 * "mergeFunction" as implemented by {@link KairosDbLoadProcess}: metric names are looked up in a {@link SeriesDictionary}.
+	 */
+	@Benchmark
+	public String mergeFunction() {
+		return dictionary.getName(keys[nextIndex()]);
+	}
+
+	/**
+	 * "mergeFunction" as originally implemented, joining the key values of every row. This is the baseline of
+	 * {@link #mergeFunction()}.
+	 */
+	@Benchmark
+	public String mergeFunctionJoin() {
+		return StringUtils.join(keys[nextIndex()], '.');
+	}
+
+	/**
+	 * The "from_s_to_ms" function.
+	 */
+	@Benchmark
+	public Long fromSecondsToMillis() {
+		return KairosDbLoadProcess.fromSecondsToMillis(seconds[nextIndex()]);
+	}
+}
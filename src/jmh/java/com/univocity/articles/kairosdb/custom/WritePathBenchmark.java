@@ -0,0 +1,117 @@
+/*******************************************************************************
+ * Copyright (c) 2014 uniVocity Software Pty Ltd. All rights reserved.
+ * This file is subject to the terms and conditions defined in file
+ * 'LICENSE.txt', which is part of this source code package.
+ ******************************************************************************/
+package com.univocity.articles.kairosdb.custom;
+
+import java.util.concurrent.TimeUnit;
+
+import org.kairosdb.client.builder.MetricBuilder;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.*;
+
+import com.univocity.api.entity.custom.*;
+import com.univocity.articles.kairosdb.benchmark.*;
+
+/**
+ * Microbenchmarks of the path taken by each row written into KairosDB. Each invocation writes a batch of rows shaped
+ * like the ones produced by the mapping of the observation table: metric name, timestamp, value and observation kind.
+ * Scores are per row.
+ *
+ * Run with the GC profiler to get allocations per row: {@code java -jar target/benchmarks.jar WritePath -prof gc}
+ *
+ * @author uniVocity Software Pty Ltd - <a href="mailto:dev@univocity.com">dev@univocity.com</a>
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@OperationsPerInvocation(WritePathBenchmark.ROWS)
+public class WritePathBenchmark {
+
+	static final int ROWS = 10000;
+
+	private static final String[] KINDS = { "temperature", "humidity", "pressure", "battery" };
+	private static final String[] TAG_NAMES = { "observationKind" };
+
+	@Param({ "100", "10000" })
+	int series;
+
+	private Object[][] rows;
+	private KairosStub stub;
+	private KairosDataStore dataStore;
+	private KairosDataEntity entity;
+	private JsonBatch batch;
+	private final String[] tagValues = new String[1];
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		rows = new Object[ROWS][];
+		for (int i = 0; i < ROWS; i++) {
+			int s = i % series;
+			String kind = KINDS[s % KINDS.length];
+			String name = "ZONE_" + (s / 20 % 10) + "." + (s / 200) + ".DEV" + (s / 4 % 5) + "." + kind;
+			rows[i] = new Object[] { name, 1400000000000L + (i / series) * 1000L, Double.valueOf(i % 997 / 10.0), kind };
+		}
+
+		stub = new KairosStub(0, 0.0);
+		stub.start();
+		KairosDataStoreConfiguration configuration = new KairosDataStoreConfiguration("benchmark", stub.getUrl());
+		configuration.addEntity("observations", TAG_NAMES);
+		configuration.setMaxDataPointsPerPush(ROWS);
+		configuration.setMaxLinger(0);
+		dataStore = new KairosDataStore(configuration);
+		entity = dataStore.getDataEntities().iterator().next();
+		batch = dataStore.newBatch();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		dataStore.shutdown();
+		stub.stop();
+	}
+
+	/**
+	 * Encodes all rows into a {@link JsonBatch}, as done by the HTTP writing process.
+	 */
+	@Benchmark
+	public void jsonBatch(Blackhole blackhole) {
+		batch.clear();
+		for (Object[] row : rows) {
+			tagValues[0] = (String) row[3];
+			batch.add((String) row[0], (Long) row[1], row[2], TAG_NAMES, tagValues);
+		}
+		blackhole.consume(batch.getBytes());
+		blackhole.consume(batch.length());
+	}
+
+	/**
+	 * Encodes all rows with the {@link MetricBuilder} of the KairosDB client, one metric per row, as done before
+	 * {@link JsonBatch} was introduced. This is the baseline of {@link #jsonBatch(Blackhole)}.
+	 */
+	@Benchmark
+	public void metricBuilder(Blackhole blackhole) throws Exception {
+		MetricBuilder builder = MetricBuilder.getInstance();
+		for (Object[] row : rows) {
+			builder.addMetric((String) row[0]).addTag(TAG_NAMES[0], (String) row[3]).addDataPoint((Long) row[1], row[2]);
+		}
+		blackhole.consume(builder.build());
+	}
+
+	/**
+	 * Writes all rows through {@link WritingProcess#writeNext(Object[])} of a {@link KairosDataEntity}, and pushes them to
+	 * a local {@link KairosStub} when the process is closed.
+	 */
+	@Benchmark
+	public void writeNext() {
+		WritingProcess process = entity.prepareToWrite(new String[] { "name", "timestamp", "value", "observationKind" });
+		for (Object[] row : rows) {
+			process.writeNext(row);
+		}
+		process.close();
+	}
+}
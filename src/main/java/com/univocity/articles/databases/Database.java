@@ -6,25 +6,51 @@
 package com.univocity.articles.databases;
 
 import java.io.*;
+import java.sql.*;
 import java.util.*;
 
 import javax.sql.*;
 
+import org.slf4j.*;
 import org.springframework.jdbc.core.*;
-import org.springframework.jdbc.datasource.*;
 
+import com.mchange.v2.c3p0.*;
 import com.univocity.api.entity.jdbc.*;
 
 /**
- * A simple class to initialize a given database with the scripts provided under {@code src/main/resources/database/*database_name*}
+ * A simple class to initialize a given database with the scripts provided under {@code database/*database_name*} in the
+ * classpath (i.e. {@code src/main/resources/database/*database_name*}).
+ *
+ * <ul>
+ * <li><b>*table_name*.tbl</b>: creates a table with its current structure, if the table doesn't exist yet.</li>
+ * <li><b>scripts.sql</b>: optional statements (usually to create sequences and triggers), one per line, executed after
+ * tables were created.</li>
+ * <li><b>*table_name*.*version*.sql</b>: optional migrations that bring an existing table up to date, numbered from 1. Statements
+ * end with a semicolon at the end of a line. Each migration is executed once, in order, and recorded in the
+ * {@code schema_version} table. The .tbl script of a table must be kept in sync with its migrations: when a table is
+ * created, its migrations are recorded without being executed.</li>
+ * </ul>
+ *
+ * Existing tables are detected with the {@link DatabaseMetaData} of the connection, so starting up doesn't read from
+ * tables, regardless of how many rows they have.
  *
  * @author uniVocity Software Pty Ltd - <a href="mailto:dev@univocity.com">dev@univocity.com
  *
  */
 public abstract class Database {
 
+	private static final Logger log = LoggerFactory.getLogger(Database.class);
+	private static final String SCHEMA_VERSION_TABLE = "schema_version";
+
 	private JdbcTemplate jdbcTemplate;
 
+	private String connectionUrl;
+	private String username;
+	private String password;
+	private Properties poolSettings;
+	private final Map<Integer, DataSource> cursorFetchDataSources = new HashMap<Integer, DataSource>();
+	private boolean closed;
+
 	/**
 	 * Just an empty constructor. Initialization happens when {@link #initialize(String, String, String, String)} is invoked.
 	 */
@@ -32,25 +58,98 @@ public abstract class Database {
 	}
 
 	/**
-	 * Initializes this Database object by creating a {@link DataSource} to provide connections to your database.
+	 * Initializes this Database object by creating a pooled {@link DataSource} to provide connections to your database.
 	 * Tables will be created automatically if required.
 	 *
 	 * @param tablesToCreate a sequence of table names to create in this database, if they have not been created yet
 	 * @param connectionUrl the JDBC URL to use for accessing the {@link java.sql.DriverManager}
 	 * @param username the username to connect to the database
 	 * @param password the password of the given username, if required
+	 * @param poolSettings the settings of the connection pool (see {@link #createPool(String)}).
 	 */
-	void initialize(String tablesToCreate, String connectionUrl, String username, String password) {
+	void initialize(String tablesToCreate, String connectionUrl, String username, String password, Properties poolSettings) {
 		try {
 			Class.forName(getDriverClassName());
-			DataSource dataSource = new SingleConnectionDataSource(connectionUrl, username, password, true);
+			this.connectionUrl = connectionUrl;
+			this.username = username;
+			this.password = password;
+			this.poolSettings = poolSettings;
+			DataSource dataSource = createPool(connectionUrl);
 			this.jdbcTemplate = new JdbcTemplate(dataSource);
 
+		} catch (Exception ex) {
+			throw new IllegalStateException("Error creating connection pool for database " + getDatabaseName(), ex);
+		}
+
+		try {
+			initializeDatabase(tablesToCreate);
 		} catch (Exception ex) {
 			throw new IllegalStateException("Error creating database using scripts for database " + getDatabaseName(), ex);
 		}
+	}
 
-		initializeDatabase(tablesToCreate);
+	/**
+	 * Creates a pool of connections to the database. The pool is configured with the following settings, given in the
+	 * <i>connection.properties</i> file after the prefix of the database (e.g. {@code source.pool.maxSize}):
+	 *
+	 * <ul>
+	 * <li><b>pool.minSize</b>: the number of connections kept open when the pool is idle. Defaults to 1.</li>
+	 * <li><b>pool.maxSize</b>: the maximum number of open connections. Defaults to 10.</li>
+	 * <li><b>pool.statementsPerConnection</b>: the number of prepared statements cached by each connection, so
+	 * repeated queries are not prepared again. Defaults to 50. Use 0 to disable statement caching.</li>
+	 * <li><b>pool.checkoutTimeout</b>: the maximum time, in milliseconds, to wait for a connection when all of them are in use.
+	 * Defaults to 30000.</li>
+	 * <li><b>pool.maxIdleTime</b>: the time, in seconds, after which a connection that is not used is closed. Defaults to 300.</li>
+	 * <li><b>pool.idleTestPeriod</b>: the interval, in seconds, between validations of idle connections. Defaults to 60.</li>
+	 * <li><b>pool.testOnCheckout</b>: whether connections are validated every time they are taken from the pool. Defaults to false.</li>
+	 * <li><b>pool.validationQuery</b>: the query used to validate connections. Defaults to {@link #getValidationQuery()}.</li>
+	 * </ul>
+	 *
+	 * @param connectionUrl the JDBC URL of the connections in the pool.
+	 * @return a pooled {@link DataSource}
+	 */
+	private DataSource createPool(String connectionUrl) {
+		ComboPooledDataSource pool = new ComboPooledDataSource();
+		try {
+			pool.setDriverClass(getDriverClassName());
+		} catch (Exception ex) {
+			throw new IllegalStateException("Invalid driver class name: " + getDriverClassName(), ex);
+		}
+		pool.setJdbcUrl(connectionUrl);
+		pool.setUser(username);
+		pool.setPassword(password);
+
+		int minSize = poolSetting("minSize", 1);
+		pool.setMinPoolSize(minSize);
+		pool.setInitialPoolSize(minSize);
+		pool.setMaxPoolSize(poolSetting("maxSize", 10));
+		pool.setMaxStatementsPerConnection(poolSetting("statementsPerConnection", 50));
+		pool.setCheckoutTimeout(poolSetting("checkoutTimeout", 30000));
+		pool.setMaxIdleTime(poolSetting("maxIdleTime", 300));
+		pool.setIdleConnectionTestPeriod(poolSetting("idleTestPeriod", 60));
+		pool.setTestConnectionOnCheckout(Boolean.valueOf(poolSettings.getProperty("testOnCheckout", "false")));
+		pool.setPreferredTestQuery(poolSettings.getProperty("validationQuery", getValidationQuery()));
+		return pool;
+	}
+
+	private int poolSetting(String name, int defaultValue) {
+		String value = poolSettings.getProperty(name);
+		if (value == null || value.trim().isEmpty()) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException ex) {
+			throw new IllegalArgumentException("Invalid value for pool setting '" + name + "' of database " + getDatabaseName() + ": " + value);
+		}
+	}
+
+	/**
+	 * Returns the query used to validate connections in the pool, if no validation query is provided in the <i>connection.properties</i> file.
+	 * @return a query that can be executed against your database to test whether a connection is valid.
+	 */
+	String getValidationQuery() {
+		return "SELECT 1";
 	}
 
 	/**
@@ -67,58 +166,86 @@ public abstract class Database {
 	abstract String getDriverClassName();
 
 	/**
-	 * Iterates over all scripts under {@code src/main/resources/database/*database_name*} and executes them
-	 * against your database. If required, the tables and other scripts necessary to execute the project will
-	 * will be created.
+	 * Creates the tables that don't exist yet with the scripts under {@code database/*database_name*} in the classpath,
+	 * and then executes the migrations of existing tables that were not executed yet.
 	 *
 	 * @param tablesToCreate a sequence of table names to create in this database, if they have not been created yet
 	 */
 	private void initializeDatabase(String tablesToCreate) {
-		File dirWithCreateTableScripts = new File("src/main/resources/database/" + getDatabaseName().toLowerCase());
-		Map<String, String> scripts = new HashMap<String, String>();
-		for (File scriptFile : dirWithCreateTableScripts.listFiles()) {
-			String name = scriptFile.getName();
-			String script = readFile(scriptFile);
-			scripts.put(name.toLowerCase(), script);
-		}
+		String[] tables = tablesToCreate.split(",");
+		Set<String> createdTables = createTables(tables);
 
-		if (createTables(tablesToCreate, scripts)) {
-			executeScripts(scripts);
+		if (!createdTables.isEmpty()) {
+			executeScripts(readScript("scripts.sql"));
 		}
+		migrate(tables, createdTables);
 	}
 
 	/**
 	 * Attempts to create the required tables in your database.
-	 * @param scripts a map with script file names and their contents to be executed against your database.
-	 * @return {@code true} if tables were created with the given scripts, {@code false} if the tables already exist.
+	 * @param tableNames the names of the tables to create, in order.
+	 * @return the names of the tables created with their scripts. Empty if all tables already exist.
 	 */
-	private boolean createTables(String scriptOrder, Map<String, String> scripts) {
-		String[] order = scriptOrder.split(",");
-
-		boolean tablesCreated = false;
-		for (String tableName : order) {
-			String createTableScript = scripts.get(tableName + ".tbl");
-
-			try {
-				jdbcTemplate.execute("select count(*) from " + tableName);
-			} catch (Exception ex) {
-				jdbcTemplate.execute(createTableScript);
-				tablesCreated = true;
+	private Set<String> createTables(String[] tableNames) {
+		Set<String> createdTables = new LinkedHashSet<String>();
+		for (String tableName : tableNames) {
+			tableName = tableName.trim();
+			if (tableExists(tableName)) {
+				continue;
 			}
+			String createTableScript = readScript(tableName + ".tbl");
+			if (createTableScript == null) {
+				throw new IllegalStateException("Table " + tableName + " does not exist and there is no script to create it");
+			}
+			log.info("Creating table {} in database {}", tableName, getDatabaseName());
+			jdbcTemplate.execute(createTableScript);
+			createdTables.add(tableName);
 		}
-		return tablesCreated;
+		return createdTables;
+	}
+
+	/**
+	 * Checks whether a table exists, from the metadata of the database. Tables are searched in the current catalog, with
+	 * their names in the case the database uses to store identifiers.
+	 * @param tableName the name of the table.
+	 * @return {@code true} if the table exists, otherwise {@code false}.
+	 */
+	private boolean tableExists(final String tableName) {
+		return jdbcTemplate.execute(new ConnectionCallback<Boolean>() {
+			@Override
+			public Boolean doInConnection(Connection connection) throws SQLException {
+				DatabaseMetaData metaData = connection.getMetaData();
+				String name = tableName;
+				if (metaData.storesUpperCaseIdentifiers()) {
+					name = name.toUpperCase();
+				} else if (metaData.storesLowerCaseIdentifiers()) {
+					name = name.toLowerCase();
+				}
+				ResultSet tables = metaData.getTables(connection.getCatalog(), null, name, new String[] { "TABLE" });
+				try {
+					while (tables.next()) {
+						// underscores in the name are wildcards of the search pattern, so only exact matches count.
+						if (tableName.equalsIgnoreCase(tables.getString("TABLE_NAME"))) {
+							return true;
+						}
+					}
+					return false;
+				} finally {
+					tables.close();
+				}
+			}
+		});
 	}
 
 	/**
 	 * Executes scripts (usually to create sequences and triggers if required). This script is optional and
 	 * it should be under a file named "scripts.sql". Each line in this file will be executed individually
 	 * against the your database.
-	 * @param scripts a map with script file names and their contents to be executed against your database.
+	 * @param scripts the contents of the "scripts.sql" file, or {@code null} if there's no such file.
 	 */
-	private void executeScripts(Map<String, String> scripts) {
-		String sequences = scripts.get("scripts");
-		if (sequences != null) {
-			for (String script : sequences.split("\\n")) {
+	private void executeScripts(String scripts) {
+		if (scripts != null) {
+			for (String script : scripts.split("\\n")) {
 				if (!script.trim().isEmpty()) {
 					jdbcTemplate.execute(script);
 				}
@@ -127,21 +254,128 @@ public abstract class Database {
 	}
 
 	/**
-	 * Reads a file line by line and returns the resulting content in a String
-	 * @param file the file to be read
-	 * @return the text content of the given file.
+	 * Executes the migrations of each table that were not executed yet, as recorded in the {@code schema_version} table.
+	 * Migrations of tables that were just created are only recorded, as the .tbl scripts already create tables with
+	 * their current structure. The {@code schema_version} table is only created when there are migrations.
+	 * @param tableNames the names of the tables of this database.
+	 * @param createdTables the names of the tables that were just created.
 	 */
-	private String readFile(File file) {
+	private void migrate(String[] tableNames, Set<String> createdTables) {
+		Map<String, List<String>> migrations = new LinkedHashMap<String, List<String>>();
+		for (String tableName : tableNames) {
+			tableName = tableName.trim();
+			List<String> scripts = new ArrayList<String>();
+			String script;
+			while ((script = readScript(tableName + "." + (scripts.size() + 1) + ".sql")) != null) {
+				scripts.add(script);
+			}
+			if (!scripts.isEmpty()) {
+				migrations.put(tableName, scripts);
+			}
+		}
+		if (migrations.isEmpty()) {
+			return;
+		}
+
+		if (!tableExists(SCHEMA_VERSION_TABLE)) {
+			String createTableScript = readScript(SCHEMA_VERSION_TABLE + ".tbl");
+			if (createTableScript == null) {
+				throw new IllegalStateException("No script to create table " + SCHEMA_VERSION_TABLE);
+			}
+			jdbcTemplate.execute(createTableScript);
+		}
+
+		Map<String, Integer> versions = new HashMap<String, Integer>();
+		for (Map<String, Object> row : jdbcTemplate.queryForList("SELECT table_name, MAX(version) AS version FROM " + SCHEMA_VERSION_TABLE + " GROUP BY table_name")) {
+			versions.put(String.valueOf(row.get("table_name")).toLowerCase(), ((Number) row.get("version")).intValue());
+		}
+
+		for (Map.Entry<String, List<String>> e : migrations.entrySet()) {
+			String tableName = e.getKey();
+			List<String> scripts = e.getValue();
+			Integer current = versions.get(tableName.toLowerCase());
+			boolean created = createdTables.contains(tableName);
+
+			for (int version = (current == null ? 0 : current) + 1; version <= scripts.size(); version++) {
+				if (!created) {
+					log.info("Migrating table {} of database {} to version {}", new Object[] { tableName, getDatabaseName(), version });
+					for (String statement : splitStatements(scripts.get(version - 1))) {
+						jdbcTemplate.execute(statement);
+					}
+				}
+				jdbcTemplate.update("INSERT INTO " + SCHEMA_VERSION_TABLE + " (table_name, version, applied_at) VALUES (?, ?, ?)", tableName, version, new Timestamp(System.currentTimeMillis()));
+			}
+		}
+	}
+
+	/**
+	 * Splits a migration script into statements. Each statement ends with a semicolon at the end of a line. Blank lines
+	 * and lines starting with "--" are ignored.
+	 * @param script the contents of a migration script.
+	 * @return the statements of the script, without the semicolons.
+	 */
+	private List<String> splitStatements(String script) {
+		List<String> statements = new ArrayList<String>();
+		StringBuilder statement = new StringBuilder();
+		for (String line : script.split("\\n")) {
+			String trimmed = line.trim();
+			if (trimmed.isEmpty() || trimmed.startsWith("--")) {
+				continue;
+			}
+			if (trimmed.endsWith(";")) {
+				statement.append(trimmed.substring(0, trimmed.length() - 1));
+				statements.add(statement.toString());
+				statement.setLength(0);
+			} else {
+				statement.append(trimmed).append('\n');
+			}
+		}
+		if (statement.length() > 0) {
+			statements.add(statement.toString());
+		}
+		return statements;
+	}
+
+	/**
+	 * Reads a script of this database from the classpath, under {@code database/*database_name*}. When running
+	 * from the project directory without resources in the classpath, the script is read from
+	 * {@code src/main/resources/database/*database_name*} instead.
+	 * @param name the name of the script file.
+	 * @return the text content of the script, or {@code null} if there's no such script.
+	 */
+	private String readScript(String name) {
+		String path = "database/" + getDatabaseName().toLowerCase() + "/" + name;
+		try {
+			InputStream in = Database.class.getClassLoader().getResourceAsStream(path);
+			if (in == null) {
+				File file = new File("src/main/resources/" + path);
+				if (!file.isFile()) {
+					return null;
+				}
+				in = new FileInputStream(file);
+			}
+			return read(in);
+		} catch (IOException e) {
+			throw new IllegalStateException("Error reading script " + path, e);
+		}
+	}
+
+	/**
+	 * Reads an input line by line and returns the resulting content in a String
+	 * @param input the input to be read. It is closed afterwards.
+	 * @return the text content of the given input.
+	 * @throws IOException if the input can't be read.
+	 */
+	private String read(InputStream input) throws IOException {
 		StringBuilder out = new StringBuilder();
+		BufferedReader in = new BufferedReader(new InputStreamReader(input, "UTF-8"));
 		try {
-			BufferedReader in = new BufferedReader(new FileReader(file));
 			String str;
 			while ((str = in.readLine()) != null) {
 				out.append(str).append('\n');
 			}
+		} finally {
 			in.close();
-		} catch (IOException e) {
-			throw new IllegalStateException("Error reading file " + file.getAbsolutePath(), e);
 		}
 		return out.toString();
 	}
@@ -154,6 +388,72 @@ public abstract class Database {
 		return jdbcTemplate.getDataSource();
 	}
 
+	/**
+	 * Returns a {@link javax.sql.DataSource} that can be used from multiple threads. As connections are pooled, this is
+	 * the same as {@link #getDataSource()}.
+	 * @return a {@link javax.sql.DataSource} for your database.
+	 */
+	public DataSource newDataSource() {
+		return getDataSource();
+	}
+
+	/**
+	 * Returns a pooled {@link javax.sql.DataSource} for reading large results. Where supported by the JDBC driver, rows are
+	 * fetched from the database in blocks of the given size, instead of having the entire result loaded into memory at once.
+	 * @param fetchSize the number of rows to fetch from the database at a time.
+	 * @return a {@link javax.sql.DataSource} for your database.
+	 */
+	public synchronized DataSource newDataSource(int fetchSize) {
+		String url = getCursorFetchUrl(connectionUrl, fetchSize);
+		if (url.equals(connectionUrl)) {
+			return getDataSource();
+		}
+		DataSource dataSource = cursorFetchDataSources.get(fetchSize);
+		if (dataSource == null) {
+			dataSource = createPool(url);
+			cursorFetchDataSources.put(fetchSize, dataSource);
+		}
+		return dataSource;
+	}
+
+	/**
+	 * Closes all connections to your database. Nothing happens if this database has been closed already.
+	 */
+	public synchronized void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		beforeClose();
+
+		List<DataSource> pools = new ArrayList<DataSource>(cursorFetchDataSources.values());
+		pools.add(getDataSource());
+		cursorFetchDataSources.clear();
+		for (DataSource pool : pools) {
+			try {
+				DataSources.destroy(pool);
+			} catch (Exception ex) {
+				throw new IllegalStateException("Error closing connections to database " + getDatabaseName(), ex);
+			}
+		}
+	}
+
+	/**
+	 * Returns the JDBC URL to use when rows should be fetched in blocks of a given size. By default the URL is not modified.
+	 * @param connectionUrl the JDBC URL given in the <i>connection.properties</i> file
+	 * @param fetchSize the number of rows to fetch from the database at a time.
+	 * @return the JDBC URL to use for reading large results.
+	 */
+	String getCursorFetchUrl(String connectionUrl, int fetchSize) {
+		return connectionUrl;
+	}
+
+	/**
+	 * Executes any database-specific operation required before the connections to your database are closed.
+	 */
+	void beforeClose() {
+	}
+
 	/**
 	 * Applies database-specific configurations to an instance of {@link JdbcDataStoreConfiguration}. uniVocity tries to extract as much information
 	 * from your database metadata as possible. Some information might not be available from your JDBC driver so you need to provide it manually.
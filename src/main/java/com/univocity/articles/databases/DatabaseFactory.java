@@ -13,6 +13,7 @@ import java.util.*;
  * A simple factory {@link Database} instances. Currently available databases are given by {@link #getAvailableDatabases()}.
  *
  * This class depends on the configuration specified in the <i>connection.properties</i> file (under src/main/resources).
+ * Properties in this file can be overridden with system properties.
  *
  * @author uniVocity Software Pty Ltd - <a href="mailto:dev@univocity.com">dev@univocity.com
  *
@@ -36,6 +37,13 @@ public class DatabaseFactory {
 		} catch (Exception e) {
 			throw new IllegalStateException("Error loading connection.properties", e);
 		}
+
+		// any property can be overridden with a system property of the same name (e.g. -Dsource.database.name=hsqldb)
+		for (String name : System.getProperties().stringPropertyNames()) {
+			if (name.startsWith("source.") || name.startsWith("metadata.")) {
+				properties.setProperty(name, System.getProperty(name));
+			}
+		}
 	}
 
 	/**
@@ -96,6 +104,13 @@ public class DatabaseFactory {
 		String username = properties.getProperty(prefix + ".database.user");
 		String password = properties.getProperty(prefix + ".database.password");
 
+		Properties poolSettings = new Properties();
+		for (String name : properties.stringPropertyNames()) {
+			if (name.startsWith(prefix + ".pool.")) {
+				poolSettings.setProperty(name.substring(prefix.length() + ".pool.".length()), properties.getProperty(name));
+			}
+		}
+
 		Class<? extends Database> database = databases.get(databaseName.toLowerCase());
 		if (database == null) {
 			throw new IllegalArgumentException("Unknown database name: " + databaseName + ". Available databases: " + databases.keySet());
@@ -103,7 +118,7 @@ public class DatabaseFactory {
 
 		try {
 			Database instance = newInstance(database);
-			instance.initialize(tablesToCreate, connectionUrl, username, password);
+			instance.initialize(tablesToCreate, connectionUrl, username, password, poolSettings);
 			return instance;
 		} catch (Exception ex) {
 			throw new IllegalStateException("Unexpected error initializing database " + databaseName + ". Please review your connection.properties file", ex);
@@ -27,6 +27,11 @@ class HsqlDatabase extends Database {
 		return "org.hsqldb.jdbcDriver";
 	}
 
+	@Override
+	String getValidationQuery() {
+		return "SELECT 1 FROM INFORMATION_SCHEMA.SYSTEM_USERS";
+	}
+
 	@Override
 	public void applyDatabaseSpecificConfiguration(JdbcDataStoreConfiguration jdbcDataStoreConfig) {
 		/*
@@ -35,8 +40,13 @@ class HsqlDatabase extends Database {
 		Runtime.getRuntime().addShutdownHook(new Thread() {
 			@Override
 			public void run() {
-				new JdbcTemplate(getDataSource()).execute("SHUTDOWN");
+				close();
 			}
 		});
 	}
+
+	@Override
+	void beforeClose() {
+		new JdbcTemplate(getDataSource()).execute("SHUTDOWN");
+	}
 }
@@ -25,6 +25,15 @@ class MySqlDatabase extends Database {
 		return "com.mysql.jdbc.Driver";
 	}
 
+	/**
+	 * By default, the MySQL driver loads the entire result of a query into memory. With {@code useCursorFetch}, rows are
+	 * read through a server-side cursor, {@code defaultFetchSize} rows at a time.
+	 */
+	@Override
+	String getCursorFetchUrl(String connectionUrl, int fetchSize) {
+		return connectionUrl + (connectionUrl.indexOf('?') == -1 ? '?' : '&') + "useCursorFetch=true&defaultFetchSize=" + fetchSize;
+	}
+
 	@Override
 	public void applyDatabaseSpecificConfiguration(JdbcDataStoreConfiguration jdbcDataStoreConfig) {
 		/*
@@ -0,0 +1,172 @@
+/*******************************************************************************
+ * Copyright (c) 2014 uniVocity Software Pty Ltd. All rights reserved.
+ * This file is subject to the terms and conditions defined in file
+ * 'LICENSE.txt', which is part of this source code package.
+ ******************************************************************************/
+package com.univocity.articles.kairosdb;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import javax.sql.*;
+
+import org.slf4j.*;
+import org.springframework.jdbc.core.*;
+
+/**
+ * Keeps the last id processed from a table, as stored in the {@code processed_rows} table.
+ *
+ * The checkpoint is kept in memory and advanced after each cycle. A background thread writes it to the database at most
+ * once every flush interval, so a burst of quick cycles results in a single update. Only advances of cycles whose data points
+ * have been acknowledged by KairosDB must be given to this writer: if the process dies before a write, the rows
+ * after the last written checkpoint are simply loaded again.
+ *
+ * @author uniVocity Software Pty Ltd - <a href="mailto:dev@univocity.com">dev@univocity.com</a>
+ *
+ */
+class CheckpointWriter {
+
+	private static final Logger log = LoggerFactory.getLogger(CheckpointWriter.class);
+
+	private static final String SELECT = "select last_id, increment_size from processed_rows where table_name = ?";
+	private static final String INSERT = "insert into processed_rows (table_name, last_id, increment_size) values (?, ?, ?)";
+	private static final String UPDATE = "update processed_rows set last_id = ? where table_name = ?";
+
+	private final JdbcTemplate jdbcTemplate;
+	private final String tableName;
+	private final ScheduledExecutorService flusher;
+
+	private boolean loaded;
+	private long lastId;
+	private long increment;
+	private long writtenId;
+
+	/**
+	 * Creates a checkpoint writer
+	 *
+	 * @param dataSource the data source of the database with the {@code processed_rows} table. It must be safe to use from
+	 * multiple threads, as the checkpoint is written from a separate thread.
+	 * @param tableName the name of the table whose rows are being processed.
+	 * @param flushInterval the minimum time, in milliseconds, between writes of the checkpoint to the database.
+	 */
+	CheckpointWriter(DataSource dataSource, String tableName, long flushInterval) {
+		this.jdbcTemplate = new JdbcTemplate(dataSource);
+		this.tableName = tableName;
+
+		flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "checkpoint-" + CheckpointWriter.this.tableName);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		flusher.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					flush();
+				} catch (Exception e) {
+					log.warn("Error writing checkpoint of table " + CheckpointWriter.this.tableName + ". Will retry.", e);
+				}
+			}
+		}, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Reads the checkpoint from the database, if it has not been read already.
+	 *
+	 * @return {@code true} if the checkpoint is available, or {@code false} if there's no row for the table in {@code processed_rows}
+	 */
+	synchronized boolean load() {
+		if (!loaded) {
+			List<Map<String, Object>> rows = jdbcTemplate.queryForList(SELECT, tableName);
+			if (rows.isEmpty()) {
+				return false;
+			}
+			Map<String, Object> row = rows.get(0);
+			lastId = writtenId = ((Number) row.get("last_id")).longValue();
+			increment = ((Number) row.get("increment_size")).longValue();
+			loaded = true;
+		}
+		return true;
+	}
+
+	/**
+	 * Creates the row of the table in {@code processed_rows}
+	 *
+	 * @param lastId the id before the first row to process.
+	 * @param increment the number of ids to process in each cycle.
+	 */
+	synchronized void create(long lastId, long increment) {
+		jdbcTemplate.update(INSERT, tableName, lastId, increment);
+		this.lastId = this.writtenId = lastId;
+		this.increment = increment;
+		this.loaded = true;
+	}
+
+	/**
+	 * Returns the last processed id.
+	 *
+	 * @return the last processed id, which might not have been written to the database yet.
+	 */
+	synchronized long getLastId() {
+		return lastId;
+	}
+
+	/**
+	 * Returns the number of ids to process in each cycle, as given by the {@code increment_size} column.
+	 *
+	 * @return the increment size.
+	 */
+	synchronized long getIncrement() {
+		return increment;
+	}
+
+	/**
+	 * Advances the checkpoint. It will be written to the database by the next flush.
+	 *
+	 * @param lastId the last processed id. Ignored if lower than the current checkpoint.
+	 */
+	synchronized void advance(long lastId) {
+		if (lastId > this.lastId) {
+			this.lastId = lastId;
+		}
+	}
+
+	/**
+	 * Advances the checkpoint after a range of ids was processed, without skipping ids of rows that may not exist yet.
+	 *
+	 * The checkpoint moves to the highest id read from the range. The ids after it are skipped only up to the highest id of
+	 * the table when the range was read: ids above it may still be taken by rows inserted later.
+	 *
+	 * @param rangeEnd the last id of the range processed.
+	 * @param lastRead the highest id read from the range, or the start of the range if it had no rows.
+	 * @param maxId the highest id in the table before the range was read.
+	 * @return {@code true} if the checkpoint reached the end of the range, so the range after it can be considered, or
+	 * {@code false} if the rows after the checkpoint must be read again.
+	 */
+	synchronized boolean advance(long rangeEnd, long lastRead, long maxId) {
+		long reached = Math.max(lastRead, Math.min(rangeEnd, maxId));
+		advance(reached);
+		return reached >= rangeEnd;
+	}
+
+	/**
+	 * Writes the checkpoint to the database if it has advanced since the last write.
+	 */
+	synchronized void flush() {
+		if (loaded && lastId != writtenId) {
+			jdbcTemplate.update(UPDATE, lastId, tableName);
+			writtenId = lastId;
+		}
+	}
+
+	/**
+	 * Stops the background writes, and writes the latest checkpoint.
+	 */
+	void close() {
+		flusher.shutdownNow();
+		flush();
+	}
+}
@@ -5,7 +5,9 @@
  ******************************************************************************/
 package com.univocity.articles.kairosdb;
 
+import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 import javax.sql.*;
 
@@ -22,30 +24,120 @@ import com.univocity.api.entity.custom.*;
 import com.univocity.api.entity.jdbc.*;
 import com.univocity.articles.databases.*;
 import com.univocity.articles.kairosdb.custom.*;
+import com.univocity.articles.kairosdb.metrics.*;
 
 public class KairosDbLoadProcess {
 	private static final Logger log = LoggerFactory.getLogger(KairosDbLoadProcess.class);
 	private static final String ENGINE_NAME = "KAIROS_DB_LOAD";
 	private static final String SOURCE = "database";
 	private static final String DESTINATION = "kairos";
+	private final String name;
+	private final TableMapping table;
 	private final Database database;
 	private final Database metadataDatabase;
-	private final DataIntegrationEngine engine;
+	// databases given by a LoadOrchestrator are shared with other processes, and closed by it.
+	private final boolean ownsDatabases;
+	// connections and pushers shared with the processes of other tables, or null if this process has its own.
+	private final KairosPipeline pipeline;
+	private final JdbcTemplate jdbcTemplate;
+	private final CheckpointWriter checkpoint;
+	private final List<RangeWorker> workers = new ArrayList<RangeWorker>();
+	private final ExecutorService workerPool;
+	// the highest id known to exist in the table, and whether the last cycle processed all its ranges to the end.
+	private volatile long maxId = Long.MIN_VALUE;
+	private volatile boolean behind;
+	private final KairosDataStoreFactory kairosDataStoreFactory = new KairosDataStoreFactory();
 	private int batchSize = 10000;
 
+	// rows, pushes, cycles and lag, exposed over JMX. Optionally reported into KairosDB with -Dkairosdb.metrics.interval=<ms>
+	private final LoadMetrics metrics = new LoadMetrics();
+
+	// optional per-interval aggregates of each series, enabled with -Dkairosdb.rollup.interval=<ms>. Shared by all
+	// workers, as the ranges of rows they process hold data points of the same buckets.
+	private final Rollup rollup = Long.getLong("kairosdb.rollup.interval", 0L) > 0 ? new Rollup(Long.getLong("kairosdb.rollup.interval")) : null;
+
+	// metric names are built from the key columns of each row. This keeps the names of the most active series cached.
+	private final SeriesDictionary seriesDictionary = new SeriesDictionary(100000);
+	private final File seriesSnapshot;
+
 	public KairosDbLoadProcess() {
-		this.database = DatabaseFactory.getInstance().getDestinationDatabase();
-		this.metadataDatabase = DatabaseFactory.getInstance().getMetadataDatabase();
-		DataStoreConfiguration databaseConfig = createSourceDatabaseConfiguration();
-		DataStoreConfiguration kairosConfig = createKairosDbConfiguration();
-		EngineConfiguration config = new EngineConfiguration(ENGINE_NAME, databaseConfig, kairosConfig);
+		this(1);
+	}
+
+	/**
+	 * Creates a load process that extracts rows of the observation table in parallel.
+	 *
+	 * @param parallelism the number of id ranges extracted at the same time in each cycle. Each range is processed by
+	 * its own engine, with its own connection to the database.
+	 */
+	public KairosDbLoadProcess(int parallelism) {
+		this(ENGINE_NAME, TableMapping.OBSERVATION, parallelism, DatabaseFactory.getInstance().getDestinationDatabase(), DatabaseFactory.getInstance().getMetadataDatabase(), null, true);
+	}
+
+	/**
+	 * Creates a load process for one of the tables of a {@link LoadOrchestrator}. The databases and the pipeline are
+	 * shared with the processes of the other tables, and are not closed by {@link #shutdown()}.
+	 *
+	 * @param name the name of the process, used to name its engines, spool directories, series snapshot and metrics.
+	 * @param table the table to load and the entity it is loaded into.
+	 * @param parallelism the number of id ranges extracted at the same time in each cycle.
+	 * @param database the database with the table and its checkpoint in {@code processed_rows}.
+	 * @param metadataDatabase the database with uniVocity's metadata.
+	 * @param pipeline the connections to KairosDB, and the pushers that send batches through them.
+	 */
+	KairosDbLoadProcess(String name, TableMapping table, int parallelism, Database database, Database metadataDatabase, KairosPipeline pipeline) {
+		this(name, table, parallelism, database, metadataDatabase, pipeline, false);
+	}
+
+	private KairosDbLoadProcess(String name, TableMapping table, int parallelism, Database database, Database metadataDatabase, KairosPipeline pipeline, boolean ownsDatabases) {
+		if (parallelism <= 0) {
+			throw new IllegalArgumentException("Parallelism must be positive");
+		}
+		this.name = name;
+		this.table = table;
+		this.database = database;
+		this.metadataDatabase = metadataDatabase;
+		this.ownsDatabases = ownsDatabases;
+		this.pipeline = pipeline;
+		this.jdbcTemplate = new JdbcTemplate(database.getDataSource());
+		this.checkpoint = new CheckpointWriter(database.newDataSource(), table.getTableName(), 1000L);
+		this.seriesSnapshot = new File(System.getProperty("java.io.tmpdir"), name + "-series.snapshot");
+		loadSeriesDictionary();
+		metrics.register(name);
+
+		for (int i = 0; i < parallelism; i++) {
+			// metrics are shared by all workers, so only the first one reports them.
+			workers.add(new RangeWorker(parallelism == 1 ? name : name + "_" + i, i == 0));
+		}
+		this.workerPool = parallelism == 1 ? null : Executors.newFixedThreadPool(parallelism);
+	}
+
+	/**
+	 * Registers an engine to process the rows of a range of ids.
+	 *
+	 * @param engineName the name of the engine
+	 * @param reportMetrics flag indicating whether the KairosDB data store of this engine reports the metrics of the process.
+	 * @return the new engine.
+	 */
+	private DataIntegrationEngine createEngine(String engineName, boolean reportMetrics) {
+		// each engine gets its own connection, as engines may run at the same time. Rows are fetched in blocks of
+		// the same size of the limit of rows loaded in memory, so large windows don't have to fit in memory.
+		DataStoreConfiguration databaseConfig = createSourceDatabaseConfiguration(database.newDataSource(batchSize));
+		KairosDataStoreConfiguration kairosConfig = createKairosDbConfiguration();
+		if (reportMetrics) {
+			kairosConfig.setMetricsReportInterval(Long.getLong("kairosdb.metrics.interval", 0L));
+		}
+		// batches that can't be pushed are kept on disk, in a spool of each engine, and replayed when KairosDB is available.
+		// The directory can be changed with -Dkairosdb.spool.dir=<directory>
+		File spoolRoot = new File(System.getProperty("kairosdb.spool.dir", new File(System.getProperty("java.io.tmpdir"), name + "-spool").getPath()));
+		kairosConfig.setSpoolDirectory(new File(spoolRoot, engineName));
+		EngineConfiguration config = new EngineConfiguration(engineName, databaseConfig, kairosConfig);
 
 		// This step is important: it makes uniVocity "know" how to initialize a
 		// data store from our KairosDataStoreConfiguration
-		config.addCustomDataStoreFactories(new KairosDataStoreFactory());
+		config.addCustomDataStoreFactories(kairosDataStoreFactory);
 		Univocity.registerEngine(config);
-		engine = Univocity.getEngine(ENGINE_NAME);
-		configureMappings();
+		return Univocity.getEngine(engineName);
 	}
 
 	/**
@@ -56,7 +148,10 @@ public class KairosDbLoadProcess {
 	 */
 	public DataStoreConfiguration createSourceDatabaseConfiguration() {
 		// Gets a javax.sql.DataSource instance from the database object.
-		DataSource dataSource = database.getDataSource();
+		return createSourceDatabaseConfiguration(database.getDataSource());
+	}
+
+	private DataStoreConfiguration createSourceDatabaseConfiguration(DataSource dataSource) {
 		// Creates a the configuration of a data store named "database", with
 		// the given javax.sql.DataSource
 		JdbcDataStoreConfiguration config = new JdbcDataStoreConfiguration(SOURCE, dataSource);
@@ -79,10 +174,40 @@ public class KairosDbLoadProcess {
 	 *
 	 * @return the configuration for the "Kairos" data store.
 	 */
-	public DataStoreConfiguration createKairosDbConfiguration() {
-		KairosDataStoreConfiguration config = new KairosDataStoreConfiguration(DESTINATION, "http://75.101.231.239:8080");
-		// entity observations with tag "observationKind"
-		config.addEntity("observations", "observationKind");
+	public KairosDataStoreConfiguration createKairosDbConfiguration() {
+		// the URL can be changed with -Dkairosdb.url=<url>, e.g. to run against a local server. Use a comma separated list
+		// of URLs to distribute data points among the nodes of a cluster.
+		String[] urls = System.getProperty("kairosdb.url", "http://75.101.231.239:8080").split("\\s*,\\s*");
+		KairosDataStoreConfiguration config = new KairosDataStoreConfiguration(DESTINATION, urls[0]);
+		for (int i = 1; i < urls.length; i++) {
+			config.addUrl(urls[i]);
+		}
+		// e.g. entity observations with tag "observationKind"
+		if (rollup == null) {
+			config.addEntity(table.getEntityName(), table.getTagColumns());
+		} else {
+			config.addEntity(table.getEntityName(), rollup, table.getTagColumns());
+		}
+		if (pipeline != null) {
+			// connections and pushers shared with the processes of other tables: the settings below don't apply to them.
+			config.setPipeline(pipeline);
+		}
+		// keeps extracting the next batch while the previous ones are pushed to KairosDB
+		config.setMaxConcurrentPushes(2);
+		config.setPushQueueSize(2);
+		// connections are kept alive between cycles
+		config.setMaxConnections(2);
+		// pushes are measured along with the rest of the process
+		config.setMetrics(metrics);
+		// readings repeated by the source, or rows processed again after a failed cycle, are not pushed twice.
+		config.setDuplicateWindow(10 * 60 * 1000L);
+		// sensors that repeat the same value can be compressed with -Dkairosdb.compression=deadband|swinging_door and
+		// -Dkairosdb.compression.tolerance=<maximum deviation>
+		String compression = System.getProperty("kairosdb.compression");
+		if (StringUtils.isNotBlank(compression)) {
+			config.setCompressionMode(CompressionMode.valueOf(compression.trim().toUpperCase()));
+			config.setCompressionTolerance(Double.parseDouble(System.getProperty("kairosdb.compression.tolerance", "0")));
+		}
 		return config;
 	}
 
@@ -110,136 +235,344 @@ public class KairosDbLoadProcess {
 	}
 
 	/**
-	 * Shuts down the {@link #engine} used by this process
+	 * Shuts down the engines used by this process, and then closes the connections to KairosDB.
 	 */
 	public void shutdown() {
-		Univocity.shutdown(ENGINE_NAME);
+		try {
+			if (workerPool != null) {
+				workerPool.shutdownNow();
+			}
+			for (RangeWorker worker : workers) {
+				Univocity.shutdown(worker.engineName);
+			}
+		} finally {
+			try {
+				kairosDataStoreFactory.shutdown();
+			} finally {
+				checkpoint.close();
+				saveSeriesDictionary();
+				if (ownsDatabases) {
+					database.close();
+					metadataDatabase.close();
+				}
+				metrics.unregister();
+			}
+		}
+	}
+
+	private void loadSeriesDictionary() {
+		try {
+			int loaded = seriesDictionary.loadSnapshot(seriesSnapshot);
+			log.info("Loaded {} series from {}", loaded, seriesSnapshot.getAbsolutePath());
+		} catch (Exception e) {
+			log.warn("Unable to load series dictionary snapshot. Starting with an empty dictionary.", e);
+		}
+	}
+
+	private void saveSeriesDictionary() {
+		try {
+			log.info("Saving {} to {}", seriesDictionary, seriesSnapshot.getAbsolutePath());
+			seriesDictionary.saveSnapshot(seriesSnapshot);
+		} catch (Exception e) {
+			log.warn("Unable to save series dictionary snapshot", e);
+		}
 	}
 
 	/**
-	 * Executes a data mapping cycle. The actual data mappings are defined by
-	 * subclasses in the {@link #configureMappings()} method.
+	 * Executes a data mapping cycle. The rows after the last processed id are split into consecutive ranges of
+	 * {@code increment_size} ids, one for each worker, and all ranges are processed at the same time. The last processed id is then
+	 * advanced over the ranges processed without errors, in order: to the end of a range if a higher id was read in the cycle,
+	 * or else to the highest id read from it. Failed ranges (and any range after them) are processed again in the next cycle.
+	 *
+	 * The table is only queried for its highest id when no rows were read in the cycle, so gaps in the ids wider than
+	 * all ranges of a cycle are skipped too.
+	 *
+	 * Engine cycles only complete once KairosDB acknowledged all data points pushed, or once the data points that could not
+	 * be pushed were written to the spool on disk, so the new checkpoint never points past data that may have been lost.
 	 */
 	public void execute() {
-		engine.executeCycle();
+		execute(0);
+	}
+
+	/**
+	 * Executes a data mapping cycle, as {@link #execute()}, with ranges of a given number of ids.
+	 *
+	 * @param windowSize the number of ids in the range processed by each worker. Use 0 to read the {@code increment_size} of the
+	 * {@code processed_rows} table.
+	 */
+	public void execute(long windowSize) {
+		if (!loadCheckpoint()) {
+			log.debug("No rows to process in table {}", table.getTableName());
+			return;
+		}
+		long lastId = checkpoint.getLastId();
+		long increment = windowSize > 0 ? windowSize : checkpoint.getIncrement();
+		long start = System.currentTimeMillis();
+
+		List<Future<?>> results = new ArrayList<Future<?>>();
+		for (int i = 0; i < workers.size(); i++) {
+			RangeWorker worker = workers.get(i);
+			worker.assign(lastId + i * increment, lastId + (i + 1) * increment);
+			if (workerPool != null) {
+				results.add(workerPool.submit(worker));
+			}
+		}
+
+		RuntimeException error = null;
+		if (workerPool == null) {
+			try {
+				workers.get(0).run();
+			} catch (RuntimeException e) {
+				error = e;
+			}
+		} else {
+			for (Future<?> result : results) {
+				try {
+					result.get();
+				} catch (ExecutionException e) {
+					if (error == null) {
+						error = new IllegalStateException("Error processing range of rows of table " + table.getTableName(), e.getCause());
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IllegalStateException("Interrupted while processing rows of table " + table.getTableName(), e);
+				}
+			}
+		}
+
+		// advances up to the highest contiguous range processed successfully. Gaps in the ids are skipped only below the
+		// highest id read in this cycle: ids after it belong to rows that may still be inserted.
+		long highestId = lastId;
+		for (RangeWorker worker : workers) {
+			highestId = Math.max(highestId, worker.lastRead);
+		}
+		if (highestId == lastId && error == null) {
+			// nothing after the checkpoint in any range: either there are no new rows, or the ids have a wider gap.
+			highestId = Math.max(lastId, queryMaxId());
+		}
+		maxId = Math.max(maxId, highestId);
+
+		boolean reachedEnd = true;
+		for (RangeWorker worker : workers) {
+			if (!worker.completed || !checkpoint.advance(worker.to, worker.lastRead, highestId)) {
+				reachedEnd = false;
+				break;
+			}
+		}
+		// ranges that came back short ran out of rows.
+		behind = reachedEnd;
+		metrics.setCheckpointLag(Math.max(0L, maxId - checkpoint.getLastId()));
+
+		metrics.cycleCompleted(System.currentTimeMillis() - start, error != null);
+		if (error != null) {
+			throw error;
+		}
 	}
 
-	private void configureMappings() {
+	/**
+	 * Returns whether the last cycle processed all its ranges up to their end, in which case more rows are likely waiting
+	 * to be processed. Unlike {@link #getLag()}, this doesn't query the table.
+	 *
+	 * @return {@code true} if the last cycle ran out of ranges before running out of rows.
+	 */
+	public boolean isBehind() {
+		return behind;
+	}
+
+	/**
+	 * Returns how far behind the loading is: the number of ids between the last processed id and the highest id in the
+	 * table. The highest id is queried from the table.
+	 *
+	 * @return the number of ids yet to be processed.
+	 */
+	public long getLag() {
+		if (!loadCheckpoint()) {
+			return 0L;
+		}
+		maxId = Math.max(maxId, queryMaxId());
+		long lag = Math.max(0L, maxId - checkpoint.getLastId());
+		metrics.setCheckpointLag(lag);
+		return lag;
+	}
+
+	private long queryMaxId() {
+		Long max = jdbcTemplate.queryForObject("select max(" + table.getIdColumn() + ") from " + table.getTableName(), Long.class);
+		return max == null ? Long.MIN_VALUE : max;
+	}
+
+	/**
+	 * Returns the metrics of this process: rows read and discarded, pushes to KairosDB, cycles and checkpoint lag.
+	 * They are also exposed over JMX, as {@code com.univocity.articles.kairosdb:type=LoadMetrics}.
+	 *
+	 * @return the metrics of this process.
+	 */
+	public LoadMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Returns the number of id ranges processed at the same time in each cycle.
+	 *
+	 * @return the parallelism of this process.
+	 */
+	public int getParallelism() {
+		return workers.size();
+	}
+
+	/**
+	 * Returns the name of this process
+	 *
+	 * @return the name used by the engines, spool directories and metrics of this process.
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Returns the table loaded by this process
+	 *
+	 * @return the mapping of the table to its entity in KairosDB.
+	 */
+	public TableMapping getTable() {
+		return table;
+	}
+
+	/**
+	 * Loads the last id processed from the table, and the number of ids to process in each range.
+	 * The first time this is executed, the checkpoint row is created just before the first id of the table.
+	 *
+	 * @return {@code true} if the checkpoint is available, or {@code false} if there are no rows to process.
+	 */
+	private boolean loadCheckpoint() {
+		if (checkpoint.load()) {
+			return true;
+		}
+		Long firstId = jdbcTemplate.queryForObject("select min(" + table.getIdColumn() + ") from " + table.getTableName(), Long.class);
+		if (firstId == null) {
+			return false;
+		}
+		checkpoint.create(firstId - 1, 1000L);
+		return true;
+	}
+
+	/**
+	 * Processes the rows of a range of ids with its own engine. Ranges are exclusive at the start and inclusive at
+	 * the end: {@code (from, to]}
+	 */
+	private class RangeWorker implements Runnable {
+
+		private final String engineName;
+		private final DataIntegrationEngine engine;
+
+		private volatile long from;
+		private volatile long to;
+		// the highest id read in the current cycle, or the start of the range if no rows were read.
+		private volatile long lastRead;
+		private volatile boolean completed;
+
+		RangeWorker(String engineName, boolean reportMetrics) {
+			this.engineName = engineName;
+			this.engine = createEngine(engineName, reportMetrics);
+			configureMappings(engine, this);
+		}
+
+		void assign(long from, long to) {
+			this.from = from;
+			this.to = to;
+			this.lastRead = from;
+			this.completed = false;
+		}
+
+		@Override
+		public void run() {
+			engine.executeCycle();
+			completed = true;
+		}
+	}
+
+	/**
+	 * Converts the time of a row in seconds to the timestamp in milliseconds expected by KairosDB. Used by the
+	 * "from_s_to_ms" function.
+	 *
+	 * @param timeInSeconds the time in seconds
+	 * @return the time in milliseconds.
+	 */
+	static Long fromSecondsToMillis(Number timeInSeconds) {
+		if (timeInSeconds == null) { //some rows in the database have nulls here. Kairos uses the current time so I did the same here.
+			return System.currentTimeMillis();
+		}
+		return 1000L * timeInSeconds.longValue();
+	}
+
+	private void configureMappings(DataIntegrationEngine engine, final RangeWorker worker) {
 		engine.addFunction(EngineScope.STATELESS, "mergeFunction", new FunctionCall<String, Object[]>() {
 			@Override
 			public String execute(Object[] input) {
-				return StringUtils.join(input, '.');
+				return seriesDictionary.getName(input);
 			}
 		});
-		engine.addFunction(EngineScope.STATELESS, "from_s_to_ms", new FunctionCall<Long, Integer>() {
+		engine.addFunction(EngineScope.STATELESS, "from_s_to_ms", new FunctionCall<Long, Number>() {
 			@Override
-			public Long execute(Integer timeInSeconds) {
-				if (timeInSeconds == null) { //some rows in the database have nulls here. Kairos uses the current time so I did the same here.
-					return System.currentTimeMillis();
-				}
-				return 1000L * timeInSeconds;
+			public Long execute(Number timeInSeconds) {
+				return fromSecondsToMillis(timeInSeconds);
 			}
 		});
 
-		engine.addQuery(EngineScope.CYCLE, "getRangeOfRows").onDataStore(SOURCE).
-				fromString("select "
-						+ "		last_id as row_from, "
-						+ "		(last_id + increment_size) as row_to "
-						+ "	from "
-						+ "		processed_rows "
-						+ "	where "
-						+ "		table_name = 'observation'"
-				).returnSingleRow().directly().
-				onErrorHandleWith(new DataErrorHandler<Long[]>() {
-					@Override
-					public Long[] handleException(Throwable t) {
-						throw new IllegalStateException("Unexpected error", t);
-					}
-
-					@Override
-					public Long[] handleUnexpectedData(Object[][] data) {
-						//the first time this is executed, the query won't produce a row, so you'll get here
-						if (data == null || data.length == 0) {
-							Long firstId = new JdbcTemplate(database.getDataSource()).queryForObject("select min(id) from observation order by id", Long.class);
-
-							new JdbcTemplate(database.getDataSource()).
-									execute("insert into processed_rows (table_name, last_id, increment_size) values ('observation', " + firstId + ", 1000) ");
-							return new Long[] { -1L, firstId + 1000L };
-						}
-						throw new IllegalStateException("Unexpected data: " + Arrays.toString(data));
-					}
-				});
+		//the range of ids assigned to this worker for the current cycle. The query below excludes both ends.
+		engine.addFunction(EngineScope.CYCLE, "getRangeOfRows", new FunctionCall<Long[], Object>() {
+			@Override
+			public Long[] execute(Object input) {
+				return new Long[] { worker.from, worker.to + 1 };
+			}
+		});
 
 		//let's query between a range of ID's
-		engine.addQuery(EngineScope.STATELESS, "observationsAfter").onDataStore(SOURCE).
-				fromString("select * from observation where id > :id_from and id < :id_to order by id").returnDataset();
+		//only the columns used by the mapping are read.
+		final String id = table.getIdColumn();
+		engine.addQuery(EngineScope.STATELESS, "rowsAfter").onDataStore(SOURCE).
+				fromString("select " + StringUtils.join(table.getColumns(), ", ") + " from " + table.getTableName() + " where " + id + " > :id_from and " + id + " < :id_to order by " + id).returnDataset();
 
 		DataStoreMapping mapping = engine.map(SOURCE, DESTINATION);
 
-		//queries that do not produce datasets are used as functions. Here we use the getRangeOfRows query.
-		EntityMapping map = mapping.map("{observationsAfter(getRangeOfRows())}", "observations");
+		//queries that do not produce datasets are used as functions. Here we use the getRangeOfRows function.
+		EntityMapping map = mapping.map("{rowsAfter(getRangeOfRows())}", table.getEntityName());
 
-		map.identity().associate("fieldUnitZoneIdentifier", "fieldUnitAddress", "deviceLabel", "observationKind").to("name").readWith("mergeFunction");
-		map.value().copy("observationTimeEpochSeconds").to("timestamp").readingWith("from_s_to_ms");
-		map.value().copy("observedValue").to("value");
-		map.value().copy("observationKind").to("observationKind");
-		map.value().read("id"); //just load it to log the IDs of those rows with null observedValue
+		map.identity().associate(table.getSeriesColumns()).to("name").readWith("mergeFunction");
+		map.value().copy(table.getTimestampColumn()).to("timestamp").readingWith("from_s_to_ms");
+		map.value().copy(table.getValueColumn()).to("value");
+		for (String tag : table.getTagColumns()) {
+			map.value().copy(tag).to(tag);
+		}
+		map.value().read(id); //just load it to log the IDs of those rows with null values
 		map.persistence().notUsingMetadata().deleteDisabled().updateDisabled().insertNewRows();
 
 		map.addInputRowReader(new RowReader() {
 
-			private Long lastRowId = null;
-
 			@Override
 			public void processRow(Object[] inputRow, Object[] outputRow, RowMappingContext context) {
+				metrics.rowRead();
+				//rows come in order of id. Discarded rows count as read, as they won't ever be loaded.
+				Number rowId = (Number) context.getInputValue(id);
+				if (rowId != null && rowId.longValue() > worker.lastRead) {
+					worker.lastRead = rowId.longValue();
+				}
 				//we need to weed out broken data here:
 
-				if (context.getInputValue("observedValue") == null) {
-					log.warn("Discarding row ID " + context.getInputValue("id") + " with null observedValue");
+				if (context.getInputValue(table.getValueColumn()) == null) {
+					log.warn("Discarding row ID " + context.getInputValue(id) + " of table " + table.getTableName() + " with null " + table.getValueColumn());
+					metrics.rowDiscarded();
 					context.discardRow();
 				}
-				lastRowId = context.getInputValue("id", Long.class);
-			}
-
-			@Override
-			public void cleanup(RowMappingContext context) {
-				//at the end of this mapping, we can update the last row id.
-				if (lastRowId != null) {
-					new JdbcTemplate(database.getDataSource()).execute("update processed_rows set last_id = " + lastRowId + " where table_name = 'observation'");
-				} else {
-					//we might have a gap in IDs that is bigger than the increment range.
-					Object[] range = (Object[]) context.executeFunction("getRangeOfRows"); // won't go to the database again. This function is bound to the cycle scope.
-					Long lastRow = (Long) range[1];
-					Long nextId = new JdbcTemplate(database.getDataSource()).queryForObject("select min(id) from observation where id > " + lastRow, Long.class);
-					if(nextId != null && nextId != 0L){ 
-						new JdbcTemplate(database.getDataSource()).execute("update processed_rows set last_id = " + (nextId - 1) + " where table_name = 'observation'");
-					}
-				}
 			}
 		});
 	}
 
 	public static void main(String... args) {
-		new Thread() { // this is just a quick and dirty example, you should use a proper task scheduler
-			@Override
-			public void run() {
-				KairosDbLoadProcess process = null;
-				try {
-					process = new KairosDbLoadProcess();
-					while (true) {
-						process.execute();
-						try {
-							Thread.sleep(3000); //let's pull 1000 rows every 3 seconds.
-						} catch (InterruptedException e) {
-							Thread.currentThread().interrupt();
-						}
-					}
-				} finally {
-					if (process != null) {
-						process.shutdown();
-					}
-				}
-			}
-		}.start();
+		// the number of id ranges to extract in parallel can be given as an argument.
+		KairosDbLoadProcess process = new KairosDbLoadProcess(args.length > 0 ? Integer.parseInt(args[0]) : 1);
+		// let's pull 1000 rows every 3 seconds, or more, and faster, if we are behind.
+		LoadScheduler scheduler = new LoadScheduler(process, 3000L, 1000L, 100000L);
+		scheduler.registerShutdownHook();
+		scheduler.start();
 	}
 }
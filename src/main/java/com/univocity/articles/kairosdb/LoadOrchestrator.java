@@ -0,0 +1,157 @@
+/*******************************************************************************
+ * Copyright (c) 2014 uniVocity Software Pty Ltd. All rights reserved.
+ * This file is subject to the terms and conditions defined in file
+ * 'LICENSE.txt', which is part of this source code package.
+ ******************************************************************************/
+package com.univocity.articles.kairosdb;
+
+import java.io.*;
+import java.util.*;
+
+import org.slf4j.*;
+
+import com.univocity.articles.databases.*;
+import com.univocity.articles.kairosdb.custom.*;
+
+/**
+ * Loads several source tables into KairosDB at the same time, in a single JVM.
+ *
+ * Each table is loaded by its own {@link KairosDbLoadProcess}, with its own {@link LoadScheduler} thread and its own
+ * checkpoint row in the {@code processed_rows} table, so a slow or failing table doesn't hold back the others. All
+ * processes share the same connection pools to the databases, and a single {@link KairosPipeline}: the connections to
+ * KairosDB and the pushers that send batches through them. The pushers serve the processes in turns, so a table with
+ * many rows to catch up with can't starve the rest.
+ *
+ * The tables are defined in <i>tables.properties</i>, read from the classpath (see {@link TableMapping} for the format), or
+ * in the file given with {@code -Dkairosdb.tables=<file>}.
+ *
+ * @author uniVocity Software Pty Ltd - <a href="mailto:dev@univocity.com">dev@univocity.com</a>
+ *
+ */
+public class LoadOrchestrator {
+
+	private static final Logger log = LoggerFactory.getLogger(LoadOrchestrator.class);
+	private static final String NAME = "KAIROS_DB_LOAD";
+
+	private final Database database;
+	private final Database metadataDatabase;
+	private final KairosPipeline pipeline;
+	private final List<LoadScheduler> schedulers = new ArrayList<LoadScheduler>();
+	private boolean shutdown;
+
+	/**
+	 * Creates a load process and a scheduler for each table. Each scheduler pulls at least 1000 rows every 3 seconds,
+	 * or up to 100000 rows without pauses while its table is behind.
+	 *
+	 * @param tables the tables to load.
+	 * @param parallelism the number of id ranges of each table extracted at the same time in each cycle.
+	 */
+	public LoadOrchestrator(List<TableMapping> tables, int parallelism) {
+		if (tables.isEmpty()) {
+			throw new IllegalArgumentException("No tables to load");
+		}
+		Set<String> names = new HashSet<String>();
+		for (TableMapping table : tables) {
+			if (!names.add(table.getTableName().toLowerCase())) {
+				throw new IllegalArgumentException("Duplicate table " + table.getTableName() + ". Each table has a single checkpoint row.");
+			}
+		}
+
+		this.database = DatabaseFactory.getInstance().getDestinationDatabase();
+		this.metadataDatabase = DatabaseFactory.getInstance().getMetadataDatabase();
+		this.pipeline = new KairosPipeline(createPipelineConfiguration(tables.size()));
+		try {
+			for (TableMapping table : tables) {
+				KairosDbLoadProcess process = new KairosDbLoadProcess(NAME + "_" + table.getTableName().toUpperCase(), table, parallelism, database, metadataDatabase, pipeline);
+				schedulers.add(new LoadScheduler(process, 3000L, 1000L, 100000L));
+				log.info("Registered load of table {}", table);
+			}
+		} catch (RuntimeException e) {
+			shutdown();
+			throw e;
+		}
+	}
+
+	/**
+	 * Creates the configuration of the connections shared by all tables. The URLs of KairosDB are given with
+	 * {@code -Dkairosdb.url}, as in {@link KairosDbLoadProcess#createKairosDbConfiguration()}. By default, each table gets 2
+	 * concurrent pushes and 2 connections. Use {@code -Dkairosdb.pushers=<n>} to change the number of concurrent pushes
+	 * of all tables, and {@code -Dkairosdb.connections=<n>} to change the number of connections.
+	 *
+	 * @param tableCount the number of tables loaded.
+	 * @return the configuration of the shared {@link KairosPipeline}.
+	 */
+	private KairosDataStoreConfiguration createPipelineConfiguration(int tableCount) {
+		String[] urls = System.getProperty("kairosdb.url", "http://75.101.231.239:8080").split("\\s*,\\s*");
+		KairosDataStoreConfiguration config = new KairosDataStoreConfiguration("kairos", urls[0]);
+		for (int i = 1; i < urls.length; i++) {
+			config.addUrl(urls[i]);
+		}
+		int pushers = Integer.getInteger("kairosdb.pushers", 2 * tableCount);
+		config.setMaxConcurrentPushes(pushers);
+		// the number of batches each table can have waiting for a pusher.
+		config.setPushQueueSize(2);
+		config.setMaxConnections(Integer.getInteger("kairosdb.connections", Math.max(1, pushers)));
+		return config;
+	}
+
+	/**
+	 * Starts the schedulers of all tables.
+	 */
+	public void start() {
+		for (LoadScheduler scheduler : schedulers) {
+			scheduler.start();
+		}
+	}
+
+	/**
+	 * Stops the schedulers of all tables, waiting for their cycles in progress to complete. The pending pushes to KairosDB
+	 * are then executed, and all connections are closed.
+	 */
+	public void shutdown() {
+		synchronized (this) {
+			if (shutdown) {
+				return;
+			}
+			shutdown = true;
+		}
+		try {
+			for (LoadScheduler scheduler : schedulers) {
+				try {
+					scheduler.shutdown();
+				} catch (Exception e) {
+					log.error("Error shutting down load process", e);
+				}
+			}
+		} finally {
+			try {
+				pipeline.shutdown();
+			} finally {
+				database.close();
+				metadataDatabase.close();
+			}
+		}
+	}
+
+	/**
+	 * Registers a shutdown hook in the JVM that invokes {@link #shutdown()}, so the cycles in progress are completed and
+	 * all connections are closed when the application is stopped.
+	 */
+	public void registerShutdownHook() {
+		Runtime.getRuntime().addShutdownHook(new Thread("kairos-load-shutdown") {
+			@Override
+			public void run() {
+				LoadOrchestrator.this.shutdown();
+			}
+		});
+	}
+
+	public static void main(String... args) {
+		// the number of id ranges of each table to extract in parallel can be given as an argument.
+		String tablesFile = System.getProperty("kairosdb.tables");
+		List<TableMapping> tables = tablesFile == null ? TableMapping.loadResource("tables.properties") : TableMapping.load(new File(tablesFile));
+		LoadOrchestrator orchestrator = new LoadOrchestrator(tables, args.length > 0 ? Integer.parseInt(args[0]) : 1);
+		orchestrator.registerShutdownHook();
+		orchestrator.start();
+	}
+}
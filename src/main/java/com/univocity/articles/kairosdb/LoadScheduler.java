@@ -0,0 +1,153 @@
+/*******************************************************************************
+ * Copyright (c) 2014 uniVocity Software Pty Ltd. All rights reserved.
+ * This file is subject to the terms and conditions defined in file
+ * 'LICENSE.txt', which is part of this source code package.
+ ******************************************************************************/
+package com.univocity.articles.kairosdb;
+
+import java.util.concurrent.*;
+
+import org.slf4j.*;
+
+/**
+ * Runs the cycles of a {@link KairosDbLoadProcess}, adapting the number of ids read in each cycle to how far behind the
+ * loading is.
+ *
+ * After each cycle, the process tells whether it is behind, i.e. whether the cycle read rows up to the end of all its ranges
+ * (see {@link KairosDbLoadProcess#isBehind()}):
+ *
+ * <ul>
+ * <li>If the loading is behind, the next cycle starts immediately. The window of ids read is doubled,
+ * up to the maximum window size, as long as cycles take less than the cycle interval. Slower cycles halve the window instead.</li>
+ * <li>Once the loading caught up, the window goes back to its minimum size and cycles run at every cycle interval.</li>
+ * </ul>
+ *
+ * Cycles run one after the other in a single thread, so they never overlap.
+ *
+ * @author uniVocity Software Pty Ltd - <a href="mailto:dev@univocity.com">dev@univocity.com</a>
+ *
+ */
+public class LoadScheduler {
+
+	private static final Logger log = LoggerFactory.getLogger(LoadScheduler.class);
+
+	private final KairosDbLoadProcess process;
+	private final long interval;
+	private final long minWindow;
+	private final long maxWindow;
+
+	private final ScheduledThreadPoolExecutor executor;
+	private long window;
+	private volatile boolean stopped;
+
+	/**
+	 * Creates a scheduler for a load process.
+	 *
+	 * @param process the process whose cycles will be executed.
+	 * @param interval the time between cycles, in milliseconds, when the loading is not behind.
+	 * @param minWindow the number of ids read by each worker in a cycle when the loading is not behind.
+	 * @param maxWindow the maximum number of ids read by each worker in a cycle.
+	 */
+	public LoadScheduler(KairosDbLoadProcess process, long interval, long minWindow, long maxWindow) {
+		if (interval <= 0) {
+			throw new IllegalArgumentException("Cycle interval must be positive");
+		}
+		if (minWindow <= 0 || maxWindow < minWindow) {
+			throw new IllegalArgumentException("Invalid window sizes: minimum " + minWindow + ", maximum " + maxWindow);
+		}
+		this.process = process;
+		this.interval = interval;
+		this.minWindow = minWindow;
+		this.maxWindow = maxWindow;
+		this.window = minWindow;
+		this.executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				return new Thread(r, "kairos-load-scheduler-" + LoadScheduler.this.process.getName());
+			}
+		});
+		// on shutdown, only a cycle already running is waited for.
+		this.executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+	}
+
+	/**
+	 * Starts running cycles.
+	 */
+	public void start() {
+		schedule(0L);
+	}
+
+	private void schedule(long delay) {
+		if (stopped) {
+			return;
+		}
+		try {
+			executor.schedule(new Runnable() {
+				@Override
+				public void run() {
+					runCycle();
+				}
+			}, delay, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			// shutting down.
+		}
+	}
+
+	private void runCycle() {
+		if (stopped) {
+			return;
+		}
+		long delay = interval;
+		try {
+			long start = System.currentTimeMillis();
+			process.execute(window);
+			long duration = System.currentTimeMillis() - start;
+
+			boolean behind = process.isBehind();
+			if (behind) {
+				// behind: no pause between cycles, and larger windows while cycles are quick enough.
+				delay = 0L;
+				window = duration < interval ? Math.min(maxWindow, window * 2) : Math.max(minWindow, window / 2);
+			} else {
+				window = minWindow;
+			}
+			log.debug("Cycle took {} ms. Behind: {}. Next window: {} ids", new Object[] { duration, behind, window });
+		} catch (Exception e) {
+			log.error("Error executing load cycle. Retrying in " + interval + " ms", e);
+		}
+		schedule(delay);
+	}
+
+	/**
+	 * Stops scheduling cycles, waits for the current cycle to complete and shuts down the load process.
+	 */
+	public void shutdown() {
+		if (stopped) {
+			return;
+		}
+		stopped = true;
+		executor.shutdown();
+		try {
+			if (!executor.awaitTermination(5, TimeUnit.MINUTES)) {
+				log.warn("Load cycle did not complete in time. Shutting down anyway.");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			process.shutdown();
+		}
+	}
+
+	/**
+	 * Registers a shutdown hook in the JVM that invokes {@link #shutdown()}, so the cycle in progress is completed and all
+	 * connections are closed when the application is stopped.
+	 */
+	public void registerShutdownHook() {
+		Runtime.getRuntime().addShutdownHook(new Thread("kairos-load-shutdown") {
+			@Override
+			public void run() {
+				LoadScheduler.this.shutdown();
+			}
+		});
+	}
+}
@@ -0,0 +1,219 @@
+/*******************************************************************************
+ * Copyright (c) 2014 uniVocity Software Pty Ltd. All rights reserved.
+ * This file is subject to the terms and conditions defined in file
+ * 'LICENSE.txt', which is part of this source code package.
+ ******************************************************************************/
+package com.univocity.articles.kairosdb;
+
+import java.io.*;
+import java.util.*;
+
+import org.apache.commons.lang.*;
+
+/**
+ * Describes how the rows of a source table are loaded into an entity of KairosDB by a {@link KairosDbLoadProcess}.
+ *
+ * Each row becomes a data point: the values of the series columns are joined to build the metric name, the timestamp
+ * column holds the time of the data point in epoch seconds, and the tag columns are copied into tags of the same name.
+ * Rows are read in ranges of ids, and the last id processed is kept in the {@code processed_rows} table under the name of
+ * the table.
+ *
+ * Mappings can be loaded from properties with {@link #load(Properties)}, in the format:
+ *
+ * <pre>
+ * tables=observation,other_table
+ * table.observation.entity=observations
+ * table.observation.series=fieldUnitZoneIdentifier,fieldUnitAddress,deviceLabel,observationKind
+ * table.observation.timestamp=observationTimeEpochSeconds
+ * table.observation.value=observedValue
+ * table.observation.tags=observationKind
+ * # optional, defaults to "id"
+ * table.observation.id=id
+ * </pre>
+ *
+ * @author uniVocity Software Pty Ltd - <a href="mailto:dev@univocity.com">dev@univocity.com</a>
+ *
+ */
+public class TableMapping {
+
+	/**
+	 * The mapping of the observation table, loaded by default.
+	 */
+	public static final TableMapping OBSERVATION = new TableMapping("observation", "observations", new String[] { "fieldUnitZoneIdentifier", "fieldUnitAddress", "deviceLabel", "observationKind" },
+			"observationTimeEpochSeconds", "observedValue", "observationKind");
+
+	private final String tableName;
+	private final String entityName;
+	private final String[] seriesColumns;
+	private final String timestampColumn;
+	private final String valueColumn;
+	private final String[] tagColumns;
+	private String idColumn = "id";
+
+	/**
+	 * Creates a mapping from a table to an entity
+	 *
+	 * @param tableName the name of the source table
+	 * @param entityName the name of the KairosDB entity
+	 * @param seriesColumns the columns that identify each series. Their values are joined to build the metric name.
+	 * @param timestampColumn the column with the time of each data point, in seconds since the epoch.
+	 * @param valueColumn the column with the value of each data point. Rows with null values are discarded.
+	 * @param tagColumns the columns copied into tags of the data points. KairosDB requires at least one.
+	 */
+	public TableMapping(String tableName, String entityName, String[] seriesColumns, String timestampColumn, String valueColumn, String... tagColumns) {
+		if (StringUtils.isBlank(tableName) || StringUtils.isBlank(entityName)) {
+			throw new IllegalArgumentException("Table and entity names cannot be blank");
+		}
+		if (seriesColumns == null || seriesColumns.length == 0) {
+			throw new IllegalArgumentException("Series columns of table " + tableName + " not defined");
+		}
+		if (StringUtils.isBlank(timestampColumn) || StringUtils.isBlank(valueColumn)) {
+			throw new IllegalArgumentException("Timestamp and value columns of table " + tableName + " not defined");
+		}
+		if (tagColumns == null || tagColumns.length == 0) {
+			throw new IllegalArgumentException("Tag columns of table " + tableName + " not defined");
+		}
+		this.tableName = tableName;
+		this.entityName = entityName;
+		this.seriesColumns = seriesColumns.clone();
+		this.timestampColumn = timestampColumn;
+		this.valueColumn = valueColumn;
+		this.tagColumns = tagColumns.clone();
+	}
+
+	/**
+	 * Loads table mappings from a properties file (see {@link TableMapping} for the format).
+	 *
+	 * @param file the properties file.
+	 * @return the table mappings, in the order given by the {@code tables} property.
+	 */
+	public static List<TableMapping> load(File file) {
+		try {
+			return load(new FileInputStream(file));
+		} catch (IOException e) {
+			throw new IllegalStateException("Error loading table mappings from " + file.getAbsolutePath(), e);
+		}
+	}
+
+	/**
+	 * Loads table mappings from a properties file in the classpath (see {@link TableMapping} for the format).
+	 *
+	 * @param resource the path of the properties file in the classpath, e.g. {@code tables.properties}
+	 * @return the table mappings, in the order given by the {@code tables} property.
+	 */
+	public static List<TableMapping> loadResource(String resource) {
+		InputStream in = TableMapping.class.getClassLoader().getResourceAsStream(resource);
+		if (in == null) {
+			throw new IllegalStateException("Table mappings " + resource + " not found in the classpath");
+		}
+		try {
+			return load(in);
+		} catch (IOException e) {
+			throw new IllegalStateException("Error loading table mappings from " + resource, e);
+		}
+	}
+
+	private static List<TableMapping> load(InputStream in) throws IOException {
+		Properties properties = new Properties();
+		try {
+			properties.load(in);
+		} finally {
+			in.close();
+		}
+		return load(properties);
+	}
+
+	/**
+	 * Loads table mappings from properties (see {@link TableMapping} for the format).
+	 *
+	 * @param properties the properties that define the mappings.
+	 * @return the table mappings, in the order given by the {@code tables} property.
+	 */
+	public static List<TableMapping> load(Properties properties) {
+		String[] tables = split(properties.getProperty("tables"));
+		if (tables.length == 0) {
+			throw new IllegalArgumentException("No tables defined in property 'tables'");
+		}
+		List<TableMapping> out = new ArrayList<TableMapping>();
+		for (String table : tables) {
+			String prefix = "table." + table + ".";
+			TableMapping mapping = new TableMapping(table, properties.getProperty(prefix + "entity", table), split(properties.getProperty(prefix + "series")), properties.getProperty(prefix + "timestamp"),
+					properties.getProperty(prefix + "value"), split(properties.getProperty(prefix + "tags")));
+			if (properties.getProperty(prefix + "id") != null) {
+				mapping.setIdColumn(properties.getProperty(prefix + "id").trim());
+			}
+			out.add(mapping);
+		}
+		return out;
+	}
+
+	private static String[] split(String value) {
+		return StringUtils.isBlank(value) ? new String[0] : value.trim().split("\\s*,\\s*");
+	}
+
+	public String getTableName() {
+		return tableName;
+	}
+
+	public String getEntityName() {
+		return entityName;
+	}
+
+	public String[] getSeriesColumns() {
+		return seriesColumns.clone();
+	}
+
+	public String getTimestampColumn() {
+		return timestampColumn;
+	}
+
+	public String getValueColumn() {
+		return valueColumn;
+	}
+
+	public String[] getTagColumns() {
+		return tagColumns.clone();
+	}
+
+	/**
+	 * Returns the column with the id of each row, used to read the table in ranges.
+	 *
+	 * @return the id column.
+	 */
+	public String getIdColumn() {
+		return idColumn;
+	}
+
+	/**
+	 * Defines the column with the id of each row, used to read the table in ranges. It must be numeric and increase
+	 * as rows are inserted. Defaults to {@code id}.
+	 *
+	 * @param idColumn the id column.
+	 */
+	public void setIdColumn(String idColumn) {
+		if (StringUtils.isBlank(idColumn)) {
+			throw new IllegalArgumentException("Id column of table " + tableName + " cannot be blank");
+		}
+		this.idColumn = idColumn;
+	}
+
+	/**
+	 * Returns the columns read from the table: the id, series, timestamp, value and tag columns.
+	 *
+	 * @return the names of the columns read, without duplicates.
+	 */
+	String[] getColumns() {
+		Set<String> columns = new LinkedHashSet<String>();
+		columns.add(idColumn);
+		columns.addAll(Arrays.asList(seriesColumns));
+		columns.add(timestampColumn);
+		columns.add(valueColumn);
+		columns.addAll(Arrays.asList(tagColumns));
+		return columns.toArray(new String[columns.size()]);
+	}
+
+	@Override
+	public String toString() {
+		return tableName + " -> " + entityName;
+	}
+}
@@ -0,0 +1,196 @@
+/*******************************************************************************
+ * Copyright (c) 2014 uniVocity Software Pty Ltd. All rights reserved.
+ * This file is subject to the terms and conditions defined in file
+ * 'LICENSE.txt', which is part of this source code package.
+ ******************************************************************************/
+package com.univocity.articles.kairosdb.benchmark;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import com.sun.net.httpserver.*;
+
+/**
+ * An in-process HTTP server that accepts data points sent to {@code /api/v1/datapoints}, as KairosDB would, without storing
+ * them. It counts the data points received and records how long each push took to be handled.
+ *
+ * A fixed latency can be added to each push, and a fraction of the pushes can be rejected with an HTTP 500 error,
+ * to simulate a slow or unreliable server.
+ *
+ * @author uniVocity Software Pty Ltd - <a href="mailto:dev@univocity.com">dev@univocity.com</a>
+ *
+ */
+public class KairosStub {
+
+	private static final byte[] FAILURE = "{\"errors\":[\"Failure injected by KairosStub\"]}".getBytes();
+
+	private final HttpServer server;
+	private final ExecutorService executor = Executors.newCachedThreadPool();
+	private final long latency;
+	private final double failureRate;
+	private final Random random = new Random(0);
+
+	private final AtomicLong pushes = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+	private final AtomicLong dataPoints = new AtomicLong();
+	private final AtomicLong bytes = new AtomicLong();
+	private final List<Long> pushTimes = Collections.synchronizedList(new ArrayList<Long>());
+
+	/**
+	 * Creates a stub listening on a free local port
+	 *
+	 * @param latency the time, in milliseconds, to wait before answering each push.
+	 * @param failureRate the fraction of pushes to reject, between 0 and 1.
+	 * @throws IOException if the server can't be created.
+	 */
+	public KairosStub(long latency, double failureRate) throws IOException {
+		if (failureRate < 0 || failureRate > 1) {
+			throw new IllegalArgumentException("Failure rate must be between 0 and 1");
+		}
+		this.latency = latency;
+		this.failureRate = failureRate;
+		this.server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		this.server.setExecutor(executor);
+		this.server.createContext("/api/v1/datapoints", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				handlePush(exchange);
+			}
+		});
+	}
+
+	private void handlePush(HttpExchange exchange) throws IOException {
+		long start = System.nanoTime();
+		try {
+			long points = countDataPoints(exchange.getRequestBody());
+			if (latency > 0) {
+				Thread.sleep(latency);
+			}
+			pushes.incrementAndGet();
+
+			boolean fail;
+			synchronized (random) {
+				fail = random.nextDouble() < failureRate;
+			}
+			if (fail) {
+				failures.incrementAndGet();
+				exchange.sendResponseHeaders(500, FAILURE.length);
+				exchange.getResponseBody().write(FAILURE);
+			} else {
+				dataPoints.addAndGet(points);
+				exchange.sendResponseHeaders(204, -1);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			exchange.close();
+			pushTimes.add(System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Counts data points in a JSON body without parsing it: each data point is an array that starts with its timestamp,
+	 * i.e. a '[' followed by a digit.
+	 */
+	private long countDataPoints(InputStream in) throws IOException {
+		byte[] buffer = new byte[8192];
+		long count = 0;
+		long total = 0;
+		boolean open = false;
+		int read;
+		while ((read = in.read(buffer)) != -1) {
+			total += read;
+			for (int i = 0; i < read; i++) {
+				byte b = buffer[i];
+				if (open && (b >= '0' && b <= '9' || b == '-')) {
+					count++;
+				}
+				open = b == '[';
+			}
+		}
+		bytes.addAndGet(total);
+		return count;
+	}
+
+	/**
+	 * Starts accepting pushes.
+	 */
+	public void start() {
+		server.start();
+	}
+
+	/**
+	 * Stops the server.
+	 */
+	public void stop() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Returns the URL to use for connecting to this stub, as if it was a KairosDB server.
+	 *
+	 * @return the URL of this stub.
+	 */
+	public String getUrl() {
+		return "http://localhost:" + server.getAddress().getPort();
+	}
+
+	/**
+	 * Returns the number of pushes received, including rejected ones.
+	 *
+	 * @return the number of pushes.
+	 */
+	public long getPushes() {
+		return pushes.get();
+	}
+
+	/**
+	 * Returns the number of pushes rejected with an injected failure.
+	 *
+	 * @return the number of failed pushes.
+	 */
+	public long getFailures() {
+		return failures.get();
+	}
+
+	/**
+	 * Returns the number of data points accepted.
+	 *
+	 * @return the number of data points received in successful pushes.
+	 */
+	public long getDataPoints() {
+		return dataPoints.get();
+	}
+
+	/**
+	 * Returns the number of bytes received.
+	 *
+	 * @return the total size of the bodies of all pushes.
+	 */
+	public long getBytes() {
+		return bytes.get();
+	}
+
+	/**
+	 * Returns a percentile of the time taken to handle pushes, including any injected latency.
+	 *
+	 * @param percentile the percentile, between 0 and 100.
+	 * @return the push time at the given percentile, in milliseconds.
+	 */
+	public double getPushTime(double percentile) {
+		List<Long> times;
+		synchronized (pushTimes) {
+			times = new ArrayList<Long>(pushTimes);
+		}
+		if (times.isEmpty()) {
+			return 0.0;
+		}
+		Collections.sort(times);
+		int index = (int) Math.ceil(percentile / 100.0 * times.size()) - 1;
+		return times.get(Math.max(0, Math.min(times.size() - 1, index))) / 1000000.0;
+	}
+}
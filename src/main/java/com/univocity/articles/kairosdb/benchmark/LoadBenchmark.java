@@ -0,0 +1,174 @@
+/*******************************************************************************
+ * Copyright (c) 2014 uniVocity Software Pty Ltd. All rights reserved.
+ * This file is subject to the terms and conditions defined in file
+ * 'LICENSE.txt', which is part of this source code package.
+ ******************************************************************************/
+package com.univocity.articles.kairosdb.benchmark;
+
+import java.io.*;
+import java.lang.management.*;
+import java.util.*;
+
+import org.springframework.jdbc.core.*;
+
+import com.univocity.articles.databases.*;
+import com.univocity.articles.kairosdb.*;
+import com.univocity.articles.kairosdb.metrics.*;
+
+/**
+ * Measures the throughput of {@link KairosDbLoadProcess} from end to end, without MySQL or KairosDB servers.
+ *
+ * The observation table is created in an HSQLDB database under the temporary directory, and filled with synthetic
+ * rows by an {@link ObservationGenerator}. The load process then sends all rows to a {@link KairosStub}, and the clock
+ * only stops once all batches spooled on the way have been replayed. At the end, the following is reported: rows per second, data points and bytes received by the stub, 50th and 99th percentiles of
+ * the push times and the peak heap usage.
+ *
+ * Arguments (all optional, in order):
+ * <ol>
+ * <li>number of rows to generate (default 1000000)</li>
+ * <li>number of distinct series (default 10000)</li>
+ * <li>number of id ranges processed in parallel (default 1)</li>
+ * <li>number of ids per range in each cycle (default 10000)</li>
+ * <li>latency added to each push, in milliseconds (default 0)</li>
+ * <li>fraction of pushes that fail (default 0)</li>
+ * </ol>
+ *
+ * The benchmark is aborted if {@value #MAX_CONSECUTIVE_FAILURES} cycles in a row fail, or if the spool makes no progress
+ * for {@value #MAX_SPOOL_STALL} ms.
+ *
+ * @author uniVocity Software Pty Ltd - <a href="mailto:dev@univocity.com">dev@univocity.com</a>
+ *
+ */
+public class LoadBenchmark {
+
+	private static final int MAX_CONSECUTIVE_FAILURES = 10;
+	private static final long MAX_SPOOL_STALL = 60000L;
+
+	public static void main(String... args) throws Exception {
+		long rows = argument(args, 0, 1000000L);
+		int seriesCount = (int) argument(args, 1, 10000L);
+		int parallelism = (int) argument(args, 2, 1L);
+		long window = argument(args, 3, 10000L);
+		long latency = argument(args, 4, 0L);
+		double failureRate = args.length > 5 ? Double.parseDouble(args[5]) : 0.0;
+
+		KairosStub stub = new KairosStub(latency, failureRate);
+		stub.start();
+
+		File databaseDir = new File(System.getProperty("java.io.tmpdir"), "kairos-benchmark");
+		System.setProperty("kairosdb.url", stub.getUrl());
+		System.setProperty("source.database.name", "hsqldb");
+		// cached tables keep millions of rows on disk instead of in the heap being measured.
+		System.setProperty("source.database.url", "jdbc:hsqldb:file:" + databaseDir.getAbsolutePath() + "/" + rows + "-" + seriesCount
+				+ ";hsqldb.default_table_type=cached");
+		System.setProperty("source.database.user", "sa");
+		System.setProperty("source.database.password", "");
+		// batches left over by a previous run would be replayed into this run's stub.
+		File spoolDir = new File(System.getProperty("java.io.tmpdir"), "kairos-benchmark-spool");
+		delete(spoolDir);
+		System.setProperty("kairosdb.spool.dir", spoolDir.getAbsolutePath());
+
+		Database database = DatabaseFactory.getInstance().getDestinationDatabase();
+		JdbcTemplate jdbcTemplate = new JdbcTemplate(database.getDataSource());
+		long existingRows = jdbcTemplate.queryForObject("select count(*) from observation", Long.class);
+		if (existingRows < rows) {
+			System.out.println("Generating " + (rows - existingRows) + " rows of " + seriesCount + " series...");
+			long start = System.currentTimeMillis();
+			new ObservationGenerator(database.getDataSource(), seriesCount, 10000).generate(existingRows + 1, rows - existingRows, 1400000000L);
+			System.out.println("Generated in " + (System.currentTimeMillis() - start) + " ms");
+		}
+		// starts from the first row on every run.
+		jdbcTemplate.update("delete from processed_rows where table_name = 'observation'");
+
+		System.gc();
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			pool.resetPeakUsage();
+		}
+
+		KairosDbLoadProcess process = new KairosDbLoadProcess(parallelism);
+		LoadMetrics metrics = process.getMetrics();
+		int failedCycles = 0;
+		boolean aborted = false;
+		long start = System.currentTimeMillis();
+		long elapsed;
+		try {
+			int consecutiveFailures = 0;
+			do {
+				try {
+					process.execute(window);
+					consecutiveFailures = 0;
+				} catch (Exception e) {
+					failedCycles++;
+					consecutiveFailures++;
+					System.err.println("Cycle failed: " + e);
+					if (e.getCause() != null) {
+						System.err.println("  caused by: " + e.getCause());
+					}
+					if (consecutiveFailures >= MAX_CONSECUTIVE_FAILURES) {
+						System.err.println("Aborting after " + consecutiveFailures + " consecutive failed cycles");
+						aborted = true;
+						break;
+					}
+				}
+			} while (process.getLag() > 0);
+
+			// data points are only delivered once the batches spooled along the way are replayed.
+			long replayed = metrics.getReplayedBatches();
+			long lastProgress = System.currentTimeMillis();
+			while (!aborted && replayed < metrics.getSpooledBatches()) {
+				Thread.sleep(100L);
+				if (metrics.getReplayedBatches() > replayed) {
+					replayed = metrics.getReplayedBatches();
+					lastProgress = System.currentTimeMillis();
+				} else if (System.currentTimeMillis() - lastProgress > MAX_SPOOL_STALL) {
+					System.err.println("Aborting with " + (metrics.getSpooledBatches() - replayed) + " batches left in the spool");
+					aborted = true;
+				}
+			}
+			elapsed = System.currentTimeMillis() - start;
+		} finally {
+			process.shutdown();
+		}
+		stub.stop();
+
+		long peakHeap = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) {
+				peakHeap += pool.getPeakUsage().getUsed();
+			}
+		}
+
+		if (aborted) {
+			System.out.println("ABORTED: the results below are incomplete");
+		}
+		System.out.println("Rows:                 " + rows);
+		System.out.println("Series:               " + seriesCount);
+		System.out.println("Parallelism:          " + parallelism + " x " + window + " ids per cycle");
+		System.out.println("Elapsed:              " + elapsed + " ms");
+		System.out.println("Throughput:           " + (rows * 1000L / Math.max(1L, elapsed)) + " rows/s");
+		System.out.println("Data points received: " + stub.getDataPoints());
+		System.out.println("Bytes received:       " + stub.getBytes());
+		System.out.println("Pushes:               " + stub.getPushes() + " (" + stub.getFailures() + " failed, " + failedCycles + " failed cycles)");
+		System.out.println("Spooled batches:      " + metrics.getSpooledBatches() + " (" + metrics.getReplayedBatches() + " replayed)");
+		System.out.println(String.format("Push time:            p50 %.2f ms, p99 %.2f ms", stub.getPushTime(50), stub.getPushTime(99)));
+		System.out.println("Peak heap:            " + (peakHeap / (1024 * 1024)) + " MB");
+		System.out.println("Load metrics:         " + process.getMetrics());
+		System.exit(aborted ? 1 : 0);
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		if (file.exists() && !file.delete()) {
+			throw new IllegalStateException("Unable to delete " + file.getAbsolutePath());
+		}
+	}
+
+	private static long argument(String[] args, int index, long defaultValue) {
+		return args.length > index ? Long.parseLong(args[index]) : defaultValue;
+	}
+}
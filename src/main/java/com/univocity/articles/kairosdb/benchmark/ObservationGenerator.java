@@ -0,0 +1,131 @@
+/*******************************************************************************
+ * Copyright (c) 2014 uniVocity Software Pty Ltd. All rights reserved.
+ * This file is subject to the terms and conditions defined in file
+ * 'LICENSE.txt', which is part of this source code package.
+ ******************************************************************************/
+package com.univocity.articles.kairosdb.benchmark;
+
+import java.sql.*;
+import java.util.*;
+
+import javax.sql.*;
+
+/**
+ * Fills the observation table with synthetic rows.
+ *
+ * Each row belongs to one of a given number of series, identified by zone, field unit address, device and kind of
+ * observation, as in the real data. Rows cycle through all series, and the time of the observations advances by
+ * one second after a reading of every series. About 1 in 1000 rows has no observed value, as rows the load process
+ * must discard are also found in the real data.
+ *
+ * @author uniVocity Software Pty Ltd - <a href="mailto:dev@univocity.com">dev@univocity.com</a>
+ *
+ */
+public class ObservationGenerator {
+
+	private static final String[] KINDS = { "temperature", "humidity", "pressure", "battery" };
+	private static final int DEVICES = 5;
+	private static final int ZONES = 10;
+
+	private static final String INSERT = "insert into observation (id, channelType, channelVersion, fieldLabel, observedValue, observationKind, deviceLabel, deviceType, "
+			+ "observationTime, observationTimeEpochSeconds, fieldUnitAddress, fieldUnitZoneIdentifier, latitude, longitude, sourceLogicalPage, observationId, "
+			+ "channelDeploymentId, creationTime, pageOrdinalPosition, deviceErrorCode, aggregated) values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+	private final DataSource dataSource;
+	private final int seriesCount;
+	private final int batchSize;
+	private final Random random = new Random(0);
+
+	/**
+	 * Creates a generator
+	 *
+	 * @param dataSource the data source of the database with the observation table.
+	 * @param seriesCount the number of distinct series in the generated rows.
+	 * @param batchSize the number of rows inserted in each batch.
+	 */
+	public ObservationGenerator(DataSource dataSource, int seriesCount, int batchSize) {
+		if (seriesCount <= 0) {
+			throw new IllegalArgumentException("Number of series must be positive");
+		}
+		this.dataSource = dataSource;
+		this.seriesCount = seriesCount;
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Inserts rows into the observation table.
+	 *
+	 * @param firstId the id of the first row.
+	 * @param rows the number of rows to insert.
+	 * @param firstEpochSecond the time of the first observation, in seconds.
+	 */
+	public void generate(long firstId, long rows, long firstEpochSecond) {
+		Connection connection = null;
+		try {
+			connection = dataSource.getConnection();
+			connection.setAutoCommit(false);
+			PreparedStatement statement = connection.prepareStatement(INSERT);
+			try {
+				for (long i = 0; i < rows; i++) {
+					setValues(statement, firstId + i, (int) (i % seriesCount), firstEpochSecond + i / seriesCount);
+					statement.addBatch();
+					if ((i + 1) % batchSize == 0) {
+						statement.executeBatch();
+						connection.commit();
+					}
+				}
+				if (rows % batchSize != 0) {
+					statement.executeBatch();
+					connection.commit();
+				}
+			} finally {
+				statement.close();
+			}
+		} catch (SQLException e) {
+			throw new IllegalStateException("Error generating observations", e);
+		} finally {
+			if (connection != null) {
+				try {
+					connection.close();
+				} catch (SQLException e) {
+					//ignore
+				}
+			}
+		}
+	}
+
+	private void setValues(PreparedStatement statement, long id, int series, long epochSecond) throws SQLException {
+		String kind = KINDS[series % KINDS.length];
+		int device = (series / KINDS.length) % DEVICES;
+		int zone = (series / (KINDS.length * DEVICES)) % ZONES;
+		int address = series / (KINDS.length * DEVICES * ZONES);
+		Timestamp time = new Timestamp(epochSecond * 1000L);
+
+		int i = 1;
+		statement.setLong(i++, id);
+		statement.setString(i++, "RADIO");
+		statement.setString(i++, "1.0");
+		statement.setString(i++, "F" + device);
+		if (random.nextInt(1000) == 0) {
+			statement.setNull(i++, Types.DOUBLE);
+		} else {
+			statement.setDouble(i++, Math.round(random.nextGaussian() * 10000.0) / 100.0);
+		}
+		statement.setString(i++, kind);
+		statement.setString(i++, "DEV" + device);
+		statement.setString(i++, "SENSOR");
+		statement.setTimestamp(i++, time);
+		statement.setInt(i++, (int) epochSecond);
+		statement.setInt(i++, address);
+		statement.setString(i++, "ZONE_" + zone);
+		statement.setDouble(i++, -34.9 + zone * 0.01);
+		statement.setDouble(i++, 138.6 + address * 0.001);
+		statement.setInt(i++, (int) (id % 100));
+		statement.setString(i++, String.valueOf(id % 1000000000L));
+		statement.setString(i++, "DEP" + zone);
+		statement.setTimestamp(i++, time);
+		statement.setInt(i++, (int) (id % 10));
+		statement.setInt(i++, 0);
+		statement.setInt(i++, 0);
+	}
+}
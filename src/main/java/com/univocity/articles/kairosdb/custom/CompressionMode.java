@@ -0,0 +1,35 @@
+/*******************************************************************************
+ * Copyright (c) 2014 uniVocity Software Pty Ltd. All rights reserved.
+ * This file is subject to the terms and conditions defined in file
+ * 'LICENSE.txt', which is part of this source code package.
+ ******************************************************************************/
+package com.univocity.articles.kairosdb.custom;
+
+/**
+ * The algorithms {@link KairosDataStore} can use to skip numeric data points that add little information to a series
+ * before they are written into KairosDB (see {@link KairosDataStoreConfiguration#setCompressionMode(CompressionMode)}).
+ *
+ * @author uniVocity Software Pty Ltd - <a href="mailto:dev@univocity.com">dev@univocity.com</a>
+ *
+ */
+public enum CompressionMode {
+
+	/**
+	 * All data points are written.
+	 */
+	NONE,
+
+	/**
+	 * A data point is skipped if its value differs from the last value written for the series by no more than the tolerance.
+	 */
+	DEADBAND,
+
+	/**
+	 * Swinging door trending: a data point is skipped while a straight line between the last data point written and the
+	 * latest one received stays within the tolerance of every value in between. When a new value breaks that corridor, the
+	 * previous data point received is written and starts a new line, so interpolating between the data points written
+	 * never deviates from the values received by more than the tolerance. The latest data point of a series is held until
+	 * the next one arrives, or until the end of the transaction.
+	 */
+	SWINGING_DOOR
+}
@@ -0,0 +1,26 @@
+/*******************************************************************************
+ * Copyright (c) 2014 uniVocity Software Pty Ltd. All rights reserved.
+ * This file is subject to the terms and conditions defined in file
+ * 'LICENSE.txt', which is part of this source code package.
+ ******************************************************************************/
+package com.univocity.articles.kairosdb.custom;
+
+/**
+ * Receives data points to be written into KairosDB, e.g. those produced by a {@link Rollup} or held back by the
+ * {@link SeriesCompressor}.
+ *
+ * @author uniVocity Software Pty Ltd - <a href="mailto:dev@univocity.com">dev@univocity.com</a>
+ *
+ */
+interface DataPointWriter {
+
+	/**
+	 * Writes a data point
+	 *
+	 * @param name the metric name
+	 * @param timestamp the timestamp of the data point
+	 * @param value the value of the data point
+	 * @param tagValues the values of each tag of the data point, in the order of the tags of the entity.
+	 */
+	void write(String name, long timestamp, Object value, String[] tagValues);
+}
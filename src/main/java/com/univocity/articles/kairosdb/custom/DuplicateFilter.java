@@ -0,0 +1,165 @@
+/*******************************************************************************
+ * Copyright (c) 2014 uniVocity Software Pty Ltd. All rights reserved.
+ * This file is subject to the terms and conditions defined in file
+ * 'LICENSE.txt', which is part of this source code package.
+ ******************************************************************************/
+package com.univocity.articles.kairosdb.custom;
+
+import java.util.*;
+
+/**
+ * Detects data points written more than once within a time window, so repeated readings sent by the source, or rows
+ * processed again after a failed cycle, are not pushed to KairosDB again.
+ *
+ * Each data point is reduced to a 64-bit fingerprint of its metric name, tag values, timestamp and value. Fingerprints
+ * are kept in two open-addressing hash sets of primitive longs: the current generation, which receives new fingerprints,
+ * and the previous one. When the current generation is full, or when the window elapses, it becomes the previous
+ * generation and the oldest fingerprints are forgotten. This keeps the memory used fixed: 2 tables of twice the
+ * capacity, in longs.
+ *
+ * With 64-bit fingerprints, the chance of two different data points being taken as duplicates is negligible, unlike the
+ * false positives of a bloom filter of the same size.
+ *
+ * @author uniVocity Software Pty Ltd - <a href="mailto:dev@univocity.com">dev@univocity.com</a>
+ *
+ */
+class DuplicateFilter {
+
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	private final long window;
+	private final int capacity;
+	private final int mask;
+
+	private long[] current;
+	private long[] previous;
+	private int currentSize;
+	private long generationStart;
+
+	/**
+	 * Creates a filter
+	 *
+	 * @param window the minimum time, in milliseconds, a data point is remembered, unless the filter is full.
+	 * @param capacity the maximum number of data points remembered in each generation.
+	 */
+	DuplicateFilter(long window, int capacity) {
+		if (window <= 0 || capacity <= 0 || capacity > (1 << 28)) {
+			throw new IllegalArgumentException("Invalid duplicate filter window " + window + " or capacity " + capacity);
+		}
+		this.window = window;
+		this.capacity = capacity;
+		// at most half full, so probe sequences stay short.
+		int tableSize = Integer.highestOneBit(Math.max(2, capacity) * 2 - 1) << 1;
+		this.mask = tableSize - 1;
+		this.current = new long[tableSize];
+		this.previous = new long[tableSize];
+		this.generationStart = currentTimeMillis();
+	}
+
+	/**
+	 * Checks whether a data point was seen before, and remembers it if not.
+	 *
+	 * @param name the metric name
+	 * @param timestamp the timestamp of the data point
+	 * @param value the value of the data point
+	 * @param tagValues the values of each tag of the data point. Nulls are allowed.
+	 * @return {@code true} if the data point is a duplicate and should be discarded.
+	 */
+	synchronized boolean isDuplicate(String name, long timestamp, Object value, String[] tagValues) {
+		long fingerprint = fingerprint(name, timestamp, value, tagValues);
+		if (contains(current, fingerprint) || contains(previous, fingerprint)) {
+			return true;
+		}
+		if (currentSize >= capacity || currentTimeMillis() - generationStart >= window) {
+			rotate();
+		}
+		add(current, fingerprint);
+		currentSize++;
+		return false;
+	}
+
+	/**
+	 * Forgets all data points, e.g. when data points written may not have reached KairosDB and must be accepted again.
+	 */
+	synchronized void clear() {
+		Arrays.fill(current, 0L);
+		Arrays.fill(previous, 0L);
+		currentSize = 0;
+		generationStart = currentTimeMillis();
+	}
+
+	// overridden by tests, to move the clock without waiting.
+	long currentTimeMillis() {
+		return System.currentTimeMillis();
+	}
+
+	private void rotate() {
+		long[] table = previous;
+		previous = current;
+		Arrays.fill(table, 0L);
+		current = table;
+		currentSize = 0;
+		generationStart = currentTimeMillis();
+	}
+
+	private boolean contains(long[] table, long fingerprint) {
+		int i = slot(fingerprint);
+		long entry;
+		while ((entry = table[i]) != 0L) {
+			if (entry == fingerprint) {
+				return true;
+			}
+			i = (i + 1) & mask;
+		}
+		return false;
+	}
+
+	private void add(long[] table, long fingerprint) {
+		int i = slot(fingerprint);
+		while (table[i] != 0L) {
+			i = (i + 1) & mask;
+		}
+		table[i] = fingerprint;
+	}
+
+	private int slot(long fingerprint) {
+		return (int) (fingerprint ^ (fingerprint >>> 32)) & mask;
+	}
+
+	static long fingerprint(String name, long timestamp, Object value, String[] tagValues) {
+		long h = hash(FNV_OFFSET, name);
+		for (int i = 0; i < tagValues.length; i++) {
+			h = tagValues[i] == null ? (h ^ 0xFF) * FNV_PRIME : hash((h ^ 0xFE) * FNV_PRIME, tagValues[i]);
+		}
+		h = mix(h ^ timestamp);
+		long v;
+		if (value instanceof Double || value instanceof Float) {
+			v = Double.doubleToLongBits(((Number) value).doubleValue());
+		} else if (value instanceof Number) {
+			v = ((Number) value).longValue();
+		} else {
+			v = value == null ? 0L : hash(FNV_OFFSET, value.toString());
+		}
+		h = mix(h ^ v);
+		// 0 marks empty slots.
+		return h == 0L ? 1L : h;
+	}
+
+	// murmur3 finalizer, so all bits of the result depend on all input bits.
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	private static long hash(long h, String s) {
+		for (int i = 0; i < s.length(); i++) {
+			h = (h ^ s.charAt(i)) * FNV_PRIME;
+		}
+		return h;
+	}
+}
@@ -0,0 +1,493 @@
+/*******************************************************************************
+ * Copyright (c) 2014 uniVocity Software Pty Ltd. All rights reserved.
+ * This file is subject to the terms and conditions defined in file
+ * 'LICENSE.txt', which is part of this source code package.
+ ******************************************************************************/
+package com.univocity.articles.kairosdb.custom;
+
+import java.util.*;
+
+/**
+ * A batch of data points encoded as the JSON body expected by the {@code /api/v1/datapoints} endpoint of KairosDB.
+ *
+ * Data points are grouped by series (i.e. metric name and tag values) and sorted by timestamp within each series, so each
+ * series is written once with all its data points: {@code {"name":"...","tags":{...},"datapoints":[[t1,v1],[t2,v2]]}}.
+ * This keeps the payload small and lets KairosDB touch each row key only once per batch.
+ *
+ * Data points are kept in primitive columns (timestamps, values and the position of their series in the batch) until the
+ * batch is encoded into a growable byte array, when {@link #getBytes()} is first invoked. Series are identified by a
+ * {@link SeriesDictionary} shared by all batches of a data store, so a series seen in a previous batch is found without
+ * allocating anything. Instances are meant to be recycled with {@link #clear()}, so after a few batches all arrays reach
+ * their working size and no further allocations are required.
+ *
+ * @author uniVocity Software Pty Ltd - <a href="mailto:dev@univocity.com">dev@univocity.com</a>
+ *
+ */
+class JsonBatch {
+
+	private static final byte[] HEX = new byte[] { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f' };
+
+	private static final byte[] NAME = ascii("{\"name\":\"");
+	private static final byte[] TAGS = ascii("\",\"tags\":{");
+	private static final byte[] DATAPOINTS = ascii("},\"datapoints\":[");
+
+	// upper bounds used to estimate the encoded size of a batch without encoding it.
+	private static final int POINT_SIZE_ESTIMATE = 4 + 20 + 24; // [timestamp,value],
+	private static final int SERIES_SIZE_ESTIMATE = NAME.length + TAGS.length + DATAPOINTS.length + 3;
+
+	// powers of ten by which doubles with few decimal places become integers, so they can be written without a String.
+	private static final long[] POWERS_OF_TEN = { 1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L };
+	private static final double MAX_PLAIN_DOUBLE = 1e9;
+
+	private static final byte LONG = 0;
+	private static final byte DOUBLE = 1;
+	private static final byte OBJECT = 2;
+
+	// data points, in the order they were added. Doubles are stored as their raw long bits.
+	private int[] pointSeries;
+	private long[] timestamps;
+	private long[] values;
+	private byte[] valueTypes;
+	private int dataPoints;
+
+	// values that are neither integers nor floating point numbers, indexed by the position stored in {@link #values}
+	private final List<Object> objectValues = new ArrayList<Object>();
+	private int estimatedLength;
+	private long creationTime;
+
+	// series of this batch, in the order they were added. Keys are the metric name followed by each tag name and value.
+	private final SeriesDictionary dictionary;
+	private Object[] probe = new Object[0];
+	private SeriesDictionary.Series[] series = new SeriesDictionary.Series[16];
+	private int seriesCount;
+	// position in {@link #series} of each series id of the dictionary, valid only if the series found there has that id.
+	private int[] seriesPositions = new int[16];
+
+	// data point positions, grouped by series and sorted by timestamp
+	private int[] order;
+	private int[] seriesStart = new int[17];
+
+	private byte[] bytes;
+	private int length;
+	private boolean encoded;
+
+	JsonBatch(int initialCapacity, SeriesDictionary dictionary) {
+		this.dictionary = dictionary;
+		bytes = new byte[initialCapacity];
+		pointSeries = new int[1024];
+		timestamps = new long[1024];
+		values = new long[1024];
+		valueTypes = new byte[1024];
+		order = new int[1024];
+		clear();
+	}
+
+	private static byte[] ascii(String s) {
+		byte[] out = new byte[s.length()];
+		for (int i = 0; i < out.length; i++) {
+			out[i] = (byte) s.charAt(i);
+		}
+		return out;
+	}
+
+	/**
+	 * Discards all data points of this batch so it can be reused.
+	 */
+	void clear() {
+		objectValues.clear();
+		Arrays.fill(series, 0, seriesCount, null);
+		dataPoints = 0;
+		seriesCount = 0;
+		estimatedLength = 2;
+		length = 0;
+		encoded = false;
+	}
+
+	/**
+	 * Adds a data point to this batch
+	 *
+	 * @param name the metric name
+	 * @param timestamp the timestamp of the data point, in milliseconds
+	 * @param value the value of the data point
+	 * @param tagNames the names of the tags of the metric
+	 * @param tagValues the values of each tag. Tags with {@code null} values are not written.
+	 */
+	void add(String name, long timestamp, Object value, String[] tagNames, String[] tagValues) {
+		if (encoded) {
+			throw new IllegalStateException("Batch already encoded");
+		}
+		if (dataPoints == timestamps.length) {
+			int capacity = dataPoints * 2;
+			pointSeries = Arrays.copyOf(pointSeries, capacity);
+			timestamps = Arrays.copyOf(timestamps, capacity);
+			values = Arrays.copyOf(values, capacity);
+			valueTypes = Arrays.copyOf(valueTypes, capacity);
+		}
+		if (dataPoints == 0) {
+			creationTime = System.currentTimeMillis();
+		}
+		pointSeries[dataPoints] = seriesId(name, tagNames, tagValues);
+		timestamps[dataPoints] = timestamp;
+		if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+			values[dataPoints] = ((Number) value).longValue();
+			valueTypes[dataPoints] = LONG;
+		} else if (value instanceof Double || value instanceof Float) {
+			values[dataPoints] = Double.doubleToRawLongBits(((Number) value).doubleValue());
+			valueTypes[dataPoints] = DOUBLE;
+		} else {
+			values[dataPoints] = objectValues.size();
+			valueTypes[dataPoints] = OBJECT;
+			objectValues.add(value);
+		}
+		dataPoints++;
+		estimatedLength += POINT_SIZE_ESTIMATE;
+	}
+
+	private int seriesId(String name, String[] tagNames, String[] tagValues) {
+		if (probe.length != 1 + 2 * tagNames.length) {
+			probe = new Object[1 + 2 * tagNames.length];
+		}
+		probe[0] = name;
+		for (int i = 0; i < tagNames.length; i++) {
+			probe[1 + 2 * i] = tagNames[i];
+			probe[2 + 2 * i] = tagValues[i];
+		}
+		SeriesDictionary.Series s = dictionary.lookup(probe);
+
+		int id = s.getId();
+		if (id < seriesPositions.length) {
+			int position = seriesPositions[id];
+			if (position < seriesCount && series[position] == s) {
+				return position;
+			}
+		} else {
+			seriesPositions = Arrays.copyOf(seriesPositions, Math.max(id + 1, seriesPositions.length * 2));
+		}
+
+		if (seriesCount == series.length) {
+			series = Arrays.copyOf(series, seriesCount * 2);
+		}
+		estimatedLength += SERIES_SIZE_ESTIMATE + name.length();
+		for (int i = 0; i < tagValues.length; i++) {
+			if (tagValues[i] != null) {
+				estimatedLength += tagNames[i].length() + tagValues[i].length() + 6;
+			}
+		}
+		series[seriesCount] = s;
+		seriesPositions[id] = seriesCount;
+		return seriesCount++;
+	}
+
+	/**
+	 * Returns the number of data points in this batch
+	 *
+	 * @return the number of data points added since the last call to {@link #clear()}
+	 */
+	int size() {
+		return dataPoints;
+	}
+
+	/**
+	 * Returns the number of distinct series (metric name and tag values) in this batch
+	 *
+	 * @return the number of series added since the last call to {@link #clear()}
+	 */
+	int seriesCount() {
+		return seriesCount;
+	}
+
+	/**
+	 * Returns an estimate of the number of bytes of the JSON content, computed without encoding the batch.
+	 * Usually larger than the actual size, unless non-ASCII characters or long string values are used.
+	 *
+	 * @return the estimated size of the JSON content, in bytes.
+	 */
+	int estimatedLength() {
+		return encoded ? length : estimatedLength;
+	}
+
+	/**
+	 * Returns the time the first data point was added to this batch.
+	 *
+	 * @return the time, in milliseconds, the first data point was added since the last call to {@link #clear()}
+	 */
+	long getCreationTime() {
+		return creationTime;
+	}
+
+	/**
+	 * Returns the number of bytes of the JSON content.
+	 *
+	 * @return the size of the JSON content, in bytes.
+	 */
+	int length() {
+		encode();
+		return length;
+	}
+
+	/**
+	 * Returns the internal buffer of this batch, with the JSON content in the first {@link #length()} bytes.
+	 * The buffer is reused, so it must not be modified nor retained after this batch is cleared.
+	 *
+	 * No more data points can be added to this batch until it is cleared.
+	 *
+	 * @return the byte array with the JSON content of this batch.
+	 */
+	byte[] getBytes() {
+		encode();
+		return bytes;
+	}
+
+	private void encode() {
+		if (encoded) {
+			return;
+		}
+		encoded = true;
+		groupBySeries();
+
+		length = 0;
+		put('[');
+		for (int s = 0; s < seriesCount; s++) {
+			if (s > 0) {
+				put(',');
+			}
+			Object[] key = series[s].getKey();
+			put(NAME);
+			putEscaped((String) key[0]);
+			put(TAGS);
+			boolean first = true;
+			for (int i = 1; i < key.length; i += 2) {
+				if (key[i + 1] != null) {
+					if (!first) {
+						put(',');
+					}
+					first = false;
+					put('"');
+					putEscaped((String) key[i]);
+					put('"');
+					put(':');
+					put('"');
+					putEscaped((String) key[i + 1]);
+					put('"');
+				}
+			}
+			put(DATAPOINTS);
+			for (int i = seriesStart[s]; i < seriesStart[s + 1]; i++) {
+				if (i > seriesStart[s]) {
+					put(',');
+				}
+				int point = order[i];
+				put('[');
+				putLong(timestamps[point]);
+				put(',');
+				putValue(point);
+				put(']');
+			}
+			put(']');
+			put('}');
+		}
+		put(']');
+	}
+
+	/**
+	 * Fills {@link #order} with the positions of each data point, grouped by series (counting sort), and then sorts
+	 * the data points of each series by timestamp.
+	 */
+	private void groupBySeries() {
+		if (order.length < dataPoints) {
+			order = new int[timestamps.length];
+		}
+		if (seriesStart.length < seriesCount + 1) {
+			seriesStart = new int[series.length + 1];
+		}
+		Arrays.fill(seriesStart, 0, seriesCount + 1, 0);
+		for (int i = 0; i < dataPoints; i++) {
+			seriesStart[pointSeries[i] + 1]++;
+		}
+		for (int s = 0; s < seriesCount; s++) {
+			seriesStart[s + 1] += seriesStart[s];
+		}
+		// seriesStart[s] is used as the insertion position of series s, and shifted back afterwards.
+		for (int i = 0; i < dataPoints; i++) {
+			order[seriesStart[pointSeries[i]]++] = i;
+		}
+		for (int s = seriesCount; s > 0; s--) {
+			seriesStart[s] = seriesStart[s - 1];
+		}
+		seriesStart[0] = 0;
+
+		for (int s = 0; s < seriesCount; s++) {
+			sortByTimestamp(seriesStart[s], seriesStart[s + 1] - 1);
+		}
+	}
+
+	private void sortByTimestamp(int from, int to) {
+		while (to - from > 16) {
+			long pivot = timestamps[order[(from + to) >>> 1]];
+			int i = from;
+			int j = to;
+			while (i <= j) {
+				while (timestamps[order[i]] < pivot) {
+					i++;
+				}
+				while (timestamps[order[j]] > pivot) {
+					j--;
+				}
+				if (i <= j) {
+					int tmp = order[i];
+					order[i++] = order[j];
+					order[j--] = tmp;
+				}
+			}
+			// recurses into the smaller partition to keep the stack shallow
+			if (j - from < to - i) {
+				sortByTimestamp(from, j);
+				from = i;
+			} else {
+				sortByTimestamp(i, to);
+				to = j;
+			}
+		}
+		// insertion sort for small ranges, which is also quick for data points that arrive already in order.
+		for (int i = from + 1; i <= to; i++) {
+			int point = order[i];
+			long timestamp = timestamps[point];
+			int j = i - 1;
+			while (j >= from && timestamps[order[j]] > timestamp) {
+				order[j + 1] = order[j];
+				j--;
+			}
+			order[j + 1] = point;
+		}
+	}
+
+	private void putValue(int point) {
+		switch (valueTypes[point]) {
+		case LONG:
+			putLong(values[point]);
+			break;
+		case DOUBLE:
+			putDouble(Double.longBitsToDouble(values[point]));
+			break;
+		default:
+			Object value = objectValues.get((int) values[point]);
+			if (value instanceof Number) {
+				putAscii(value.toString());
+			} else {
+				put('"');
+				putEscaped(String.valueOf(value));
+				put('"');
+			}
+		}
+	}
+
+	private void ensureCapacity(int required) {
+		if (required > bytes.length) {
+			bytes = Arrays.copyOf(bytes, Math.max(required, bytes.length * 2));
+		}
+	}
+
+	private void put(char ch) {
+		ensureCapacity(length + 1);
+		bytes[length++] = (byte) ch;
+	}
+
+	private void put(byte[] content) {
+		ensureCapacity(length + content.length);
+		System.arraycopy(content, 0, bytes, length, content.length);
+		length += content.length;
+	}
+
+	private void putAscii(String s) {
+		ensureCapacity(length + s.length());
+		for (int i = 0; i < s.length(); i++) {
+			bytes[length++] = (byte) s.charAt(i);
+		}
+	}
+
+	/**
+	 * Writes a double with a decimal point, so KairosDB stores it as a double. If the value is exactly what a decimal with up
+	 * to 6 decimal places parses to, as most readings are, its digits are written directly. Other values go through
+	 * {@link Double#toString(double)}.
+	 */
+	private void putDouble(double value) {
+		double abs = Math.abs(value);
+		if (abs < MAX_PLAIN_DOUBLE) {
+			for (int k = 0; k < POWERS_OF_TEN.length; k++) {
+				double scaled = abs * POWERS_OF_TEN[k];
+				if (scaled == Math.rint(scaled) && (long) scaled / (double) POWERS_OF_TEN[k] == abs) {
+					if (Double.doubleToRawLongBits(value) < 0) {
+						put('-');
+					}
+					long digits = (long) scaled;
+					putLong(digits / POWERS_OF_TEN[k]);
+					put('.');
+					if (k == 0) {
+						put('0');
+					} else {
+						long decimals = digits % POWERS_OF_TEN[k];
+						for (int i = k - 1; i >= 0; i--) {
+							put((char) ('0' + decimals / POWERS_OF_TEN[i] % 10));
+						}
+					}
+					return;
+				}
+			}
+		}
+		putAscii(Double.toString(value));
+	}
+
+	private void putLong(long value) {
+		if (value == Long.MIN_VALUE) {
+			putAscii(String.valueOf(value));
+			return;
+		}
+		ensureCapacity(length + 20);
+		if (value < 0) {
+			bytes[length++] = '-';
+			value = -value;
+		}
+		long divisor = 1;
+		while (value / divisor >= 10) {
+			divisor *= 10;
+		}
+		while (divisor > 0) {
+			bytes[length++] = (byte) ('0' + (value / divisor) % 10);
+			divisor /= 10;
+		}
+	}
+
+	private void putEscaped(String s) {
+		// worst case: every character is escaped as \\uXXXX
+		ensureCapacity(length + s.length() * 6);
+		for (int i = 0; i < s.length(); i++) {
+			char ch = s.charAt(i);
+			if (ch == '"' || ch == '\\') {
+				bytes[length++] = '\\';
+				bytes[length++] = (byte) ch;
+			} else if (ch < 0x20) {
+				bytes[length++] = '\\';
+				bytes[length++] = 'u';
+				bytes[length++] = '0';
+				bytes[length++] = '0';
+				bytes[length++] = HEX[ch >> 4];
+				bytes[length++] = HEX[ch & 0xF];
+			} else if (ch < 0x80) {
+				bytes[length++] = (byte) ch;
+			} else if (ch < 0x800) {
+				bytes[length++] = (byte) (0xC0 | (ch >> 6));
+				bytes[length++] = (byte) (0x80 | (ch & 0x3F));
+			} else if (Character.isHighSurrogate(ch) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+				int codePoint = Character.toCodePoint(ch, s.charAt(++i));
+				bytes[length++] = (byte) (0xF0 | (codePoint >> 18));
+				bytes[length++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+				bytes[length++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+				bytes[length++] = (byte) (0x80 | (codePoint & 0x3F));
+			} else {
+				bytes[length++] = (byte) (0xE0 | (ch >> 12));
+				bytes[length++] = (byte) (0x80 | ((ch >> 6) & 0x3F));
+				bytes[length++] = (byte) (0x80 | (ch & 0x3F));
+			}
+		}
+	}
+}
@@ -8,10 +8,11 @@ package com.univocity.articles.kairosdb.custom;
 import java.util.*;
 
 import org.apache.commons.lang.*;
-import org.kairosdb.client.builder.*;
+import org.slf4j.*;
 
 import com.univocity.api.entity.*;
 import com.univocity.api.entity.custom.*;
+import com.univocity.articles.kairosdb.metrics.*;
 
 /**
  * A custom entity for KairosDB that implements methods for data modification.
@@ -21,21 +22,35 @@ import com.univocity.api.entity.custom.*;
  */
 class KairosDataEntity implements CustomDataEntity {
 
+	private static final Logger log = LoggerFactory.getLogger(KairosDataEntity.class);
+
 	private final KairosDataStore dataStore;
 	private final String entityName;
 	private final Set<DefaultEntityField> fields = new HashSet<DefaultEntityField>();
 	private final Set<String> tags = new HashSet<String>();
 
+	private final Rollup rollup;
+	// the rollup buckets of data points written in the current transaction.
+	private final RollupBuckets stagedBuckets;
+	private final SeriesCompressor compressor;
+
 	/**
 	 * Creates a new instance of a custom data entity, with a given set of field names
 	 *
 	 * @param dataStore the data store that contains this entity (we need it to manage open connections)
 	 * @param entityName the name of the new custom data entity
+	 * @param rollup the rollup of data points written into this entity, or {@code null} if data points are not downsampled.
 	 * @param fieldNames the fields in this entity.
 	 */
-	public KairosDataEntity(KairosDataStore dataStore, String entityName, String... tagNames) {
+	public KairosDataEntity(KairosDataStore dataStore, String entityName, Rollup rollup, String... tagNames) {
 		this.dataStore = dataStore;
 		this.entityName = entityName;
+		this.rollup = rollup;
+		this.stagedBuckets = rollup == null ? null : rollup.newBuckets();
+
+		KairosDataStoreConfiguration configuration = dataStore.getConfiguration();
+		this.compressor = configuration.getCompressionMode() == CompressionMode.NONE ? null : new SeriesCompressor(configuration.getCompressionMode(), configuration.getCompressionTolerance(),
+				configuration.getCompressionHeartbeat(), configuration.getCompressionMaxSeries());
 
 		addFields("name", "timestamp", "value");
 		addFields(tagNames);
@@ -48,9 +63,109 @@ class KairosDataEntity implements CustomDataEntity {
 		return entityName;
 	}
 
+	/**
+	 * Returns the rollup of data points written into this entity
+	 *
+	 * @return the rollup of this entity, or {@code null} if data points are not downsampled.
+	 */
+	Rollup getRollup() {
+		return rollup;
+	}
+
+	private void stage(String name, long timestamp, double value, String[] tagValues, LoadMetrics metrics) {
+		synchronized (stagedBuckets) {
+			if (!rollup.stage(stagedBuckets, name, tagValues, timestamp, value, metrics)) {
+				log.warn("Transaction on entity '{}' writes data points into more than {} rollup buckets. Aggregating them before the transaction completes", entityName, rollup.getMaxBuckets());
+				rollup.merge(stagedBuckets, metrics);
+				rollup.stage(stagedBuckets, name, tagValues, timestamp, value, metrics);
+			}
+		}
+	}
+
+	/**
+	 * Aggregates the data points written in a transaction into the rollup of this entity, or discards them if the
+	 * transaction failed, as they will be written again. The state of the compressed series is kept or restored
+	 * the same way.
+	 *
+	 * @param completed flag indicating whether the transaction completed successfully.
+	 */
+	void endTransaction(boolean completed) {
+		if (compressor != null) {
+			if (completed) {
+				compressor.commit();
+			} else {
+				compressor.rollback();
+			}
+		}
+		if (rollup == null) {
+			return;
+		}
+		synchronized (stagedBuckets) {
+			if (completed) {
+				rollup.merge(stagedBuckets, dataStore.getConfiguration().getMetrics());
+			} else {
+				stagedBuckets.clear();
+			}
+		}
+	}
+
+	/**
+	 * Returns whether the compressor of this entity holds data points that were not written yet
+	 *
+	 * @return {@code true} if data points are held, to be written with {@link #writeHeldDataPoints()}.
+	 */
+	boolean hasHeldDataPoints() {
+		return compressor != null && compressor.hasHeldDataPoints();
+	}
+
+	/**
+	 * Writes the data points held by the compressor of this entity, so the last data point of each series is not lost
+	 * when it is not followed by another. Must be called within a transaction of the data store, before it completes.
+	 */
+	void writeHeldDataPoints() {
+		if (!hasHeldDataPoints()) {
+			return;
+		}
+		KairosWritingProcess process = (KairosWritingProcess) prepareToWrite(new String[] { "name", "value" });
+		int dataPoints;
+		try {
+			dataPoints = compressor.flush(process);
+		} finally {
+			process.close();
+		}
+		LoadMetrics metrics = dataStore.getConfiguration().getMetrics();
+		if (metrics != null) {
+			metrics.compressionFlushed(dataPoints);
+		}
+	}
+
+	/**
+	 * Writes the rollup metrics of closed buckets. Must be called within a transaction of the data store.
+	 */
+	void writeRollups() {
+		KairosWritingProcess process = (KairosWritingProcess) prepareToWrite(new String[] { "name", "value" });
+		int dataPoints;
+		try {
+			dataPoints = rollup.writeClosedBuckets(process);
+		} finally {
+			process.close();
+		}
+		LoadMetrics metrics = dataStore.getConfiguration().getMetrics();
+		if (metrics != null) {
+			metrics.rollupWritten(dataPoints);
+		}
+	}
+
 	@Override
 	public ReadingProcess preareToRead(String[] fieldNames) {
-		return null;
+		KairosDataStoreConfiguration configuration = dataStore.getConfiguration();
+		if (configuration.getReadStart() < 0) {
+			throw new IllegalStateException("Time range to read from entity '" + entityName + "' not defined.");
+		}
+		long end = configuration.getReadEnd() == 0 ? System.currentTimeMillis() : configuration.getReadEnd();
+
+		return new KairosReadingProcess(dataStore, "entity '" + entityName + "'", dataStore.getMetricNamesToRead(configuration.getReadMetricPattern()), tags.toArray(new String[tags.size()]), fieldNames,
+				configuration.getReadStart(), end, configuration.getReadChunkSize(), configuration.getReadParallelism());
 	}
 
 	@Override
@@ -68,61 +183,190 @@ class KairosDataEntity implements CustomDataEntity {
 
 	@Override
 	public WritingProcess prepareToWrite(String[] fieldNames) {
-
-		final Map<String, Integer> fieldPositions = new HashMap<String, Integer>();
-		for (int i = 0; i < fieldNames.length; i++) {
-			fieldPositions.put(fieldNames[i], i);
+		if (dataStore.getConfiguration().getTransport() == KairosTransport.TELNET) {
+			return new TelnetWritingProcess(fieldNames);
 		}
+		return new HttpWritingProcess(fieldNames);
+	}
+
+	/**
+	 * Common implementation for writing processes: extracts the name, timestamp, value and tags of each row.
+	 * The positions of each field in the rows are resolved only once, when the process is created.
+	 */
+	private abstract class KairosWritingProcess implements WritingProcess, DataPointWriter {
 
-		return new WritingProcess() {
+		private final int namePosition;
+		private final int timestampPosition;
+		private final int valuePosition;
+		private final int[] tagPositions;
+		private final LoadMetrics metrics = dataStore.getConfiguration().getMetrics();
+		private final DuplicateFilter duplicateFilter = dataStore.getDuplicateFilter();
+		final String[] tagNames;
+		final String[] tagValues;
 
-			MetricBuilder builder = MetricBuilder.getInstance();
+		KairosWritingProcess(String[] fieldNames) {
+			List<String> fields = Arrays.asList(fieldNames);
+			namePosition = position(fields, "name", true);
+			timestampPosition = position(fields, "timestamp", false);
+			valuePosition = position(fields, "value", true);
 
-			@Override
-			public void close() {
-				// will push the metrics at the end of each batch instead of at the end of the transaction.
-				// otherwise the generated JSON content can be excessively big.
-				dataStore.pushMetrics(KairosDataEntity.this, builder);
+			tagNames = tags.toArray(new String[tags.size()]);
+			tagValues = new String[tagNames.length];
+			tagPositions = new int[tagNames.length];
+			for (int i = 0; i < tagNames.length; i++) {
+				tagPositions[i] = position(fields, tagNames[i], false);
 			}
+		}
 
-			@Override
-			public void writeNext(Object[] data) {
-				String name = get("name", String.class, data, true);
-				Metric metric = builder.addMetric(name);
+		private int position(List<String> fields, String field, boolean mandatory) {
+			int position = fields.indexOf(field);
+			if (position == -1 && mandatory) {
+				throw new IllegalStateException("Mandatory field '" + field + "' not mapped.");
+			}
+			return position;
+		}
 
-				Long timestamp = get("timestamp", Long.class, data, false);
-				Object value = get("value", Object.class, data, true);
+		@Override
+		public final void writeNext(Object[] data) {
+			String name = (String) data[namePosition];
+			Object value = data[valuePosition];
 
-				if (timestamp == null) {
-					metric.addDataPoint(System.currentTimeMillis(), value);
-				} else {
-					metric.addDataPoint(timestamp, value);
+			if (value instanceof Double && (((Double) value).isNaN() || ((Double) value).isInfinite())) {
+				log.warn("Discarding non-numeric value {} of metric {}", value, name);
+				if (metrics != null) {
+					metrics.rowDiscarded();
 				}
+				return;
+			}
 
-				for (String tag : tags) {
-					String tagValue = get(tag, String.class, data, false);
-					metric.addTag(tag, tagValue);
+			Object timestamp = timestampPosition == -1 ? null : data[timestampPosition];
+
+			for (int i = 0; i < tagPositions.length; i++) {
+				tagValues[i] = tagPositions[i] == -1 ? null : (String) data[tagPositions[i]];
+			}
+
+			long time = timestamp == null ? System.currentTimeMillis() : ((Number) timestamp).longValue();
+			if (duplicateFilter != null && duplicateFilter.isDuplicate(name, time, value, tagValues)) {
+				if (metrics != null) {
+					metrics.duplicateSuppressed();
 				}
+				return;
+			}
+			if (rollup != null && value instanceof Number) {
+				stage(name, time, ((Number) value).doubleValue(), tagValues, metrics);
+				if (!rollup.isRawPointsKept()) {
+					return;
+				}
+			}
+			if (compressor != null && value instanceof Number) {
+				int written = compressor.offer(name, tagValues, time, (Number) value, this);
+				if (metrics != null) {
+					metrics.compressed(written);
+				}
+				return;
+			}
+			write(name, time, value, tagValues);
+		}
+
+		@Override
+		public ReadingProcess retrieveGeneratedKeys() {
+			return null;
+		}
+	}
+
+	/**
+	 * Accumulates the data points of a batch and pushes them through the REST API of KairosDB. A batch is pushed when
+	 * uniVocity closes this process, or before that if it reaches the maximum number of data points or bytes per push,
+	 * or if it waits for longer than the maximum linger time (see {@link KairosDataStoreConfiguration}).
+	 */
+	private class HttpWritingProcess extends KairosWritingProcess implements KairosDataStore.LingeringBatch {
+
+		private final int maxDataPoints = dataStore.getConfiguration().getMaxDataPointsPerPush();
+		private final int maxBytes = dataStore.getConfiguration().getMaxBytesPerPush();
+		// one batch for each KairosDB node, created when the first data point routed to the node is written.
+		private final JsonBatch[] batches = new JsonBatch[dataStore.getNodeCount()];
+		private RuntimeException lingerError;
+
+		HttpWritingProcess(String[] fieldNames) {
+			super(fieldNames);
+		}
+
+		@Override
+		public synchronized void close() {
+			dataStore.unwatch(this);
+			for (int node = 0; node < batches.length; node++) {
+				push(node);
+			}
+		}
+
+		@Override
+		public synchronized void write(String name, long timestamp, Object value, String[] tagValues) {
+			rethrowLingerError();
+			int node = dataStore.route(name);
+			JsonBatch batch = batches[node];
+			if (batch == null) {
+				batch = batches[node] = dataStore.newBatch();
+				dataStore.watch(this);
+			}
+			batch.add(name, timestamp, value, tagNames, tagValues);
+			if (batch.size() >= maxDataPoints || batch.estimatedLength() >= maxBytes) {
+				push(node);
 			}
+		}
 
-			private <T> T get(String field, Class<T> type, Object[] data, boolean mandatory) {
-				Integer position = fieldPositions.get(field);
-				if (position == null) {
-					if (mandatory) {
-						throw new IllegalStateException("Mandatory field '" + field + "' not mapped.");
-					} else {
-						return null;
+		@Override
+		public synchronized void pushIfOlderThan(long time) {
+			for (int node = 0; node < batches.length; node++) {
+				if (batches[node] != null && batches[node].size() > 0 && batches[node].getCreationTime() <= time) {
+					try {
+						push(node);
+					} catch (RuntimeException e) {
+						// reported to uniVocity on the next write, or when this process is closed.
+						lingerError = e;
 					}
 				}
-				Object value = data[position.intValue()];
-				return type.cast(value);
 			}
+		}
+
+		private void rethrowLingerError() {
+			if (lingerError != null) {
+				RuntimeException error = lingerError;
+				lingerError = null;
+				throw error;
+			}
+		}
 
-			@Override
-			public ReadingProcess retrieveGeneratedKeys() {
-				return null;
+		private void push(int node) {
+			rethrowLingerError();
+			// the batch may be pushed asynchronously, so a new batch is used for any subsequent rows.
+			JsonBatch complete = batches[node];
+			if (complete != null) {
+				batches[node] = null;
+				dataStore.pushBatch(KairosDataEntity.this, complete, node);
 			}
-		};
+		}
+	}
+
+	/**
+	 * Writes each data point straight into the buffer of the telnet connection to KairosDB.
+	 */
+	private class TelnetWritingProcess extends KairosWritingProcess {
+
+		private final TelnetConnection connection = dataStore.getTelnetConnection();
+
+		TelnetWritingProcess(String[] fieldNames) {
+			super(fieldNames);
+		}
+
+		@Override
+		public void close() {
+			connection.flush();
+		}
+
+		@Override
+		public void write(String name, long timestamp, Object value, String[] tagValues) {
+			connection.put(name, timestamp, value, tagNames, tagValues);
+		}
 	}
 
 	@Override
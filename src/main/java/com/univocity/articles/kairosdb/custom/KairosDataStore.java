@@ -6,15 +6,19 @@
 package com.univocity.articles.kairosdb.custom;
 
 import java.io.*;
+import java.net.*;
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.regex.*;
 
-import org.kairosdb.client.*;
-import org.kairosdb.client.builder.*;
+import org.kairosdb.client.builder.QueryBuilder;
 import org.kairosdb.client.response.*;
 import org.slf4j.*;
 
 import com.univocity.api.entity.custom.*;
+import com.univocity.articles.kairosdb.metrics.*;
 
 /**
  * This {@link CustomDataStore} demonstrates how you can implement your own data store for
@@ -27,21 +31,313 @@ class KairosDataStore implements CustomDataStore<KairosDataEntity> {
 
 	private static final Logger log = LoggerFactory.getLogger(KairosDataStore.class);
 
+	private static final int INITIAL_BATCH_CAPACITY = 64 * 1024;
+
+	private static final String[] METRICS_TAG_NAMES = { "host" };
+
 	private final Set<KairosDataEntity> entities = new HashSet<KairosDataEntity>();
 
+	private final Map<String, KairosQuery> queries = new LinkedHashMap<String, KairosQuery>();
+	private final QueryCache queryCache;
+
 	private final KairosDataStoreConfiguration configuration;
 
-	private HttpClient activeClient;
+	private final KairosPipeline pipeline;
+	private final boolean sharedPipeline;
+	private final KairosNode[] nodes;
+	private final KairosRing ring;
+	// the pushes of this data store to each node.
+	private final KairosPushQueue.Lane[] lanes;
+	private final AtomicInteger nextNode = new AtomicInteger();
+
+	private final BlockingQueue<JsonBatch> batchPool;
+	// ids of the series written into batches, so they remain the same from one batch to the next.
+	private final SeriesDictionary batchSeries;
+
+	private final Set<LingeringBatch> lingeringBatches = Collections.newSetFromMap(new ConcurrentHashMap<LingeringBatch, Boolean>());
+	private final ScheduledExecutorService lingerMonitor;
+
+	private final LoadMetrics metrics;
+	private final ScheduledExecutorService metricsReporter;
+	private String[] metricsTagValues;
+
+	private final DuplicateFilter duplicateFilter;
+
+	private final KairosSpool spool;
+	private final Thread spoolDrainer;
+
+	private TelnetConnection telnetConnection;
+	private boolean shutdown;
 
 	//Creates a new custom data store and initializes custom entities based on our own configuration class.
 	public KairosDataStore(KairosDataStoreConfiguration configuration) {
 		this.configuration = configuration;
+		this.sharedPipeline = configuration.getPipeline() != null;
+		this.pipeline = sharedPipeline ? configuration.getPipeline() : new KairosPipeline(configuration);
+		this.nodes = pipeline.getNodes();
+		this.ring = pipeline.getRing();
+		this.lanes = createLanes();
+		// for each node, one batch being written, plus all batches that can be queued or in flight.
+		this.batchPool = new ArrayBlockingQueue<JsonBatch>(nodes.length * (configuration.getMaxConcurrentPushes() + configuration.getPushQueueSize() + 1));
+		this.batchSeries = new SeriesDictionary(configuration.getMaxSeries());
+		this.lingerMonitor = createLingerMonitor();
+		this.queryCache = configuration.getQueryCacheSize() > 0 ? new QueryCache(configuration.getQueryCacheSize()) : null;
+		this.metrics = configuration.getMetrics();
+		this.metricsReporter = createMetricsReporter();
+		this.duplicateFilter = configuration.getDuplicateWindow() > 0 ? new DuplicateFilter(configuration.getDuplicateWindow(), configuration.getDuplicateFilterCapacity()) : null;
+		this.spool = openSpool();
+		this.spoolDrainer = spool == null ? null : startSpoolDrainer();
 		createEntities();
 	}
 
+	private KairosPushQueue.Lane[] createLanes() {
+		KairosPushQueue.Lane[] out = new KairosPushQueue.Lane[nodes.length];
+		for (int i = 0; i < out.length; i++) {
+			out[i] = nodes[i].getPushQueue().newLane();
+		}
+		return out;
+	}
+
+	/**
+	 * Returns the number of KairosDB nodes data points are distributed to
+	 *
+	 * @return the number of nodes.
+	 */
+	int getNodeCount() {
+		return nodes.length;
+	}
+
+	/**
+	 * Returns the node that should receive the data points of a metric: the node assigned to its name, or the next
+	 * healthy node if the assigned one failed.
+	 *
+	 * @param metricName the name of the metric
+	 * @return the index of the node that should receive the data points.
+	 */
+	int route(String metricName) {
+		return ring == null ? 0 : ring.route(metricName, nodes);
+	}
+
+	/**
+	 * Returns any healthy node, in turns, for requests that are not bound to a node.
+	 *
+	 * @return the index of a healthy node, or of any node if none is healthy.
+	 */
+	private int anyNode() {
+		int start = (nextNode.getAndIncrement() & Integer.MAX_VALUE) % nodes.length;
+		for (int i = 0; i < nodes.length; i++) {
+			int node = (start + i) % nodes.length;
+			if (nodes[node].isAvailable()) {
+				return node;
+			}
+		}
+		return start;
+	}
+
+	/**
+	 * Batches being written are pushed when they are complete, when they get too big, or when they wait for longer than
+	 * the maximum linger time. The last condition is checked periodically by this monitor, so data gets
+	 * delivered to KairosDB even if the source is producing rows slowly.
+	 */
+	private ScheduledExecutorService createLingerMonitor() {
+		final long maxLinger = configuration.getMaxLinger();
+		if (maxLinger <= 0) {
+			return null;
+		}
+		ScheduledExecutorService monitor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "kairos-linger-" + configuration.getDataStoreName());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		long interval = Math.max(10L, maxLinger / 4);
+		monitor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				long expired = System.currentTimeMillis() - maxLinger;
+				for (LingeringBatch batch : lingeringBatches) {
+					batch.pushIfOlderThan(expired);
+				}
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
+		return monitor;
+	}
+
+	/**
+	 * Metrics are reported periodically, in a thread of their own, straight to KairosDB. Reports don't go through the push
+	 * queue, so a failed report doesn't fail the transaction writing data.
+	 */
+	private ScheduledExecutorService createMetricsReporter() {
+		long interval = configuration.getMetricsReportInterval();
+		if (metrics == null || interval <= 0) {
+			return null;
+		}
+		metricsTagValues = new String[] { getHostName() };
+		ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "kairos-metrics-" + configuration.getDataStoreName());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		reporter.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				reportMetrics();
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
+		return reporter;
+	}
+
+	private static String getHostName() {
+		try {
+			return InetAddress.getLocalHost().getHostName();
+		} catch (UnknownHostException e) {
+			return "unknown";
+		}
+	}
+
+	/**
+	 * Pushes the current value of all metrics in a single batch. KairosDB requires at least one tag per data point, so
+	 * all are tagged with the host name.
+	 */
+	private void reportMetrics() {
+		JsonBatch batch = newBatch();
+		try {
+			long now = System.currentTimeMillis();
+			String prefix = configuration.getMetricsPrefix() + ".";
+			for (Entry<String, Number> e : metrics.snapshot().entrySet()) {
+				batch.add(prefix + e.getKey(), now, e.getValue(), METRICS_TAG_NAMES, metricsTagValues);
+			}
+			send(anyNode(), "KairosDB (" + configuration.getDataStoreName() + ") metrics", batch.getBytes(), batch.length(), batch.size());
+		} catch (Exception e) {
+			log.warn("Unable to report metrics to KairosDB " + configuration.getUrls(), e);
+		} finally {
+			recycle(batch);
+		}
+	}
+
+	private KairosSpool openSpool() {
+		File directory = configuration.getSpoolDirectory();
+		if (directory == null) {
+			return null;
+		}
+		try {
+			return new KairosSpool(directory, configuration.getSpoolSegmentSize(), configuration.getSpoolMaxSize());
+		} catch (IOException e) {
+			throw new IllegalStateException("Unable to open spool of KairosDB data store " + configuration.getDataStoreName() + " in " + directory.getAbsolutePath(), e);
+		}
+	}
+
+	/**
+	 * Spooled batches are replayed in a thread of their own, one at a time. While KairosDB is unavailable, the time
+	 * between attempts doubles after each failure, up to the maximum retry delay.
+	 */
+	private Thread startSpoolDrainer() {
+		Thread drainer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				drainSpool();
+			}
+		}, "kairos-spool-" + configuration.getDataStoreName());
+		drainer.setDaemon(true);
+		drainer.start();
+		return drainer;
+	}
+
+	private void drainSpool() {
+		long delay = configuration.getSpoolRetryDelay();
+		while (!Thread.currentThread().isInterrupted()) {
+			try {
+				byte[] batch = spool.peek(1000L);
+				if (batch == null) {
+					continue;
+				}
+				Response response = send(anyNode(), "KairosDB (" + configuration.getDataStoreName() + ") spool", batch, batch.length, 0);
+				if (response.getStatusCode() >= 500) {
+					throw new IOException("KairosDB responded with HTTP status " + response.getStatusCode() + ": " + response.getErrors());
+				}
+				if (!response.getErrors().isEmpty()) {
+					// replaying a batch KairosDB doesn't accept would block the spool forever.
+					log.warn("Discarding spooled batch rejected by KairosDB: {}", response.getErrors());
+				}
+				spool.remove();
+				if (metrics != null) {
+					metrics.batchReplayed();
+				}
+				delay = configuration.getSpoolRetryDelay();
+			} catch (InterruptedException e) {
+				break;
+			} catch (Exception e) {
+				log.warn("Unable to replay spooled batch to KairosDB. Retrying in {} ms. Cause: {}", delay, e.toString());
+				try {
+					Thread.sleep(delay);
+				} catch (InterruptedException ie) {
+					break;
+				}
+				delay = Math.min(delay * 2, configuration.getSpoolMaxRetryDelay());
+			}
+		}
+	}
+
+	/**
+	 * Appends a batch to the spool, to be replayed later.
+	 *
+	 * @return {@code true} if the batch was spooled, or {@code false} if it can't be spooled.
+	 */
+	private boolean spoolBatch(JsonBatch batch) {
+		try {
+			if (spool.append(batch.getBytes(), batch.length())) {
+				if (metrics != null) {
+					metrics.batchSpooled();
+				}
+				return true;
+			}
+			log.warn("Unable to spool batch of {} data points: {} is full", batch.size(), spool);
+		} catch (Exception e) {
+			log.error("Unable to spool batch of " + batch.size() + " data points in " + spool, e);
+		}
+		return false;
+	}
+
+	/**
+	 * A batch being written, which must be pushed if it is kept waiting for too long.
+	 */
+	interface LingeringBatch {
+		/**
+		 * Pushes the batch if its first data point was written before the given time
+		 *
+		 * @param time the time limit, in milliseconds.
+		 */
+		void pushIfOlderThan(long time);
+	}
+
+	/**
+	 * Starts monitoring a batch so it is pushed once the maximum linger time elapses.
+	 *
+	 * @param batch the batch being written.
+	 */
+	void watch(LingeringBatch batch) {
+		if (lingerMonitor != null) {
+			lingeringBatches.add(batch);
+		}
+	}
+
+	/**
+	 * Stops monitoring a batch.
+	 *
+	 * @param batch a batch that is no longer being written.
+	 */
+	void unwatch(LingeringBatch batch) {
+		lingeringBatches.remove(batch);
+	}
+
 	private void createEntities() {
 		for (Entry<String, String[]> e : configuration.entities.entrySet()) {
-			entities.add(new KairosDataEntity(this, e.getKey(), e.getValue()));
+			entities.add(new KairosDataEntity(this, e.getKey(), configuration.rollups.get(e.getKey()), e.getValue()));
 		}
 	}
 
@@ -52,56 +348,434 @@ class KairosDataStore implements CustomDataStore<KairosDataEntity> {
 
 	@Override
 	public Set<? extends CustomQuery> getQueries() {
-		return Collections.emptySet();
+		return new LinkedHashSet<KairosQuery>(queries.values());
 	}
 
+	/**
+	 * Adds a named query that reads (and optionally aggregates) data points from KairosDB. See {@link KairosQuery} for the syntax.
+	 *
+	 * @param queryName the name of the query
+	 * @param query the query definition.
+	 * @return the new query.
+	 */
 	@Override
 	public CustomQuery addQuery(String queryName, String query) {
-		return null;
+		KairosQuery out = new KairosQuery(this, queryName, query);
+		queries.put(queryName, out);
+		return out;
 	}
 
-	@Override
-	public void executeInTransaction(TransactionalOperation operation) {
-		if (activeClient == null) {
+	/**
+	 * Returns the filter of duplicate data points
+	 *
+	 * @return the duplicate filter, or {@code null} if duplicates are not filtered.
+	 */
+	DuplicateFilter getDuplicateFilter() {
+		return duplicateFilter;
+	}
+
+	/**
+	 * Returns the cache of query results
+	 *
+	 * @return the query cache, or {@code null} if caching is disabled.
+	 */
+	QueryCache getQueryCache() {
+		return queryCache;
+	}
+
+	/**
+	 * Returns the client used to communicate with a KairosDB node. Clients are created on first use and kept open, with their pool
+	 * of persistent connections, until this data store is shut down.
+	 *
+	 * @param node the index of the node
+	 * @return the client of the node.
+	 */
+	private synchronized PooledHttpClient getClient(int node) {
+		if (shutdown) {
+			throw new IllegalStateException("KairosDB data store " + configuration.getDataStoreName() + " has been shut down");
+		}
+		return nodes[node].getClient();
+	}
+
+	/**
+	 * Returns the persistent telnet connection to KairosDB, used when the transport is {@link KairosTransport#TELNET}.
+	 * The connection is created on first use and kept open until this data store is shut down.
+	 *
+	 * @return the telnet connection to KairosDB.
+	 */
+	synchronized TelnetConnection getTelnetConnection() {
+		if (shutdown) {
+			throw new IllegalStateException("KairosDB data store " + configuration.getDataStoreName() + " has been shut down");
+		}
+		if (telnetConnection == null) {
 			try {
-				activeClient = new HttpClient(configuration.getUrl());
-			} catch (Exception e) {
+				telnetConnection = new TelnetConnection(new URL(configuration.getUrl()).getHost(), configuration);
+			} catch (MalformedURLException e) {
 				throw new IllegalStateException("Unable to connect to KairosDB using URL: " + configuration.getUrl(), e);
 			}
 		}
+		return telnetConnection;
+	}
+
+	@Override
+	public void executeInTransaction(final TransactionalOperation operation) {
+		boolean completed = false;
+		try {
+			execute(new TransactionalOperation() {
+				@Override
+				public void execute() {
+					operation.execute();
+					// data points held by compressors are part of the transaction: the rows they come from are processed once it completes.
+					for (KairosDataEntity entity : entities) {
+						entity.writeHeldDataPoints();
+					}
+				}
+			});
+			completed = true;
+		} finally {
+			if (!completed && duplicateFilter != null) {
+				// data points written in a failed transaction may not have reached KairosDB, so they must be accepted when written again.
+				duplicateFilter.clear();
+			}
+			for (KairosDataEntity entity : entities) {
+				entity.endTransaction(completed);
+			}
+		}
+		writeRollups();
+	}
+
+	private void execute(TransactionalOperation operation) {
+		if (configuration.getTransport() == KairosTransport.TELNET) {
+			executeInTelnetTransaction(operation);
+		} else {
+			executeInHttpTransaction(operation);
+		}
+	}
+
+	/**
+	 * Writes the rollup metrics of buckets closed by the last transaction, or by previous transactions if they could not
+	 * be written then. Errors are logged instead of thrown: the data points aggregated in the buckets have been written
+	 * already, and must not be read again.
+	 */
+	private void writeRollups() {
+		for (final KairosDataEntity entity : entities) {
+			Rollup rollup = entity.getRollup();
+			if (rollup == null) {
+				continue;
+			}
+			// holds the buckets of data stores that share the rollup until they reach KairosDB.
+			synchronized (rollup) {
+				if (rollup.hasClosedBuckets()) {
+					try {
+						execute(new TransactionalOperation() {
+							@Override
+							public void execute() {
+								entity.writeRollups();
+							}
+						});
+						rollup.clearClosedBuckets();
+					} catch (RuntimeException e) {
+						log.warn("Unable to write rollup metrics of entity '" + entity.getEntityName() + "' into KairosDB. Retrying after the next transaction", e);
+					}
+				}
+			}
+		}
+	}
+
+	private void executeInHttpTransaction(TransactionalOperation operation) {
+		for (int i = 0; i < nodes.length; i++) {
+			getClient(i);
+		}
+
+		boolean executed = false;
 		try {
 			//operation will come from within uniVocity and is basically some processes around the the WritingProcess we created in KairosDataEntity.prepareToWrite()
 			operation.execute();
+			executed = true;
 		} finally {
+			//batches may still be travelling to KairosDB. The transaction only completes when all of them have been pushed.
+			Throwable pushError = null;
+			for (KairosPushQueue.Lane lane : lanes) {
+				Throwable error = lane.awaitCompletion();
+				if (pushError == null) {
+					pushError = error;
+				}
+			}
+			if (spool != null) {
+				// spooled batches must survive a crash once the transaction is complete.
+				spool.sync();
+			}
+			if (executed && pushError != null) {
+				throw new IllegalStateException("Unable to push metrics to KairosDB " + configuration.getUrls(), pushError);
+			}
+		}
+	}
+
+	private void executeInTelnetTransaction(TransactionalOperation operation) {
+		TelnetConnection connection = getTelnetConnection();
+		operation.execute();
+		//makes sure everything written in this transaction has been sent before completing
+		connection.flush();
+	}
+
+	/**
+	 * Waits for pending pushes to complete and closes all connections to KairosDB. This data store can't be used afterwards.
+	 */
+	void shutdown() {
+		writeHeldDataPoints();
+		if (lingerMonitor != null) {
+			lingerMonitor.shutdownNow();
+		}
+		if (metricsReporter != null) {
+			metricsReporter.shutdownNow();
+		}
+		if (sharedPipeline) {
+			// the pipeline is shut down by its owner, once all data stores that use it are shut down.
+			for (KairosPushQueue.Lane lane : lanes) {
+				lane.awaitCompletion();
+			}
+		} else {
+			//pushers need the clients, so let them finish before closing them.
+			for (KairosNode node : nodes) {
+				node.getPushQueue().shutdown();
+			}
+		}
+		if (spoolDrainer != null) {
+			// anything not replayed yet stays in the spool for the next time.
+			spoolDrainer.interrupt();
+			try {
+				spoolDrainer.join(configuration.getReadTimeout());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			spool.close();
+		}
+
+		synchronized (this) {
+			if (shutdown) {
+				return;
+			}
+			if (metricsReporter != null) {
+				// last report, including the pushes made since the previous one.
+				reportMetrics();
+			}
+			shutdown = true;
+			if (!sharedPipeline) {
+				pipeline.shutdown();
+			}
 			try {
-				if (activeClient != null) {
-					activeClient.shutdown();
+				if (telnetConnection != null) {
+					telnetConnection.close();
 				}
-			} catch (IOException e) {
-				log.error("Unexpected error shutting down connection to KairosDB", e);
+			} catch (Exception e) {
+				log.error("Unexpected error shutting down telnet connection to KairosDB", e);
+			} finally {
+				telnetConnection = null;
+			}
+		}
+	}
+
+	/**
+	 * Writes data points still held by compressors, e.g. when shutting down in the middle of a transaction.
+	 */
+	private void writeHeldDataPoints() {
+		for (KairosDataEntity entity : entities) {
+			if (entity.hasHeldDataPoints()) {
+				try {
+					executeInTransaction(new TransactionalOperation() {
+						@Override
+						public void execute() {
+						}
+					});
+				} catch (RuntimeException e) {
+					log.warn("Unable to write data points held by compressors into KairosDB", e);
+				}
+				return;
 			}
 		}
 	}
 
 	private String describeMe(KairosDataEntity entity) {
-		return "KairosDB (" + configuration.getDataStoreName() + " - " + configuration.getUrl() + " through " + entity.getEntityName();
+		return "KairosDB (" + configuration.getDataStoreName() + ") through " + entity.getEntityName();
 	}
 
-	void pushMetrics(KairosDataEntity entity, MetricBuilder builder) {
-		try {
-			Response response = activeClient.pushMetrics(builder);
-			if (response != null) {
-				for (String error : response.getErrors()) {
-					log.warn("Error pushing metrics to KairosDB {}: {}", describeMe(entity), error);
+	/**
+	 * Returns an empty batch to encode data points into. Batches are recycled after being pushed, so the memory used to
+	 * encode their content is reused.
+	 *
+	 * @return an empty batch.
+	 */
+	JsonBatch newBatch() {
+		JsonBatch batch = batchPool.poll();
+		if (batch == null) {
+			batch = new JsonBatch(INITIAL_BATCH_CAPACITY, batchSeries);
+		}
+		return batch;
+	}
+
+	private void recycle(JsonBatch batch) {
+		batch.clear();
+		batchPool.offer(batch);
+	}
+
+	/**
+	 * Pushes a complete batch of data points to a KairosDB node. If asynchronous pushes are enabled, the batch is queued and this method
+	 * returns immediately, unless the queue of the node is full. Errors are reported by {@link #executeInTransaction(TransactionalOperation)}
+	 *
+	 * @param entity the entity that produced the data points
+	 * @param batch the batch of data points to push. It must not be modified after calling this method.
+	 * @param node the index of the node to push the batch to (see {@link #route(String)}).
+	 */
+	void pushBatch(final KairosDataEntity entity, final JsonBatch batch, final int node) {
+		if (batch.size() == 0) {
+			recycle(batch);
+			return;
+		}
+		Runnable push = new Runnable() {
+			@Override
+			public void run() {
+				long start = System.currentTimeMillis();
+				boolean accepted = false;
+				try {
+					if (log.isDebugEnabled()) {
+						log.debug("Pushing {} data points of {} series to {} ({} bytes)", new Object[] { batch.size(), batch.seriesCount(), describeMe(entity), batch.length() });
+					}
+					Response response;
+					try {
+						response = send(node, describeMe(entity), batch.getBytes(), batch.length(), batch.size());
+					} catch (RuntimeException e) {
+						if (spool != null && spoolBatch(batch)) {
+							log.warn("Spooled batch of {} data points after failing to push to {}: {}", new Object[] { batch.size(), describeMe(entity), e.toString() });
+							return;
+						}
+						throw e;
+					}
+					accepted = response.getErrors().isEmpty();
+					// KairosDB accepts the batch once it is back. Other errors are logged by send.
+					if (response.getStatusCode() >= 500 && spool != null && !spoolBatch(batch)) {
+						throw new IllegalStateException("Unable to push metrics to " + describeMe(entity) + ". KairosDB responded with HTTP status " + response.getStatusCode() + ": " + response.getErrors());
+					}
+				} finally {
+					if (metrics != null) {
+						metrics.pushed(batch.size(), batch.length(), System.currentTimeMillis() - start, accepted);
+					}
+					recycle(batch);
+				}
+			}
+		};
+
+		KairosPushQueue.Lane pushQueue = lanes[node];
+		if (spool == null) {
+			pushQueue.submit(push);
+			return;
+		}
+		// batches are pushed through the lane of their node even while the spool is being replayed, so the drainer
+		// doesn't become the only way to KairosDB.
+		if (!pushQueue.trySubmit(push, configuration.getSpoolQueueTimeout())) {
+			// pushes are falling behind: let the extraction proceed and push the batch later.
+			if (spoolBatch(batch)) {
+				recycle(batch);
+			} else {
+				pushQueue.submit(push);
+			}
+		}
+	}
+
+	/**
+	 * Sends data points to a KairosDB node. If the node fails (with an I/O error or an HTTP 5xx status), it's marked as
+	 * unavailable and the data points are sent to the next healthy nodes, until one of them succeeds.
+	 *
+	 * @param node the index of the first node to try
+	 * @param description a description of where the data points are going, for logging.
+	 * @param bytes the JSON array of metrics to send
+	 * @param length the number of bytes to send
+	 * @param dataPoints the number of data points sent, for the metrics of each node. 0 if unknown.
+	 * @return the response of the last node tried, with any errors it reported.
+	 */
+	private Response send(int node, String description, byte[] bytes, int length, int dataPoints) {
+		Response response = null;
+		RuntimeException error = null;
+		for (int i = 0; i < nodes.length; i++) {
+			KairosNode target = nodes[(node + i) % nodes.length];
+			if (i > 0 && !target.isAvailable()) {
+				continue;
+			}
+			try {
+				response = getClient((node + i) % nodes.length).pushBytes(bytes, length);
+			} catch (IOException e) {
+				target.failed(e.toString());
+				if (metrics != null) {
+					metrics.nodePushed(target.getUrl(), 0, 0, false);
 				}
+				error = new IllegalStateException("Unable to push metrics to " + description + " through node " + target.getUrl(), e);
+				continue;
 			}
+			boolean accepted = response.getErrors().isEmpty();
+			if (metrics != null) {
+				metrics.nodePushed(target.getUrl(), accepted ? dataPoints : 0, accepted ? length : 0, accepted);
+			}
+			if (response.getStatusCode() >= 500) {
+				target.failed("HTTP status " + response.getStatusCode() + " " + response.getErrors());
+				continue;
+			}
+			target.succeeded();
+			break;
+		}
+		if (response == null) {
+			throw error;
+		}
+		for (String e : response.getErrors()) {
+			log.warn("Error pushing metrics to {}: {}", description, e);
+		}
+		return response;
+	}
+
+	/**
+	 * Executes a query against KairosDB, using the pooled connections of this data store.
+	 *
+	 * @param query the query to execute
+	 * @return the response of KairosDB.
+	 */
+	QueryResponse query(QueryBuilder query) {
+		try {
+			return getClient(anyNode()).query(query);
 		} catch (Exception e) {
-			throw new IllegalStateException("Unable to push metrics to KairoDB " + describeMe(entity), e);
+			throw new IllegalStateException("Unable to query KairosDB " + configuration.getUrls(), e);
+		}
+	}
+
+	/**
+	 * Returns the names of the metrics stored in KairosDB that match a regular expression.
+	 *
+	 * @param pattern the pattern of metric names to read, or {@code null} to read all metrics.
+	 * @return the names of the metrics to read.
+	 */
+	List<String> getMetricNamesToRead(String pattern) {
+		GetResponse response;
+		try {
+			response = getClient(anyNode()).getMetricNames();
+		} catch (Exception e) {
+			throw new IllegalStateException("Unable to list metric names in KairosDB " + configuration.getUrls(), e);
+		}
+		if (!response.getErrors().isEmpty()) {
+			throw new IllegalStateException("Unable to list metric names in KairosDB " + configuration.getUrls() + ": " + response.getErrors());
+		}
+
+		if (pattern == null) {
+			return response.getResults();
+		}
+		Matcher matcher = Pattern.compile(pattern).matcher("");
+		List<String> out = new ArrayList<String>();
+		for (String name : response.getResults()) {
+			if (matcher.reset(name).matches()) {
+				out.add(name);
+			}
 		}
+		return out;
 	}
 
 	@Override
-	public DataStoreConfiguration getConfiguration() {
+	public KairosDataStoreConfiguration getConfiguration() {
 		return configuration;
 	}
 
@@ -5,11 +5,14 @@
  ******************************************************************************/
 package com.univocity.articles.kairosdb.custom;
 
+import java.io.*;
 import java.util.*;
+import java.util.regex.*;
 
 import org.apache.commons.lang.*;
 
 import com.univocity.api.entity.custom.*;
+import com.univocity.articles.kairosdb.metrics.*;
 
 /**
  * This is a configuration class for our custom data store {@link KairosDataStore}.
@@ -20,31 +23,992 @@ import com.univocity.api.entity.custom.*;
  */
 public class KairosDataStoreConfiguration extends DataStoreConfiguration {
 
-	private String url;
+	private final List<String> urls = new ArrayList<String>();
+	private long nodeRetryDelay = 30000L;
+	private KairosPipeline pipeline;
+
+	private int limitOfRowsLoadedInMemory = 100;
+
+	private int maxDataPointsPerPush = 10000;
+	private int maxBytesPerPush = 2 * 1024 * 1024;
+	private int maxSeries = 100000;
+	private long maxLinger = 5000L;
+
+	private int maxConcurrentPushes = 0;
+	private int pushQueueSize = 2;
+
+	private int maxConnections = 4;
+	private long connectionIdleTimeout = 30000L;
+	private int connectTimeout = 5000;
+	private int readTimeout = 60000;
+
+	private KairosTransport transport = KairosTransport.HTTP;
+	private int telnetPort = 4242;
+	private int telnetBufferSize = 64 * 1024;
+	private long telnetFlushInterval = 1000L;
+
+	private long readStart = -1L;
+	private long readEnd = 0L;
+	private long readChunkSize = 60 * 60 * 1000L;
+	private int readParallelism = 4;
+	private String readMetricPattern;
+	private int queryCacheSize = 256;
+	private long querySettleDelay = 60 * 60 * 1000L;
+
+	private LoadMetrics metrics;
+	private long metricsReportInterval = 0L;
+	private String metricsPrefix = "kairosdb.loader";
+
+	private File spoolDirectory;
+	private int spoolSegmentSize = 64 * 1024 * 1024;
+	private long spoolMaxSize = 1024 * 1024 * 1024L;
+	private long spoolRetryDelay = 1000L;
+	private long spoolMaxRetryDelay = 60000L;
+	private long spoolQueueTimeout = 5000L;
+
+	private long duplicateWindow = 0L;
+	private int duplicateFilterCapacity = 512 * 1024;
+
+	private CompressionMode compressionMode = CompressionMode.NONE;
+	private double compressionTolerance = 0.0;
+	private long compressionHeartbeat = 15 * 60 * 1000L;
+	private int compressionMaxSeries = 128 * 1024;
 
 	final Map<String, String[]> entities = new HashMap<String, String[]>();
+	final Map<String, Rollup> rollups = new HashMap<String, Rollup>();
 
 	public KairosDataStoreConfiguration(String dataStoreName, String url) {
 		super(dataStoreName);
+		addUrl(url);
+	}
+
+	/**
+	 * Adds the URL of another node of a KairosDB cluster. Data points are distributed among all nodes: each metric is
+	 * written into the node assigned to its name through consistent hashing, and each node gets its own pushers and connections,
+	 * as configured by {@link #setMaxConcurrentPushes(int)}, {@link #setPushQueueSize(int)} and {@link #setMaxConnections(int)}.
+	 * If a node fails, its metrics are written into the next healthy nodes until it recovers (see {@link #setNodeRetryDelay(long)}).
+	 *
+	 * Queries are executed against any healthy node. The telnet transport only uses the first node.
+	 *
+	 * @param url the URL of a KairosDB node.
+	 */
+	public void addUrl(String url) {
 		if (StringUtils.isBlank(url)) {
 			throw new IllegalArgumentException("KairosDB connection URL cannot be null.");
 		}
-		this.url = url;
+		if (urls.contains(url)) {
+			throw new IllegalArgumentException("Duplicate KairosDB connection URL: " + url);
+		}
+		urls.add(url);
 	}
 
 	public void addEntity(String entityName, String... tags) {
 		entities.put(entityName, tags);
+		rollups.remove(entityName);
 	}
 
 	/**
-	 * We don't really care about the number of rows to load in memory in the example, as we are just inserting data
+	 * Adds an entity whose numeric data points are also downsampled into rollup metrics, such as {@code <name>.1m.avg}.
+	 * See {@link Rollup} for details.
+	 *
+	 * @param entityName the name of the entity
+	 * @param rollup the rollup of the data points written into the entity. Share the same instance among configurations
+	 *        of data stores that write the same series in parallel.
+	 * @param tags the tags of the entity.
+	 */
+	public void addEntity(String entityName, Rollup rollup, String... tags) {
+		if (rollup == null) {
+			throw new IllegalArgumentException("Rollup of entity '" + entityName + "' cannot be null");
+		}
+		entities.put(entityName, tags);
+		rollups.put(entityName, rollup);
+	}
+
+	/**
+	 * The number of rows uniVocity will hold in memory when reading from KairosDB. Batches written into KairosDB are
+	 * controlled by {@link #getMaxDataPointsPerPush()}, {@link #getMaxBytesPerPush()} and {@link #getMaxLinger()}.
 	 */
 	@Override
 	public int getLimitOfRowsLoadedInMemory() {
-		return 100;
+		return limitOfRowsLoadedInMemory;
+	}
+
+	/**
+	 * Defines the number of rows uniVocity will hold in memory when reading from KairosDB. Defaults to 100.
+	 *
+	 * @param limitOfRowsLoadedInMemory the number of rows to hold in memory.
+	 */
+	public void setLimitOfRowsLoadedInMemory(int limitOfRowsLoadedInMemory) {
+		if (limitOfRowsLoadedInMemory <= 0) {
+			throw new IllegalArgumentException("Limit of rows loaded in memory must be positive");
+		}
+		this.limitOfRowsLoadedInMemory = limitOfRowsLoadedInMemory;
 	}
 
+	/**
+	 * Returns the URL of the first KairosDB node
+	 *
+	 * @return the URL given in the constructor.
+	 */
 	public String getUrl() {
-		return url;
+		return urls.get(0);
+	}
+
+	/**
+	 * Returns the URLs of all KairosDB nodes
+	 *
+	 * @return the URL given in the constructor, followed by any URLs added with {@link #addUrl(String)}.
+	 */
+	public List<String> getUrls() {
+		return Collections.unmodifiableList(urls);
+	}
+
+	/**
+	 * Returns the time a node that failed is avoided before being used again
+	 *
+	 * @return the node retry delay, in milliseconds.
+	 */
+	public long getNodeRetryDelay() {
+		return nodeRetryDelay;
+	}
+
+	/**
+	 * Defines the time a node that failed (with an I/O error or an HTTP 5xx status) is avoided before being used again.
+	 * During this time, the metrics assigned to the node are written into the next healthy nodes. Defaults to 30 seconds.
+	 *
+	 * @param nodeRetryDelay the node retry delay, in milliseconds.
+	 */
+	public void setNodeRetryDelay(long nodeRetryDelay) {
+		if (nodeRetryDelay <= 0) {
+			throw new IllegalArgumentException("Node retry delay must be positive");
+		}
+		this.nodeRetryDelay = nodeRetryDelay;
+	}
+
+	/**
+	 * Returns the pipeline shared with other data stores to push data points into KairosDB
+	 *
+	 * @return the shared pipeline, or {@code null} if the data store creates its own.
+	 */
+	public KairosPipeline getPipeline() {
+		return pipeline;
+	}
+
+	/**
+	 * Defines a pipeline, with the connections and pushers to KairosDB, shared with other data stores. Its pushers serve
+	 * the batches of each data store in turns. When a pipeline is given, its own settings define the nodes, connections and
+	 * concurrent pushes: the URLs, node retry delay, maximum number of connections, concurrent pushes and queued pushes,
+	 * and connection timeouts of this configuration are ignored. Queries also go through the pipeline. The telnet
+	 * transport doesn't use it. Defaults to {@code null}: each data store creates a pipeline of its own.
+	 *
+	 * @param pipeline the shared pipeline.
+	 */
+	public void setPipeline(KairosPipeline pipeline) {
+		this.pipeline = pipeline;
+	}
+
+	/**
+	 * Returns the maximum number of data points pushed to KairosDB in a single request.
+	 *
+	 * @return the maximum number of data points per push.
+	 */
+	public int getMaxDataPointsPerPush() {
+		return maxDataPointsPerPush;
+	}
+
+	/**
+	 * Defines the maximum number of data points pushed to KairosDB in a single request. Once a batch reaches this size,
+	 * it is pushed even if uniVocity is still writing. Defaults to 10,000.
+	 *
+	 * @param maxDataPointsPerPush the maximum number of data points per push.
+	 */
+	public void setMaxDataPointsPerPush(int maxDataPointsPerPush) {
+		if (maxDataPointsPerPush <= 0) {
+			throw new IllegalArgumentException("Maximum number of data points per push must be positive");
+		}
+		this.maxDataPointsPerPush = maxDataPointsPerPush;
+	}
+
+	/**
+	 * Returns the maximum size, in bytes, of the JSON content pushed to KairosDB in a single request.
+	 *
+	 * @return the maximum size of each push.
+	 */
+	public int getMaxBytesPerPush() {
+		return maxBytesPerPush;
+	}
+
+	/**
+	 * Defines the maximum size, in bytes, of the JSON content pushed to KairosDB in a single request. The size of a batch
+	 * is estimated as data points are added, and the batch is pushed as soon as the estimate reaches this limit.
+	 * Defaults to 2 MB.
+	 *
+	 * @param maxBytesPerPush the maximum size of each push.
+	 */
+	public void setMaxBytesPerPush(int maxBytesPerPush) {
+		if (maxBytesPerPush < 1024) {
+			throw new IllegalArgumentException("Maximum size of each push must be at least 1024 bytes");
+		}
+		this.maxBytesPerPush = maxBytesPerPush;
+	}
+
+	/**
+	 * Returns the number of series (metric name and tag values) whose ids are kept for batches
+	 *
+	 * @return the size of the dictionary of series shared by all batches.
+	 */
+	public int getMaxSeries() {
+		return maxSeries;
+	}
+
+	/**
+	 * Defines the number of series (metric name and tag values) whose ids are kept for batches. Series seen in previous
+	 * batches are added to new ones without allocating anything, as long as they are among the most recently used.
+	 * Batches with more series than this still work, but the data points of a series may be split in more than one
+	 * entry of the same batch. Defaults to 100000.
+	 *
+	 * @param maxSeries the size of the dictionary of series shared by all batches.
+	 */
+	public void setMaxSeries(int maxSeries) {
+		if (maxSeries <= 0) {
+			throw new IllegalArgumentException("Maximum number of series must be positive");
+		}
+		this.maxSeries = maxSeries;
+	}
+
+	/**
+	 * Returns the maximum time, in milliseconds, a data point can wait in an incomplete batch before being pushed.
+	 *
+	 * @return the maximum linger time of a batch, or 0 if batches are only pushed when full or complete.
+	 */
+	public long getMaxLinger() {
+		return maxLinger;
+	}
+
+	/**
+	 * Defines the maximum time, in milliseconds, a data point can wait in an incomplete batch before being pushed.
+	 * This bounds the delay to deliver data to KairosDB when the source is producing rows slowly. Use 0 to disable.
+	 * Defaults to 5 seconds.
+	 *
+	 * @param maxLinger the maximum linger time of a batch.
+	 */
+	public void setMaxLinger(long maxLinger) {
+		if (maxLinger < 0) {
+			throw new IllegalArgumentException("Maximum linger time cannot be negative");
+		}
+		this.maxLinger = maxLinger;
+	}
+
+	/**
+	 * Returns the maximum number of batches being pushed to KairosDB at the same time.
+	 * If 0, batches are pushed synchronously by the thread that produced them.
+	 *
+	 * @return the maximum number of concurrent pushes.
+	 */
+	public int getMaxConcurrentPushes() {
+		return maxConcurrentPushes;
+	}
+
+	/**
+	 * Defines the maximum number of batches being pushed to KairosDB at the same time. Any value greater than 0
+	 * enables asynchronous pushes: uniVocity will keep extracting the next batch while previous batches are pushed.
+	 * Defaults to 0 (synchronous pushes).
+	 *
+	 * @param maxConcurrentPushes the maximum number of concurrent pushes.
+	 */
+	public void setMaxConcurrentPushes(int maxConcurrentPushes) {
+		if (maxConcurrentPushes < 0) {
+			throw new IllegalArgumentException("Maximum number of concurrent pushes cannot be negative");
+		}
+		this.maxConcurrentPushes = maxConcurrentPushes;
+	}
+
+	/**
+	 * Returns the maximum number of complete batches waiting to be pushed when asynchronous pushes are enabled.
+	 *
+	 * @return the maximum number of batches waiting for a pusher.
+	 */
+	public int getPushQueueSize() {
+		return pushQueueSize;
+	}
+
+	/**
+	 * Defines the maximum number of complete batches waiting to be pushed when asynchronous pushes are enabled.
+	 * Once this limit is reached, uniVocity will block until a pusher becomes available. Defaults to 2.
+	 *
+	 * @param pushQueueSize the maximum number of batches waiting for a pusher.
+	 */
+	public void setPushQueueSize(int pushQueueSize) {
+		if (pushQueueSize < 0) {
+			throw new IllegalArgumentException("Push queue size cannot be negative");
+		}
+		this.pushQueueSize = pushQueueSize;
+	}
+
+	/**
+	 * Returns the maximum number of persistent HTTP connections kept open to KairosDB.
+	 *
+	 * @return the size of the connection pool.
+	 */
+	public int getMaxConnections() {
+		return maxConnections;
+	}
+
+	/**
+	 * Defines the maximum number of persistent HTTP connections kept open to KairosDB. This should not be lower than
+	 * {@link #getMaxConcurrentPushes()}, otherwise pushers will wait for each other. Defaults to 4.
+	 *
+	 * @param maxConnections the size of the connection pool.
+	 */
+	public void setMaxConnections(int maxConnections) {
+		if (maxConnections <= 0) {
+			throw new IllegalArgumentException("Maximum number of connections must be positive");
+		}
+		this.maxConnections = maxConnections;
+	}
+
+	/**
+	 * Returns the time, in milliseconds, a pooled connection can remain idle before being closed.
+	 *
+	 * @return the idle timeout of pooled connections.
+	 */
+	public long getConnectionIdleTimeout() {
+		return connectionIdleTimeout;
+	}
+
+	/**
+	 * Defines the time, in milliseconds, a pooled connection can remain idle before being closed. Defaults to 30 seconds.
+	 *
+	 * @param connectionIdleTimeout the idle timeout of pooled connections.
+	 */
+	public void setConnectionIdleTimeout(long connectionIdleTimeout) {
+		if (connectionIdleTimeout <= 0) {
+			throw new IllegalArgumentException("Connection idle timeout must be positive");
+		}
+		this.connectionIdleTimeout = connectionIdleTimeout;
+	}
+
+	/**
+	 * Returns the time, in milliseconds, to wait for a connection to KairosDB to be established.
+	 *
+	 * @return the connection timeout.
+	 */
+	public int getConnectTimeout() {
+		return connectTimeout;
+	}
+
+	/**
+	 * Defines the time, in milliseconds, to wait for a connection to KairosDB to be established. Defaults to 5 seconds.
+	 *
+	 * @param connectTimeout the connection timeout.
+	 */
+	public void setConnectTimeout(int connectTimeout) {
+		if (connectTimeout < 0) {
+			throw new IllegalArgumentException("Connection timeout cannot be negative");
+		}
+		this.connectTimeout = connectTimeout;
+	}
+
+	/**
+	 * Returns the time, in milliseconds, to wait for KairosDB to respond to a request.
+	 *
+	 * @return the read timeout.
+	 */
+	public int getReadTimeout() {
+		return readTimeout;
+	}
+
+	/**
+	 * Defines the time, in milliseconds, to wait for KairosDB to respond to a request. Defaults to 60 seconds.
+	 *
+	 * @param readTimeout the read timeout.
+	 */
+	public void setReadTimeout(int readTimeout) {
+		if (readTimeout < 0) {
+			throw new IllegalArgumentException("Read timeout cannot be negative");
+		}
+		this.readTimeout = readTimeout;
+	}
+
+	/**
+	 * Returns the protocol used to send data points to KairosDB.
+	 *
+	 * @return the transport used to send data points.
+	 */
+	public KairosTransport getTransport() {
+		return transport;
+	}
+
+	/**
+	 * Defines the protocol used to send data points to KairosDB. Defaults to {@link KairosTransport#HTTP}.
+	 * When {@link KairosTransport#TELNET} is used, data points are sent to the host given in the URL of this configuration,
+	 * on the port given by {@link #getTelnetPort()}.
+	 *
+	 * @param transport the transport used to send data points.
+	 */
+	public void setTransport(KairosTransport transport) {
+		if (transport == null) {
+			throw new IllegalArgumentException("Transport cannot be null");
+		}
+		this.transport = transport;
+	}
+
+	/**
+	 * Returns the telnet port of KairosDB, used when the transport is {@link KairosTransport#TELNET}
+	 *
+	 * @return the telnet port of KairosDB.
+	 */
+	public int getTelnetPort() {
+		return telnetPort;
+	}
+
+	/**
+	 * Defines the telnet port of KairosDB, used when the transport is {@link KairosTransport#TELNET}. Defaults to 4242.
+	 *
+	 * @param telnetPort the telnet port of KairosDB.
+	 */
+	public void setTelnetPort(int telnetPort) {
+		if (telnetPort <= 0) {
+			throw new IllegalArgumentException("Invalid telnet port: " + telnetPort);
+		}
+		this.telnetPort = telnetPort;
+	}
+
+	/**
+	 * Returns the size, in bytes, of the buffer that accumulates lines before they are written to the telnet connection.
+	 *
+	 * @return the telnet buffer size.
+	 */
+	public int getTelnetBufferSize() {
+		return telnetBufferSize;
+	}
+
+	/**
+	 * Defines the size, in bytes, of the buffer that accumulates lines before they are written to the telnet connection.
+	 * Defaults to 64 KB.
+	 *
+	 * @param telnetBufferSize the telnet buffer size.
+	 */
+	public void setTelnetBufferSize(int telnetBufferSize) {
+		if (telnetBufferSize < 1024) {
+			throw new IllegalArgumentException("Telnet buffer size must be at least 1024 bytes");
+		}
+		this.telnetBufferSize = telnetBufferSize;
+	}
+
+	/**
+	 * Returns the maximum time, in milliseconds, a line can remain in the telnet buffer before being sent to KairosDB.
+	 *
+	 * @return the flush interval of the telnet connection.
+	 */
+	public long getTelnetFlushInterval() {
+		return telnetFlushInterval;
+	}
+
+	/**
+	 * Defines the maximum time, in milliseconds, a line can remain in the telnet buffer before being sent to KairosDB.
+	 * Defaults to 1 second.
+	 *
+	 * @param telnetFlushInterval the flush interval of the telnet connection.
+	 */
+	public void setTelnetFlushInterval(long telnetFlushInterval) {
+		if (telnetFlushInterval <= 0) {
+			throw new IllegalArgumentException("Telnet flush interval must be positive");
+		}
+		this.telnetFlushInterval = telnetFlushInterval;
+	}
+
+	/**
+	 * Returns the start of the time range read from KairosDB, in milliseconds (inclusive). A negative value means no
+	 * time range has been defined, and entities of this data store can't be read.
+	 *
+	 * @return the start of the time range to read.
+	 */
+	public long getReadStart() {
+		return readStart;
+	}
+
+	/**
+	 * Returns the end of the time range read from KairosDB, in milliseconds (exclusive). 0 means the time the
+	 * reading starts.
+	 *
+	 * @return the end of the time range to read.
+	 */
+	public long getReadEnd() {
+		return readEnd;
+	}
+
+	/**
+	 * Defines the time range read from KairosDB when uniVocity reads data from the entities of this data store.
+	 *
+	 * @param readStart the start of the time range, in milliseconds (inclusive).
+	 * @param readEnd the end of the time range, in milliseconds (exclusive). Use 0 to read up to the time the reading starts.
+	 */
+	public void setReadTimeRange(long readStart, long readEnd) {
+		if (readStart < 0) {
+			throw new IllegalArgumentException("Start of time range to read cannot be negative");
+		}
+		if (readEnd != 0 && readEnd <= readStart) {
+			throw new IllegalArgumentException("End of time range to read must be after its start");
+		}
+		this.readStart = readStart;
+		this.readEnd = readEnd;
+	}
+
+	/**
+	 * Returns the length of the time interval, in milliseconds, fetched by each query when reading from KairosDB.
+	 *
+	 * @return the length of the time interval of each query.
+	 */
+	public long getReadChunkSize() {
+		return readChunkSize;
+	}
+
+	/**
+	 * Defines the length of the time interval, in milliseconds, fetched by each query when reading from KairosDB. The time range to read
+	 * is split into chunks of this size, which are queried separately. Defaults to 1 hour.
+	 *
+	 * @param readChunkSize the length of the time interval of each query.
+	 */
+	public void setReadChunkSize(long readChunkSize) {
+		if (readChunkSize <= 0) {
+			throw new IllegalArgumentException("Read chunk size must be positive");
+		}
+		this.readChunkSize = readChunkSize;
+	}
+
+	/**
+	 * Returns the maximum number of queries executed at the same time when reading from KairosDB.
+	 *
+	 * @return the read parallelism.
+	 */
+	public int getReadParallelism() {
+		return readParallelism;
+	}
+
+	/**
+	 * Defines the maximum number of queries executed at the same time when reading from KairosDB. This is also the
+	 * maximum number of chunks held in memory while uniVocity consumes the rows. Defaults to 4.
+	 *
+	 * @param readParallelism the read parallelism.
+	 */
+	public void setReadParallelism(int readParallelism) {
+		if (readParallelism <= 0) {
+			throw new IllegalArgumentException("Read parallelism must be positive");
+		}
+		this.readParallelism = readParallelism;
+	}
+
+	/**
+	 * Returns the regular expression that selects the metrics read from KairosDB.
+	 *
+	 * @return the pattern of metric names to read, or {@code null} if all metrics are read.
+	 */
+	public String getReadMetricPattern() {
+		return readMetricPattern;
+	}
+
+	/**
+	 * Defines a regular expression to select the metrics read from KairosDB. By default all metrics are read.
+	 *
+	 * @param readMetricPattern the pattern of metric names to read, or {@code null} to read all metrics.
+	 */
+	public void setReadMetricPattern(String readMetricPattern) {
+		if (readMetricPattern != null) {
+			// fails early with a PatternSyntaxException if the expression is invalid.
+			Pattern.compile(readMetricPattern);
+		}
+		this.readMetricPattern = readMetricPattern;
+	}
+
+	/**
+	 * Returns the maximum number of chunks of query results kept in memory.
+	 *
+	 * @return the size of the query cache.
+	 */
+	public int getQueryCacheSize() {
+		return queryCacheSize;
+	}
+
+	/**
+	 * Defines the maximum number of chunks of query results kept in memory. Chunks of past time intervals read by
+	 * queries added to the data store (see {@link KairosDataStore#addQuery(String, String)}) are cached and served again
+	 * without querying KairosDB, once they are settled (see {@link #setQuerySettleDelay(long)}). Defaults to 256. Use 0
+	 * to disable the cache.
+	 *
+	 * @param queryCacheSize the size of the query cache.
+	 */
+	public void setQueryCacheSize(int queryCacheSize) {
+		if (queryCacheSize < 0) {
+			throw new IllegalArgumentException("Query cache size cannot be negative");
+		}
+		this.queryCacheSize = queryCacheSize;
+	}
+
+	/**
+	 * Returns the time after which a chunk of query results in the past is considered settled and can be cached
+	 *
+	 * @return the settle delay of cached query results, in milliseconds.
+	 */
+	public long getQuerySettleDelay() {
+		return querySettleDelay;
+	}
+
+	/**
+	 * Defines how long after its end a chunk of query results can still change. Data points can arrive late, for example
+	 * while a load process is catching up or while spooled batches are replayed, so chunks are cached only when they end
+	 * at least this long before the query runs (see {@link #setQueryCacheSize(int)}). Defaults to 1 hour.
+	 *
+	 * @param querySettleDelay the time after the end of a chunk before its results are cached, in milliseconds.
+	 */
+	public void setQuerySettleDelay(long querySettleDelay) {
+		if (querySettleDelay < 0) {
+			throw new IllegalArgumentException("Query settle delay cannot be negative");
+		}
+		this.querySettleDelay = querySettleDelay;
+	}
+
+	/**
+	 * Returns the metrics where pushes to KairosDB are recorded
+	 *
+	 * @return the metrics of pushes, or {@code null} if pushes are not measured.
+	 */
+	public LoadMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Defines the metrics where pushes to KairosDB are recorded: number of data points and bytes, latency and failures
+	 * of each push through the REST API. Pushes through telnet are not measured. Defaults to {@code null} (no metrics).
+	 *
+	 * @param metrics the metrics of pushes. The same instance can be shared among data stores.
+	 */
+	public void setMetrics(LoadMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Returns the interval between reports of the metrics of this data store into KairosDB.
+	 *
+	 * @return the report interval in milliseconds, or 0 if reporting is disabled.
+	 */
+	public long getMetricsReportInterval() {
+		return metricsReportInterval;
+	}
+
+	/**
+	 * Defines the interval between reports of the metrics (see {@link #setMetrics(LoadMetrics)}) into KairosDB.
+	 * The data store pushes all metrics in a single batch, named after the metrics prefix, and tagged with the name
+	 * of the local host. Reports are pushed through the REST API, and never interfere with pushes of data.
+	 * Defaults to 0 (disabled).
+	 *
+	 * If the same metrics are shared among data stores, enable reporting in only one of them.
+	 *
+	 * @param metricsReportInterval the report interval in milliseconds. Use 0 to disable reporting.
+	 */
+	public void setMetricsReportInterval(long metricsReportInterval) {
+		if (metricsReportInterval < 0) {
+			throw new IllegalArgumentException("Metrics report interval cannot be negative");
+		}
+		this.metricsReportInterval = metricsReportInterval;
+	}
+
+	/**
+	 * Returns the prefix of the names of metrics reported into KairosDB.
+	 *
+	 * @return the prefix of reported metric names.
+	 */
+	public String getMetricsPrefix() {
+		return metricsPrefix;
+	}
+
+	/**
+	 * Defines the prefix of the names of metrics reported into KairosDB. For example, with the default prefix
+	 * {@code kairosdb.loader}, the 99th percentile of push latencies is reported as {@code kairosdb.loader.push.latency.p99}.
+	 *
+	 * @param metricsPrefix the prefix of reported metric names.
+	 */
+	public void setMetricsPrefix(String metricsPrefix) {
+		if (StringUtils.isBlank(metricsPrefix)) {
+			throw new IllegalArgumentException("Metrics prefix cannot be blank");
+		}
+		this.metricsPrefix = metricsPrefix;
+	}
+
+	/**
+	 * Returns the directory where batches that can't be pushed to KairosDB are spooled
+	 *
+	 * @return the spool directory, or {@code null} if spooling is disabled.
+	 */
+	public File getSpoolDirectory() {
+		return spoolDirectory;
+	}
+
+	/**
+	 * Defines the directory where batches that can't be pushed to KairosDB are spooled. When a push fails (with an
+	 * I/O error or an HTTP 5xx status), or when the push queue stays full for longer than the spool queue timeout,
+	 * the batch is appended to the spool instead, so writing can proceed. Batches in the spool are replayed to KairosDB
+	 * in the background, in the order they were spooled, while new batches keep being pushed as usual.
+	 *
+	 * Batches left in the spool when the data store is shut down are replayed the next time a data store is created with
+	 * the same spool directory. Each data store must use its own directory. Only pushes through the REST API are spooled.
+	 * Defaults to {@code null} (disabled): failed pushes fail the transaction.
+	 *
+	 * @param spoolDirectory the spool directory, or {@code null} to disable spooling.
+	 */
+	public void setSpoolDirectory(File spoolDirectory) {
+		this.spoolDirectory = spoolDirectory;
+	}
+
+	/**
+	 * Returns the size of each file of the spool
+	 *
+	 * @return the size of spool segment files, in bytes.
+	 */
+	public int getSpoolSegmentSize() {
+		return spoolSegmentSize;
+	}
+
+	/**
+	 * Defines the size of each file of the spool. Files are memory-mapped, and deleted once all their batches
+	 * have been replayed. Batches larger than this are never spooled, so it must be larger than the maximum number of
+	 * bytes per push. Defaults to 64 MB.
+	 *
+	 * @param spoolSegmentSize the size of spool segment files, in bytes.
+	 */
+	public void setSpoolSegmentSize(int spoolSegmentSize) {
+		if (spoolSegmentSize <= 0) {
+			throw new IllegalArgumentException("Spool segment size must be positive");
+		}
+		this.spoolSegmentSize = spoolSegmentSize;
+	}
+
+	/**
+	 * Returns the maximum disk space used by the spool
+	 *
+	 * @return the maximum size of the spool, in bytes.
+	 */
+	public long getSpoolMaxSize() {
+		return spoolMaxSize;
+	}
+
+	/**
+	 * Defines the maximum disk space used by the spool. Once the spool is full, pushes wait for room in the push queue, and
+	 * failed pushes fail the transaction, as if spooling was disabled. Defaults to 1 GB.
+	 *
+	 * @param spoolMaxSize the maximum size of the spool, in bytes. Must be at least the size of one segment.
+	 */
+	public void setSpoolMaxSize(long spoolMaxSize) {
+		if (spoolMaxSize <= 0) {
+			throw new IllegalArgumentException("Maximum spool size must be positive");
+		}
+		this.spoolMaxSize = spoolMaxSize;
+	}
+
+	/**
+	 * Returns the time a batch waits for room in the push queue before it is spooled
+	 *
+	 * @return the spool queue timeout, in milliseconds.
+	 */
+	public long getSpoolQueueTimeout() {
+		return spoolQueueTimeout;
+	}
+
+	/**
+	 * Defines the time a batch waits for room in the push queue before it is spooled. Short stalls of KairosDB
+	 * only slow the extraction down, and batches are spooled when pushes fall behind for longer than this.
+	 * Defaults to 5 seconds.
+	 *
+	 * @param spoolQueueTimeout the spool queue timeout, in milliseconds. Use 0 to spool as soon as the push queue is full.
+	 */
+	public void setSpoolQueueTimeout(long spoolQueueTimeout) {
+		if (spoolQueueTimeout < 0) {
+			throw new IllegalArgumentException("Spool queue timeout must not be negative");
+		}
+		this.spoolQueueTimeout = spoolQueueTimeout;
+	}
+
+	/**
+	 * Returns the time to wait before retrying to replay a spooled batch after the first failure
+	 *
+	 * @return the initial retry delay, in milliseconds.
+	 */
+	public long getSpoolRetryDelay() {
+		return spoolRetryDelay;
+	}
+
+	/**
+	 * Defines the time to wait before retrying to replay a spooled batch after the first failure. The delay doubles
+	 * after each consecutive failure, up to the maximum retry delay. Defaults to 1 second.
+	 *
+	 * @param spoolRetryDelay the initial retry delay, in milliseconds.
+	 */
+	public void setSpoolRetryDelay(long spoolRetryDelay) {
+		if (spoolRetryDelay <= 0) {
+			throw new IllegalArgumentException("Spool retry delay must be positive");
+		}
+		this.spoolRetryDelay = spoolRetryDelay;
+	}
+
+	/**
+	 * Returns the maximum time to wait before retrying to replay a spooled batch
+	 *
+	 * @return the maximum retry delay, in milliseconds.
+	 */
+	public long getSpoolMaxRetryDelay() {
+		return spoolMaxRetryDelay;
+	}
+
+	/**
+	 * Defines the maximum time to wait before retrying to replay a spooled batch while KairosDB is unavailable.
+	 * Defaults to 1 minute.
+	 *
+	 * @param spoolMaxRetryDelay the maximum retry delay, in milliseconds.
+	 */
+	public void setSpoolMaxRetryDelay(long spoolMaxRetryDelay) {
+		if (spoolMaxRetryDelay <= 0) {
+			throw new IllegalArgumentException("Maximum spool retry delay must be positive");
+		}
+		this.spoolMaxRetryDelay = spoolMaxRetryDelay;
+	}
+
+	/**
+	 * Returns the time window in which duplicate data points are discarded
+	 *
+	 * @return the duplicate window, in milliseconds, or 0 if duplicates are not filtered.
+	 */
+	public long getDuplicateWindow() {
+		return duplicateWindow;
+	}
+
+	/**
+	 * Defines the time window in which duplicate data points are discarded. A data point with the same metric name, tag values,
+	 * timestamp and value of another written within this window is not pushed again. If the transaction that wrote a data point fails,
+	 * all data points are forgotten, so writing them again is not prevented. Defaults to 0 (disabled).
+	 *
+	 * @param duplicateWindow the duplicate window, in milliseconds. Use 0 to disable the duplicate filter.
+	 */
+	public void setDuplicateWindow(long duplicateWindow) {
+		if (duplicateWindow < 0) {
+			throw new IllegalArgumentException("Duplicate window cannot be negative");
+		}
+		this.duplicateWindow = duplicateWindow;
+	}
+
+	/**
+	 * Returns the number of data points remembered by the duplicate filter in each generation
+	 *
+	 * @return the capacity of the duplicate filter.
+	 */
+	public int getDuplicateFilterCapacity() {
+		return duplicateFilterCapacity;
+	}
+
+	/**
+	 * Defines the number of data points remembered by the duplicate filter in each generation. The filter keeps two
+	 * generations, and uses 32 bytes for each data point of capacity, so the default of 524288 data points takes 16 MB.
+	 * If more data points are written within the duplicate window, the oldest ones are forgotten earlier.
+	 *
+	 * @param duplicateFilterCapacity the capacity of the duplicate filter.
+	 */
+	public void setDuplicateFilterCapacity(int duplicateFilterCapacity) {
+		if (duplicateFilterCapacity <= 0 || duplicateFilterCapacity > (1 << 28)) {
+			throw new IllegalArgumentException("Duplicate filter capacity must be between 1 and " + (1 << 28));
+		}
+		this.duplicateFilterCapacity = duplicateFilterCapacity;
+	}
+
+	/**
+	 * Returns the algorithm used to skip numeric data points that add little information to their series
+	 *
+	 * @return the compression mode.
+	 */
+	public CompressionMode getCompressionMode() {
+		return compressionMode;
+	}
+
+	/**
+	 * Defines the algorithm used to skip numeric data points that add little information to their series, e.g. sensors that
+	 * report the same value for hours. Data points are compressed after the duplicate filter and the rollup of their entity,
+	 * so rollups aggregate all data points. Each entity compresses its own series. Data points held by
+	 * {@link CompressionMode#SWINGING_DOOR} are written before each transaction completes, and if a transaction fails, the
+	 * series it changed go back to their state before it. Defaults to {@link CompressionMode#NONE}.
+	 *
+	 * @param compressionMode the compression mode.
+	 */
+	public void setCompressionMode(CompressionMode compressionMode) {
+		if (compressionMode == null) {
+			throw new IllegalArgumentException("Compression mode cannot be null");
+		}
+		this.compressionMode = compressionMode;
+	}
+
+	/**
+	 * Returns the maximum deviation from the values received allowed by skipping data points
+	 *
+	 * @return the compression tolerance, in the unit of the values.
+	 */
+	public double getCompressionTolerance() {
+		return compressionTolerance;
+	}
+
+	/**
+	 * Defines the maximum deviation from the values received allowed by skipping data points: the difference to the last
+	 * value written with {@link CompressionMode#DEADBAND}, or to the line between the data points written with
+	 * {@link CompressionMode#SWINGING_DOOR}. Defaults to 0, which only skips repeated values (or values on a straight line).
+	 *
+	 * @param compressionTolerance the compression tolerance, in the unit of the values.
+	 */
+	public void setCompressionTolerance(double compressionTolerance) {
+		if (compressionTolerance < 0 || Double.isNaN(compressionTolerance)) {
+			throw new IllegalArgumentException("Compression tolerance cannot be negative");
+		}
+		this.compressionTolerance = compressionTolerance;
+	}
+
+	/**
+	 * Returns the maximum time between data points written for a series when compression is enabled
+	 *
+	 * @return the compression heartbeat, in milliseconds.
+	 */
+	public long getCompressionHeartbeat() {
+		return compressionHeartbeat;
+	}
+
+	/**
+	 * Defines the maximum time between data points written for a series when compression is enabled. A data point is
+	 * written once this time elapses since the last one written, even if it could be skipped, so series that don't change
+	 * still show up in queries over recent data. Defaults to 15 minutes.
+	 *
+	 * @param compressionHeartbeat the compression heartbeat, in milliseconds.
+	 */
+	public void setCompressionHeartbeat(long compressionHeartbeat) {
+		if (compressionHeartbeat <= 0) {
+			throw new IllegalArgumentException("Compression heartbeat must be positive");
+		}
+		this.compressionHeartbeat = compressionHeartbeat;
+	}
+
+	/**
+	 * Returns the maximum number of series compressed by each entity
+	 *
+	 * @return the maximum number of series compressed.
+	 */
+	public int getCompressionMaxSeries() {
+		return compressionMaxSeries;
+	}
+
+	/**
+	 * Defines the maximum number of series compressed by each entity. The state of each series takes about 170 bytes, plus
+	 * its metric name and tag values, so the default of 131072 series takes over 22 MB. Data points of series beyond this
+	 * limit are written without compression.
+	 *
+	 * @param compressionMaxSeries the maximum number of series compressed.
+	 */
+	public void setCompressionMaxSeries(int compressionMaxSeries) {
+		if (compressionMaxSeries <= 0 || compressionMaxSeries > (1 << 26)) {
+			throw new IllegalArgumentException("Maximum number of series compressed must be between 1 and " + (1 << 26));
+		}
+		this.compressionMaxSeries = compressionMaxSeries;
 	}
 }
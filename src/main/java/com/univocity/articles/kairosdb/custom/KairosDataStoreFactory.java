@@ -5,6 +5,8 @@
  ******************************************************************************/
 package com.univocity.articles.kairosdb.custom;
 
+import java.util.*;
+
 import com.univocity.api.entity.custom.*;
 
 /**
@@ -18,9 +20,28 @@ import com.univocity.api.entity.custom.*;
  */
 public class KairosDataStoreFactory implements CustomDataStoreFactory<KairosDataStoreConfiguration> {
 
+	private final List<KairosDataStore> dataStores = new ArrayList<KairosDataStore>();
+
 	@Override
 	public CustomDataStore<?> newDataStore(KairosDataStoreConfiguration configuration) {
-		return new KairosDataStore(configuration);
+		KairosDataStore dataStore = new KairosDataStore(configuration);
+		synchronized (dataStores) {
+			dataStores.add(dataStore);
+		}
+		return dataStore;
+	}
+
+	/**
+	 * Shuts down all data stores created by this factory, closing their connections to KairosDB.
+	 * Invoke this method after shutting down the {@link DataIntegrationEngine} that uses them.
+	 */
+	public void shutdown() {
+		synchronized (dataStores) {
+			for (KairosDataStore dataStore : dataStores) {
+				dataStore.shutdown();
+			}
+			dataStores.clear();
+		}
 	}
 
 	@Override
@@ -0,0 +1,138 @@
+/*******************************************************************************
+ * Copyright (c) 2014 uniVocity Software Pty Ltd. All rights reserved.
+ * This file is subject to the terms and conditions defined in file
+ * 'LICENSE.txt', which is part of this source code package.
+ ******************************************************************************/
+package com.univocity.articles.kairosdb.custom;
+
+import java.io.*;
+
+import org.slf4j.*;
+
+/**
+ * A node of a KairosDB cluster, with its own HTTP client and push queue, so a slow node doesn't hold pushes to the
+ * other nodes.
+ *
+ * A node that fails is marked as unavailable for the node retry delay (see {@link KairosDataStoreConfiguration#setNodeRetryDelay(long)}).
+ * After that, it is used again, and becomes available once a push to it succeeds.
+ *
+ * @author uniVocity Software Pty Ltd - <a href="mailto:dev@univocity.com">dev@univocity.com</a>
+ *
+ */
+class KairosNode {
+
+	private static final Logger log = LoggerFactory.getLogger(KairosNode.class);
+
+	private final KairosDataStoreConfiguration configuration;
+	private final String url;
+	private final KairosPushQueue pushQueue;
+
+	private PooledHttpClient client;
+	private volatile long failedAt;
+
+	/**
+	 * Creates a node
+	 *
+	 * @param configuration the configuration of the data store.
+	 * @param url the URL of the node
+	 * @param index the position of the node in the list of URLs, used to name its pusher threads.
+	 */
+	KairosNode(KairosDataStoreConfiguration configuration, String url, int index) {
+		this.configuration = configuration;
+		this.url = url;
+		String name = configuration.getUrls().size() == 1 ? configuration.getDataStoreName() : configuration.getDataStoreName() + "-" + index;
+		this.pushQueue = new KairosPushQueue(name, configuration.getMaxConcurrentPushes(), configuration.getPushQueueSize());
+	}
+
+	/**
+	 * Returns the URL of this node
+	 *
+	 * @return the URL of this node.
+	 */
+	String getUrl() {
+		return url;
+	}
+
+	/**
+	 * Returns the queue of pushes to this node
+	 *
+	 * @return the push queue of this node.
+	 */
+	KairosPushQueue getPushQueue() {
+		return pushQueue;
+	}
+
+	/**
+	 * Returns the client used to communicate with this node. The client is created on first use and kept open, with its pool
+	 * of persistent connections, until this node is shut down.
+	 *
+	 * @return the client of this node.
+	 */
+	synchronized PooledHttpClient getClient() {
+		if (client == null) {
+			try {
+				client = new PooledHttpClient(configuration, url);
+			} catch (Exception e) {
+				throw new IllegalStateException("Unable to connect to KairosDB using URL: " + url, e);
+			}
+		}
+		return client;
+	}
+
+	/**
+	 * Returns whether this node should receive data points: it didn't fail, or the node retry delay elapsed since it failed.
+	 *
+	 * @return {@code true} if this node is available.
+	 */
+	boolean isAvailable() {
+		long failedAt = this.failedAt;
+		return failedAt == 0 || currentTimeMillis() - failedAt >= configuration.getNodeRetryDelay();
+	}
+
+	/**
+	 * Marks this node as unavailable.
+	 *
+	 * @param cause a description of the failure
+	 */
+	void failed(String cause) {
+		if (failedAt == 0) {
+			log.warn("KairosDB node {} failed: {}. Its metrics go to other nodes for the next {} ms", new Object[] { url, cause, configuration.getNodeRetryDelay() });
+		}
+		failedAt = currentTimeMillis();
+	}
+
+	// overridden by tests, to move the clock without waiting.
+	long currentTimeMillis() {
+		return System.currentTimeMillis();
+	}
+
+	/**
+	 * Marks this node as available after a successful request.
+	 */
+	void succeeded() {
+		if (failedAt != 0) {
+			log.info("KairosDB node {} recovered", url);
+			failedAt = 0;
+		}
+	}
+
+	/**
+	 * Closes the connections to this node. Pushers must be shut down first, through {@link #getPushQueue()}.
+	 */
+	synchronized void close() {
+		try {
+			if (client != null) {
+				client.shutdown();
+			}
+		} catch (IOException e) {
+			log.error("Unexpected error shutting down connection to KairosDB " + url, e);
+		} finally {
+			client = null;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return url;
+	}
+}
@@ -0,0 +1,78 @@
+/*******************************************************************************
+ * Copyright (c) 2014 uniVocity Software Pty Ltd. All rights reserved.
+ * This file is subject to the terms and conditions defined in file
+ * 'LICENSE.txt', which is part of this source code package.
+ ******************************************************************************/
+package com.univocity.articles.kairosdb.custom;
+
+import java.util.*;
+
+/**
+ * The connections to the nodes of a KairosDB cluster, with the pushers that send batches through them.
+ *
+ * Each {@link KairosDataStore} creates a pipeline of its own, unless one is given with {@link KairosDataStoreConfiguration#setPipeline(KairosPipeline)}.
+ * A pipeline shared by several data stores (e.g. one for each source table being loaded) bounds the total number of
+ * connections and concurrent pushes to KairosDB, and its pushers serve the data stores in turns, so one that produces
+ * many batches doesn't delay the batches of the others. Each data store still waits only for its own pushes to
+ * complete its transactions.
+ *
+ * Fair scheduling requires a number of concurrent pushes above zero: with synchronous pushes, each data store pushes its
+ * batches from its own thread, and the data stores only share the connections.
+ *
+ * A shared pipeline must be shut down with {@link #shutdown()} after all data stores that use it are shut down.
+ *
+ * @author uniVocity Software Pty Ltd - <a href="mailto:dev@univocity.com">dev@univocity.com</a>
+ *
+ */
+public class KairosPipeline {
+
+	private final KairosNode[] nodes;
+	private final KairosRing ring;
+
+	/**
+	 * Creates a pipeline with the connection settings of a configuration: the URLs of the nodes, the node retry delay,
+	 * the maximum number of connections, concurrent pushes and queued pushes, and the connection timeouts.
+	 *
+	 * @param configuration the configuration with the settings of the connections to KairosDB.
+	 */
+	public KairosPipeline(KairosDataStoreConfiguration configuration) {
+		List<String> urls = configuration.getUrls();
+		this.nodes = new KairosNode[urls.size()];
+		for (int i = 0; i < nodes.length; i++) {
+			nodes[i] = new KairosNode(configuration, urls.get(i), i);
+		}
+		this.ring = nodes.length == 1 ? null : new KairosRing(urls);
+	}
+
+	/**
+	 * Returns the nodes of the cluster
+	 *
+	 * @return the nodes, in the order of the URLs of the configuration.
+	 */
+	KairosNode[] getNodes() {
+		return nodes;
+	}
+
+	/**
+	 * Returns the ring that assigns metrics to nodes
+	 *
+	 * @return the ring of nodes, or {@code null} if there's a single node.
+	 */
+	KairosRing getRing() {
+		return ring;
+	}
+
+	/**
+	 * Executes all pending pushes and closes all connections to KairosDB. The data stores that use this pipeline can't
+	 * push data points afterwards.
+	 */
+	public void shutdown() {
+		//pushers need the clients, so let them finish before closing them.
+		for (KairosNode node : nodes) {
+			node.getPushQueue().shutdown();
+		}
+		for (KairosNode node : nodes) {
+			node.close();
+		}
+	}
+}
@@ -0,0 +1,239 @@
+/*******************************************************************************
+ * Copyright (c) 2014 uniVocity Software Pty Ltd. All rights reserved.
+ * This file is subject to the terms and conditions defined in file
+ * 'LICENSE.txt', which is part of this source code package.
+ ******************************************************************************/
+package com.univocity.articles.kairosdb.custom;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * A queue of pending pushes to KairosDB, drained by a fixed number of concurrent pushers.
+ *
+ * Pushes are submitted through lanes (see {@link #newLane()}): each data store that uses this queue gets its own lane, with
+ * its own bounded number of pending pushes and its own errors. Pushers take pushes from lanes with pending pushes in turns,
+ * one push at a time, so a data store that produces batches faster than the others can't starve them when several data
+ * stores share the same queue (see {@link KairosPipeline}).
+ *
+ * Pushes are submitted from uniVocity's mapping thread when a batch is complete, so the extraction of the next batch
+ * can proceed while the previous one is travelling to KairosDB. When a lane is full, {@link Lane#submit(Runnable)} blocks
+ * until one of its pushes completes, which keeps the memory used by pending batches under control.
+ *
+ * If the number of concurrent pushers is zero, pushes are executed synchronously in the calling thread.
+ *
+ * @author uniVocity Software Pty Ltd - <a href="mailto:dev@univocity.com">dev@univocity.com</a>
+ *
+ */
+class KairosPushQueue {
+
+	private final String name;
+	private final int maxConcurrentPushes;
+	private final int queueSize;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition pushAvailable = lock.newCondition();
+	// lanes with pending pushes, in the order they get their next turn.
+	private final LinkedList<Lane> ready = new LinkedList<Lane>();
+	private final List<Thread> pushers = new ArrayList<Thread>();
+	private boolean shutdown;
+
+	/**
+	 * Creates a new push queue
+	 *
+	 * @param name the name of the data store or pipeline that owns this queue, used to name the pusher threads.
+	 * @param maxConcurrentPushes the maximum number of pushes in flight. Use 0 to push synchronously.
+	 * @param queueSize the maximum number of pushes of each lane waiting for a pusher to become available.
+	 */
+	KairosPushQueue(String name, int maxConcurrentPushes, int queueSize) {
+		this.name = name;
+		this.maxConcurrentPushes = maxConcurrentPushes;
+		this.queueSize = queueSize;
+	}
+
+	/**
+	 * Creates a lane to submit pushes through.
+	 *
+	 * @return a new lane of this queue.
+	 */
+	Lane newLane() {
+		return new Lane(maxConcurrentPushes <= 0 ? 0 : maxConcurrentPushes + queueSize);
+	}
+
+	// pusher threads are started with the first push, so queues used only to read from KairosDB don't keep idle threads.
+	private void startPushers() {
+		for (int i = 1; i <= maxConcurrentPushes; i++) {
+			Thread pusher = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					push();
+				}
+			}, "kairos-push-" + name + "-" + i);
+			pusher.setDaemon(true);
+			pusher.start();
+			pushers.add(pusher);
+		}
+	}
+
+	private void enqueue(Lane lane, Runnable push) {
+		lock.lock();
+		try {
+			if (shutdown) {
+				lane.slots.release();
+				throw new IllegalStateException("Push queue has been shut down");
+			}
+			if (pushers.isEmpty()) {
+				startPushers();
+			}
+			lane.pending.addLast(push);
+			if (lane.pending.size() == 1) {
+				ready.addLast(lane);
+			}
+			pushAvailable.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void push() {
+		while (true) {
+			Lane lane;
+			Runnable push;
+			lock.lock();
+			try {
+				while (ready.isEmpty()) {
+					if (shutdown) {
+						return;
+					}
+					pushAvailable.awaitUninterruptibly();
+				}
+				lane = ready.removeFirst();
+				push = lane.pending.removeFirst();
+				if (!lane.pending.isEmpty()) {
+					// lanes with more pending pushes go to the back, after the other lanes had their turn.
+					ready.addLast(lane);
+				}
+			} finally {
+				lock.unlock();
+			}
+
+			try {
+				push.run();
+			} catch (Throwable t) {
+				lane.error.compareAndSet(null, t);
+			} finally {
+				lane.slots.release();
+			}
+		}
+	}
+
+	/**
+	 * Executes all pending pushes and stops the pusher threads.
+	 */
+	void shutdown() {
+		List<Thread> pushers;
+		lock.lock();
+		try {
+			shutdown = true;
+			pushAvailable.signalAll();
+			pushers = new ArrayList<Thread>(this.pushers);
+		} finally {
+			lock.unlock();
+		}
+		for (Thread pusher : pushers) {
+			try {
+				pusher.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * The pushes submitted by a data store, with a bounded number of pending pushes and its own errors.
+	 */
+	class Lane {
+
+		private final Semaphore slots;
+		private final int capacity;
+		private final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+		// guarded by the lock of the queue
+		private final LinkedList<Runnable> pending = new LinkedList<Runnable>();
+
+		private Lane(int capacity) {
+			this.capacity = capacity;
+			this.slots = capacity == 0 ? null : new Semaphore(capacity);
+		}
+
+		/**
+		 * Submits a push for execution. Blocks while this lane is full.
+		 *
+		 * @param push the push to execute
+		 */
+		void submit(Runnable push) {
+			if (slots == null) {
+				push.run();
+				return;
+			}
+
+			checkPreviousError();
+			try {
+				slots.acquire();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Interrupted while waiting to push metrics to KairosDB", e);
+			}
+			enqueue(this, push);
+		}
+
+		/**
+		 * Submits a push for execution, waiting for a limited time while this lane is full.
+		 *
+		 * @param push the push to execute
+		 * @param timeout the maximum time to wait for room in this lane, in milliseconds.
+		 * @return {@code true} if the push was submitted (or executed, when pushes are synchronous), or {@code false} if the lane is still full after the timeout.
+		 */
+		boolean trySubmit(Runnable push, long timeout) {
+			if (slots == null) {
+				push.run();
+				return true;
+			}
+
+			checkPreviousError();
+			try {
+				if (!slots.tryAcquire(timeout, TimeUnit.MILLISECONDS)) {
+					return false;
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Interrupted while waiting to push metrics to KairosDB", e);
+			}
+			enqueue(this, push);
+			return true;
+		}
+
+		private void checkPreviousError() {
+			Throwable previousError = error.get();
+			if (previousError != null) {
+				throw new IllegalStateException("Aborting push as a previous push to KairosDB failed", previousError);
+			}
+		}
+
+		/**
+		 * Waits for all pending pushes of this lane to complete.
+		 *
+		 * @return the first error produced by a push submitted since the last call to this method, or {@code null} if all pushes succeeded.
+		 */
+		Throwable awaitCompletion() {
+			if (slots == null) {
+				return null;
+			}
+			slots.acquireUninterruptibly(capacity);
+			slots.release(capacity);
+			return error.getAndSet(null);
+		}
+	}
+}
@@ -0,0 +1,278 @@
+/*******************************************************************************
+ * Copyright (c) 2014 uniVocity Software Pty Ltd. All rights reserved.
+ * This file is subject to the terms and conditions defined in file
+ * 'LICENSE.txt', which is part of this source code package.
+ ******************************************************************************/
+package com.univocity.articles.kairosdb.custom;
+
+import java.util.*;
+
+import org.apache.commons.lang.*;
+import org.kairosdb.client.builder.Aggregator;
+import org.kairosdb.client.builder.AggregatorFactory;
+import org.kairosdb.client.builder.QueryBuilder;
+import org.kairosdb.client.builder.QueryMetric;
+import org.kairosdb.client.builder.TimeUnit;
+
+import com.univocity.api.entity.custom.*;
+
+/**
+ * A named query that reads data points from KairosDB, optionally aggregated on the server. The query definition is a list of
+ * settings separated by semicolons, for example:
+ *
+ * <pre>
+ * metric=ZONE_A\..*; aggregator=avg; sampling=5 minutes; tags=zone,device
+ * </pre>
+ *
+ * <ul>
+ * <li><b>metric</b>: a regular expression to select the metrics to read. All metrics are read by default.</li>
+ * <li><b>aggregator</b>: one of avg, min, max, sum or count. Raw data points are read by default.</li>
+ * <li><b>sampling</b>: the period aggregated into each data point, e.g. "1 hour". Required when an aggregator is used.
+ * Units from milliseconds to weeks are supported.</li>
+ * <li><b>tags</b>: the names of the tags to read, separated by commas.</li>
+ * </ul>
+ *
+ * The query produces the fields name, timestamp, value and the given tags. Its parameters "start" and "end" define the time
+ * range to read, as a {@link Date} or a number of milliseconds. They default to the read time range of the
+ * {@link KairosDataStoreConfiguration}.
+ *
+ * Results of chunks of time that are complete and ended before the settle delay are cached (see {@link KairosDataStoreConfiguration#setQueryCacheSize(int)}
+ * and {@link KairosDataStoreConfiguration#setQuerySettleDelay(long)})
+ *
+ * @author uniVocity Software Pty Ltd - <a href="mailto:dev@univocity.com">dev@univocity.com</a>
+ *
+ */
+class KairosQuery implements CustomQuery {
+
+	private final KairosDataStore dataStore;
+	private final String queryName;
+	private final String query;
+
+	private String metricPattern;
+	private String aggregatorName;
+	private int samplingValue;
+	private TimeUnit samplingUnit;
+	private long samplingLength;
+	private String[] tagNames = new String[0];
+
+	private final Set<DefaultEntityField> fields = new LinkedHashSet<DefaultEntityField>();
+	private final Set<DefaultEntityField> parameters = new LinkedHashSet<DefaultEntityField>();
+
+	private Long start;
+	private Long end;
+
+	/**
+	 * Creates a new query
+	 *
+	 * @param dataStore the data store that executes the query
+	 * @param queryName the name of the query
+	 * @param query the query definition.
+	 */
+	KairosQuery(KairosDataStore dataStore, String queryName, String query) {
+		this.dataStore = dataStore;
+		this.queryName = queryName;
+		this.query = query;
+
+		parse(query);
+
+		fields.add(new DefaultEntityField("name"));
+		fields.add(new DefaultEntityField("timestamp"));
+		fields.add(new DefaultEntityField("value"));
+		for (String tag : tagNames) {
+			fields.add(new DefaultEntityField(tag));
+		}
+		parameters.add(new DefaultEntityField("start"));
+		parameters.add(new DefaultEntityField("end"));
+	}
+
+	private void parse(String query) {
+		for (String setting : StringUtils.split(query, ';')) {
+			if (StringUtils.isBlank(setting)) {
+				continue;
+			}
+			int separator = setting.indexOf('=');
+			if (separator == -1) {
+				throw new IllegalArgumentException("Invalid setting '" + setting.trim() + "' in query " + queryName + ". Expected <name>=<value>");
+			}
+			String name = setting.substring(0, separator).trim().toLowerCase();
+			String value = setting.substring(separator + 1).trim();
+
+			if ("metric".equals(name)) {
+				metricPattern = value;
+			} else if ("aggregator".equals(name)) {
+				aggregatorName = value.toLowerCase();
+			} else if ("sampling".equals(name)) {
+				parseSampling(value);
+			} else if ("tags".equals(name)) {
+				tagNames = StringUtils.stripAll(StringUtils.split(value, ','));
+			} else {
+				throw new IllegalArgumentException("Unknown setting '" + name + "' in query " + queryName);
+			}
+		}
+
+		if (aggregatorName != null) {
+			if (samplingUnit == null) {
+				throw new IllegalArgumentException("Sampling period of aggregator not defined in query " + queryName);
+			}
+			// validates the aggregator name
+			createAggregator();
+		}
+	}
+
+	private void parseSampling(String sampling) {
+		String[] parts = StringUtils.split(sampling);
+		if (parts.length != 2 || !StringUtils.isNumeric(parts[0]) || Integer.parseInt(parts[0]) <= 0) {
+			throw new IllegalArgumentException("Invalid sampling period '" + sampling + "' in query " + queryName + ". Expected <number> <unit>, e.g. 5 minutes");
+		}
+		samplingValue = Integer.parseInt(parts[0]);
+
+		String unit = StringUtils.removeEnd(parts[1].toLowerCase(), "s");
+		long unitLength;
+		if ("millisecond".equals(unit)) {
+			samplingUnit = TimeUnit.MILLISECONDS;
+			unitLength = 1L;
+		} else if ("second".equals(unit)) {
+			samplingUnit = TimeUnit.SECONDS;
+			unitLength = 1000L;
+		} else if ("minute".equals(unit)) {
+			samplingUnit = TimeUnit.MINUTES;
+			unitLength = 60 * 1000L;
+		} else if ("hour".equals(unit)) {
+			samplingUnit = TimeUnit.HOURS;
+			unitLength = 60 * 60 * 1000L;
+		} else if ("day".equals(unit)) {
+			samplingUnit = TimeUnit.DAYS;
+			unitLength = 24 * 60 * 60 * 1000L;
+		} else if ("week".equals(unit)) {
+			samplingUnit = TimeUnit.WEEKS;
+			unitLength = 7 * 24 * 60 * 60 * 1000L;
+		} else {
+			throw new IllegalArgumentException("Unsupported sampling unit '" + parts[1] + "' in query " + queryName);
+		}
+		samplingLength = samplingValue * unitLength;
+	}
+
+	private Aggregator createAggregator() {
+		if ("avg".equals(aggregatorName)) {
+			return AggregatorFactory.createAverageAggregator(samplingValue, samplingUnit);
+		} else if ("min".equals(aggregatorName)) {
+			return AggregatorFactory.createMinAggregator(samplingValue, samplingUnit);
+		} else if ("max".equals(aggregatorName)) {
+			return AggregatorFactory.createMaxAggregator(samplingValue, samplingUnit);
+		} else if ("sum".equals(aggregatorName)) {
+			return AggregatorFactory.createSumAggregator(samplingValue, samplingUnit);
+		} else if ("count".equals(aggregatorName)) {
+			return AggregatorFactory.createCountAggregator(samplingValue, samplingUnit);
+		}
+		throw new IllegalArgumentException("Unsupported aggregator '" + aggregatorName + "' in query " + queryName + ". Expected one of avg, min, max, sum or count");
+	}
+
+	@Override
+	public Set<? extends DefaultEntityField> getFields() {
+		return fields;
+	}
+
+	@Override
+	public Set<? extends DefaultEntityField> getParameters() {
+		return parameters;
+	}
+
+	@Override
+	public void setParameter(String name, Object value) {
+		if ("start".equals(name)) {
+			start = toMillis(name, value);
+		} else if ("end".equals(name)) {
+			end = toMillis(name, value);
+		} else {
+			throw new IllegalArgumentException("Unknown parameter '" + name + "' of query " + queryName + ". Expected 'start' or 'end'");
+		}
+	}
+
+	private Long toMillis(String name, Object value) {
+		if (value == null) {
+			return null;
+		} else if (value instanceof Date) {
+			return ((Date) value).getTime();
+		} else if (value instanceof Number) {
+			return ((Number) value).longValue();
+		}
+		throw new IllegalArgumentException("Invalid value of parameter '" + name + "' of query " + queryName + ": " + value + ". Expected a date or a number of milliseconds");
+	}
+
+	@Override
+	public ReadingProcess preareToRead(String[] fieldNames) {
+		KairosDataStoreConfiguration configuration = dataStore.getConfiguration();
+		long now = System.currentTimeMillis();
+
+		long from = start != null ? start : configuration.getReadStart();
+		if (from < 0) {
+			throw new IllegalStateException("Start of time range to read with query " + queryName + " not defined.");
+		}
+		long to = end != null ? end : configuration.getReadEnd();
+		if (to == 0) {
+			to = now;
+		}
+
+		long chunkSize = configuration.getReadChunkSize();
+		if (samplingLength > 0 && chunkSize % samplingLength != 0) {
+			// keeps each sampling period within a single chunk, so aggregated values are not split across queries.
+			chunkSize = (chunkSize / samplingLength + 1) * samplingLength;
+		}
+
+		return new QueryReadingProcess(fieldNames, from, to, chunkSize, now);
+	}
+
+	/**
+	 * Reads the chunks of a query. Aggregators are added to each metric, and complete chunks that ended before the settle delay are read from the cache when available.
+	 */
+	private class QueryReadingProcess extends KairosReadingProcess {
+
+		private final QueryCache cache = dataStore.getQueryCache();
+		private final String cacheKey;
+		private final long chunkSize;
+		private final long now;
+
+		QueryReadingProcess(String[] fieldNames, long start, long end, long chunkSize, long now) {
+			this(dataStore.getMetricNamesToRead(metricPattern), fieldNames, start, end, chunkSize, now);
+		}
+
+		private QueryReadingProcess(List<String> metricNames, String[] fieldNames, long start, long end, long chunkSize, long now) {
+			super(dataStore, "query " + queryName, metricNames, tagNames, fieldNames, start, end, chunkSize, dataStore.getConfiguration().getReadParallelism());
+			this.chunkSize = chunkSize;
+			this.now = now;
+			this.cacheKey = query + '|' + metricNames + '|' + Arrays.toString(fieldNames) + '|';
+		}
+
+		@Override
+		QueryBuilder buildQuery(long start, long end) {
+			QueryBuilder query = super.buildQuery(start, end);
+			if (aggregatorName != null) {
+				for (QueryMetric metric : query.getMetrics()) {
+					metric.addAggregator(createAggregator());
+				}
+			}
+			return query;
+		}
+
+		@Override
+		List<Object[]> readChunk(long start, long end) throws Exception {
+			// a chunk that covers a full bucket that ended long enough ago won't change.
+			boolean closed = cache != null && end - start == chunkSize && end <= now - dataStore.getConfiguration().getQuerySettleDelay();
+			if (!closed) {
+				return super.readChunk(start, end);
+			}
+			String key = cacheKey + start;
+			List<Object[]> rows = cache.get(key);
+			if (rows == null) {
+				rows = super.readChunk(start, end);
+				cache.put(key, rows);
+			}
+			return rows;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return queryName + ": " + query;
+	}
+}
@@ -0,0 +1,251 @@
+/*******************************************************************************
+ * Copyright (c) 2014 uniVocity Software Pty Ltd. All rights reserved.
+ * This file is subject to the terms and conditions defined in file
+ * 'LICENSE.txt', which is part of this source code package.
+ ******************************************************************************/
+package com.univocity.articles.kairosdb.custom;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.kairosdb.client.builder.*;
+import org.kairosdb.client.builder.grouper.*;
+import org.kairosdb.client.response.*;
+
+import com.univocity.api.entity.custom.*;
+
+/**
+ * Reads data points from KairosDB, producing rows with the fields of a {@link KairosDataEntity}: name, timestamp, value and tags.
+ *
+ * The requested time range is split into chunks, which are queried in parallel. Rows are returned chunk by chunk, in
+ * chronological order, and only a limited number of chunks (the query parallelism) are held in memory at any time.
+ * This way, reading several weeks of data never requires the entire response to be loaded at once.
+ *
+ * @author uniVocity Software Pty Ltd - <a href="mailto:dev@univocity.com">dev@univocity.com</a>
+ *
+ */
+class KairosReadingProcess implements ReadingProcess {
+
+	private final KairosDataStore dataStore;
+	private final String description;
+	private final List<String> metricNames;
+	private final String[] tagNames;
+
+	private final int namePosition;
+	private final int timestampPosition;
+	private final int valuePosition;
+	private final int[] tagPositions;
+	private final int rowLength;
+
+	private final long end;
+	private final long chunkSize;
+	private final int parallelism;
+
+	private ExecutorService executor;
+	private final LinkedList<Future<List<Object[]>>> pendingChunks = new LinkedList<Future<List<Object[]>>>();
+	private long nextChunkStart;
+	private Iterator<Object[]> currentChunk;
+
+	/**
+	 * Creates a new reading process
+	 *
+	 * @param dataStore the data store with the client to use for querying KairosDB.
+	 * @param description a description of what is being read, for error messages.
+	 * @param metricNames the names of the metrics to read.
+	 * @param tagNames the names of the tags of the metrics to read.
+	 * @param fieldNames the fields to produce in each row, in order. Any of: "name", "timestamp", "value" and the tag names.
+	 * @param start the start of the time range to read, in milliseconds (inclusive).
+	 * @param end the end of the time range to read, in milliseconds (exclusive).
+	 * @param chunkSize the length of the time interval read by each query, in milliseconds. Chunks start at multiples of this value.
+	 * @param parallelism the maximum number of queries running at the same time.
+	 */
+	KairosReadingProcess(KairosDataStore dataStore, String description, List<String> metricNames, String[] tagNames, String[] fieldNames, long start, long end, long chunkSize, int parallelism) {
+		if (end <= start) {
+			throw new IllegalArgumentException("End of time range to read must be after its start");
+		}
+		this.dataStore = dataStore;
+		this.description = description;
+		this.metricNames = metricNames;
+		this.tagNames = tagNames;
+
+		List<String> fields = Arrays.asList(fieldNames);
+		this.namePosition = fields.indexOf("name");
+		this.timestampPosition = fields.indexOf("timestamp");
+		this.valuePosition = fields.indexOf("value");
+		this.tagPositions = new int[tagNames.length];
+		for (int i = 0; i < tagNames.length; i++) {
+			tagPositions[i] = fields.indexOf(tagNames[i]);
+		}
+		this.rowLength = fieldNames.length;
+
+		this.nextChunkStart = start;
+		this.end = end;
+		this.chunkSize = chunkSize;
+		this.parallelism = parallelism;
+	}
+
+	public void open() {
+		if (executor != null) {
+			return;
+		}
+		executor = Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "kairos-read-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		submitChunks();
+	}
+
+	private void submitChunks() {
+		while (pendingChunks.size() < parallelism && nextChunkStart < end && !metricNames.isEmpty()) {
+			final long chunkStart = nextChunkStart;
+			// chunk boundaries are aligned to multiples of the chunk size, so different reads produce the same chunks.
+			final long chunkEnd = Math.min(end, (chunkStart / chunkSize + 1) * chunkSize);
+			nextChunkStart = chunkEnd;
+
+			pendingChunks.add(executor.submit(new Callable<List<Object[]>>() {
+				@Override
+				public List<Object[]> call() throws Exception {
+					return readChunk(chunkStart, chunkEnd);
+				}
+			}));
+		}
+	}
+
+	@Override
+	public Object[] readNext() {
+		open();
+		while (currentChunk == null || !currentChunk.hasNext()) {
+			if (pendingChunks.isEmpty()) {
+				return null;
+			}
+			currentChunk = nextChunk().iterator();
+			submitChunks();
+		}
+		Object[] row = currentChunk.next();
+		currentChunk.remove();
+		return row;
+	}
+
+	private List<Object[]> nextChunk() {
+		try {
+			return pendingChunks.removeFirst().get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while reading " + description, e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("Error reading " + description, e.getCause());
+		}
+	}
+
+	/**
+	 * Builds the query for a chunk of the time range. Subclasses can override this method to customize the query.
+	 *
+	 * @param start the start of the chunk (inclusive).
+	 * @param end the end of the chunk (exclusive).
+	 * @return the query to execute.
+	 */
+	QueryBuilder buildQuery(long start, long end) {
+		QueryBuilder query = QueryBuilder.getInstance();
+		query.setStart(new Date(start));
+		// the end time is inclusive in KairosDB
+		query.setEnd(new Date(end - 1));
+		for (String metricName : metricNames) {
+			QueryMetric metric = query.addMetric(metricName);
+			if (tagNames.length > 0) {
+				// one result per combination of tag values, otherwise KairosDB merges all series with the same name.
+				metric.addGrouper(new TagGrouper(tagNames));
+			}
+		}
+		return query;
+	}
+
+	/**
+	 * Reads all rows in a chunk of the time range, sorted by timestamp.
+	 *
+	 * @param start the start of the chunk (inclusive).
+	 * @param end the end of the chunk (exclusive).
+	 * @return the rows of the chunk. The list is consumed (emptied) while rows are read.
+	 * @throws Exception if the query fails
+	 */
+	List<Object[]> readChunk(long start, long end) throws Exception {
+		QueryResponse response = dataStore.query(buildQuery(start, end));
+		if (!response.getErrors().isEmpty()) {
+			throw new IllegalStateException("Error querying " + description + ": " + response.getErrors());
+		}
+
+		List<TimedRow> rows = new ArrayList<TimedRow>();
+		for (Queries queries : response.getQueries()) {
+			for (Results results : queries.getResults()) {
+				for (DataPoint dataPoint : results.getDataPoints()) {
+					rows.add(new TimedRow(dataPoint.getTimestamp(), toRow(results, dataPoint)));
+				}
+			}
+		}
+		// each series comes sorted, but rows of different series must be interleaved.
+		Collections.sort(rows);
+
+		LinkedList<Object[]> out = new LinkedList<Object[]>();
+		for (TimedRow row : rows) {
+			out.add(row.row);
+		}
+		return out;
+	}
+
+	private Object[] toRow(Results results, DataPoint dataPoint) {
+		Object[] row = new Object[rowLength];
+		if (namePosition != -1) {
+			row[namePosition] = results.getName();
+		}
+		if (timestampPosition != -1) {
+			row[timestampPosition] = dataPoint.getTimestamp();
+		}
+		if (valuePosition != -1) {
+			row[valuePosition] = dataPoint.getValue();
+		}
+		Map<String, List<String>> tags = results.getTags();
+		for (int i = 0; i < tagPositions.length; i++) {
+			if (tagPositions[i] != -1 && tags != null) {
+				List<String> values = tags.get(tagNames[i]);
+				if (values != null && values.size() == 1) {
+					row[tagPositions[i]] = values.get(0);
+				}
+			}
+		}
+		return row;
+	}
+
+	private static final class TimedRow implements Comparable<TimedRow> {
+		final long timestamp;
+		final Object[] row;
+
+		TimedRow(long timestamp, Object[] row) {
+			this.timestamp = timestamp;
+			this.row = row;
+		}
+
+		@Override
+		public int compareTo(TimedRow o) {
+			return timestamp < o.timestamp ? -1 : (timestamp == o.timestamp ? 0 : 1);
+		}
+	}
+
+	@Override
+	public void close() {
+		for (Future<List<Object[]>> chunk : pendingChunks) {
+			chunk.cancel(true);
+		}
+		pendingChunks.clear();
+		currentChunk = null;
+		if (executor != null) {
+			executor.shutdownNow();
+			executor = null;
+		}
+	}
+}
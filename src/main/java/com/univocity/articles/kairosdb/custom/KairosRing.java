@@ -0,0 +1,111 @@
+/*******************************************************************************
+ * Copyright (c) 2014 uniVocity Software Pty Ltd. All rights reserved.
+ * This file is subject to the terms and conditions defined in file
+ * 'LICENSE.txt', which is part of this source code package.
+ ******************************************************************************/
+package com.univocity.articles.kairosdb.custom;
+
+import java.security.*;
+import java.util.*;
+
+/**
+ * Assigns metric names to the nodes of a KairosDB cluster with consistent hashing. Each node is placed at a number of
+ * points of a ring of hashes, and each metric goes to the node at the first point after the hash of its name. Adding or
+ * removing a node only moves the metrics around its points, and spreading many points per node keeps the load
+ * balanced.
+ *
+ * If a node is not available, its metrics go to the next available node in the ring, so the traffic of a failed node is
+ * spread among the remaining nodes instead of being dumped on a single one.
+ *
+ * @author uniVocity Software Pty Ltd - <a href="mailto:dev@univocity.com">dev@univocity.com</a>
+ *
+ */
+class KairosRing {
+
+	private static final int POINTS_PER_NODE = 128;
+
+	// sorted hashes of the points in the ring, and the index of the node at each point.
+	private final int[] hashes;
+	private final int[] owners;
+
+	/**
+	 * Creates a ring with the given nodes
+	 *
+	 * @param urls the URLs of the nodes. The position of each URL is the index of its node.
+	 */
+	KairosRing(List<String> urls) {
+		// each point packs its hash in the high bits, so sorting the points sorts the hashes.
+		long[] points = new long[urls.size() * POINTS_PER_NODE];
+		int p = 0;
+		for (int node = 0; node < urls.size(); node++) {
+			for (int i = 0; i < POINTS_PER_NODE; i++) {
+				points[p++] = ((long) pointHash(urls.get(node) + "#" + i) << 32) | node;
+			}
+		}
+		Arrays.sort(points);
+
+		hashes = new int[points.length];
+		owners = new int[points.length];
+		for (int i = 0; i < points.length; i++) {
+			hashes[i] = (int) (points[i] >> 32);
+			owners[i] = (int) points[i];
+		}
+	}
+
+	private static int pointHash(String s) {
+		try {
+			byte[] digest = MessageDigest.getInstance("MD5").digest(s.getBytes("UTF-8"));
+			return (digest[0] & 0xFF) << 24 | (digest[1] & 0xFF) << 16 | (digest[2] & 0xFF) << 8 | (digest[3] & 0xFF);
+		} catch (Exception e) {
+			throw new IllegalStateException("Unable to hash " + s, e);
+		}
+	}
+
+	// spreads the bits of String.hashCode(), which is cached by each string, so metric names don't need to be hashed again.
+	private static int keyHash(String key) {
+		int h = key.hashCode();
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+
+	private int position(String key) {
+		int position = Arrays.binarySearch(hashes, keyHash(key));
+		if (position < 0) {
+			position = -position - 1;
+		}
+		return position == hashes.length ? 0 : position;
+	}
+
+	/**
+	 * Returns the node assigned to a metric, regardless of its availability
+	 *
+	 * @param key the metric name
+	 * @return the index of the node of the metric.
+	 */
+	int owner(String key) {
+		return owners[position(key)];
+	}
+
+	/**
+	 * Returns the node that should receive a metric: the node assigned to it, or the next available node in the ring if
+	 * the assigned one is not available.
+	 *
+	 * @param key the metric name
+	 * @param nodes the nodes of the ring, in the same order of the URLs used to create it.
+	 * @return the index of the node that should receive the metric. If no node is available, the node assigned to the metric.
+	 */
+	int route(String key, KairosNode[] nodes) {
+		int start = position(key);
+		for (int i = 0; i < owners.length; i++) {
+			int node = owners[(start + i) % owners.length];
+			if (nodes[node].isAvailable()) {
+				return node;
+			}
+		}
+		return owners[start];
+	}
+}
@@ -0,0 +1,417 @@
+/*******************************************************************************
+ * Copyright (c) 2014 uniVocity Software Pty Ltd. All rights reserved.
+ * This file is subject to the terms and conditions defined in file
+ * 'LICENSE.txt', which is part of this source code package.
+ ******************************************************************************/
+package com.univocity.articles.kairosdb.custom;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.zip.*;
+
+import org.slf4j.*;
+
+/**
+ * An append-only queue of encoded batches of data points, stored in memory-mapped segment files. Batches that can't be
+ * pushed to KairosDB are appended here, and replayed later in the order they were appended.
+ *
+ * Each segment file has a fixed size, and holds a sequence of records. A record is a header with the length of the batch and a
+ * CRC32 of its content, followed by the content itself. A record is appended by writing its content and CRC first, and its
+ * length last, so an incomplete record is never taken as valid. Once a record is replayed, its length is negated
+ * in place, so it's skipped after a restart. Segment files are deleted when all their records have been replayed.
+ *
+ * When a spool is opened, existing segments are scanned and the first record not replayed becomes the head of the queue.
+ * A record with a CRC that doesn't match its content is considered to be the result of a crash, and is discarded along
+ * with everything after it in the same segment.
+ *
+ * A spool directory can only be used by one spool at a time. All methods are thread-safe.
+ *
+ * @author uniVocity Software Pty Ltd - <a href="mailto:dev@univocity.com">dev@univocity.com</a>
+ *
+ */
+class KairosSpool {
+
+	private static final Logger log = LoggerFactory.getLogger(KairosSpool.class);
+
+	private static final String PREFIX = "spool-";
+	private static final String SUFFIX = ".seg";
+	// length and CRC32 of each record.
+	private static final int HEADER_SIZE = 8;
+
+	private final File directory;
+	private final int segmentSize;
+	private final long maxSize;
+
+	private final RandomAccessFile lockFile;
+	private final FileLock lock;
+
+	// oldest segment first. Records are appended into the last one, and read from the first one.
+	private final LinkedList<Segment> segments = new LinkedList<Segment>();
+	private long nextSequence;
+	private int readPosition;
+	private int pendingRecords;
+	private boolean closed;
+
+	/**
+	 * Opens a spool, recovering any records left in its directory.
+	 *
+	 * @param directory the directory where segment files are stored. It's created if it doesn't exist.
+	 * @param segmentSize the size of each segment file, in bytes. Batches larger than this can't be spooled.
+	 * @param maxSize the maximum size of all segment files, in bytes.
+	 * @throws IOException if the spool directory can't be used.
+	 */
+	KairosSpool(File directory, int segmentSize, long maxSize) throws IOException {
+		if (segmentSize <= HEADER_SIZE || maxSize < segmentSize) {
+			throw new IllegalArgumentException("Invalid spool sizes: segment " + segmentSize + ", maximum " + maxSize);
+		}
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Unable to create spool directory " + directory.getAbsolutePath());
+		}
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.maxSize = maxSize;
+
+		this.lockFile = new RandomAccessFile(new File(directory, "spool.lock"), "rw");
+		FileLock lock = null;
+		try {
+			lock = lockFile.getChannel().tryLock();
+		} catch (OverlappingFileLockException e) {
+			// locked by this JVM.
+		}
+		if (lock == null) {
+			lockFile.close();
+			throw new IOException("Spool directory " + directory.getAbsolutePath() + " is in use");
+		}
+		this.lock = lock;
+
+		recover();
+	}
+
+	private void recover() throws IOException {
+		File[] files = directory.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+			}
+		});
+		Arrays.sort(files);
+
+		boolean headFound = false;
+		for (File file : files) {
+			long sequence = Long.parseLong(file.getName().substring(PREFIX.length(), file.getName().length() - SUFFIX.length()));
+			nextSequence = sequence + 1;
+			if (file.length() != segmentSize) {
+				log.warn("Discarding spool segment {} with unexpected size {}", file.getAbsolutePath(), file.length());
+				delete(file);
+				continue;
+			}
+			Segment segment = new Segment(file);
+			int pending = segment.recover();
+			if (pending == 0 && !headFound) {
+				// all replayed
+				segment.close();
+				delete(file);
+				continue;
+			}
+			if (!headFound) {
+				headFound = true;
+				readPosition = segment.firstPending;
+			}
+			pendingRecords += pending;
+			segments.add(segment);
+		}
+		if (pendingRecords > 0) {
+			log.info("Recovered {} batches from spool {}", pendingRecords, directory.getAbsolutePath());
+		}
+	}
+
+	private static void delete(File file) {
+		if (!file.delete()) {
+			log.warn("Unable to delete spool segment {}", file.getAbsolutePath());
+		}
+	}
+
+	/**
+	 * Appends a batch to the spool
+	 *
+	 * @param bytes the encoded batch
+	 * @param length the number of bytes of the batch
+	 * @return {@code true} if the batch was appended, or {@code false} if the spool is full.
+	 * @throws IOException if a new segment file can't be created.
+	 */
+	synchronized boolean append(byte[] bytes, int length) throws IOException {
+		checkOpen();
+		if (length <= 0 || length > segmentSize - HEADER_SIZE) {
+			throw new IllegalArgumentException("Batch of " + length + " bytes does not fit in spool segments of " + segmentSize + " bytes");
+		}
+		Segment tail = segments.isEmpty() ? null : segments.getLast();
+		if (tail == null || tail.writePosition + HEADER_SIZE + length > segmentSize) {
+			if ((long) (segments.size() + 1) * segmentSize > maxSize) {
+				return false;
+			}
+			tail = new Segment(new File(directory, String.format(PREFIX + "%020d" + SUFFIX, nextSequence)));
+			nextSequence++;
+			if (segments.isEmpty()) {
+				readPosition = 0;
+			}
+			segments.add(tail);
+		}
+
+		CRC32 crc = new CRC32();
+		crc.update(bytes, 0, length);
+
+		MappedByteBuffer buffer = tail.buffer;
+		int position = tail.writePosition;
+		buffer.position(position + HEADER_SIZE);
+		buffer.put(bytes, 0, length);
+		buffer.putInt(position + 4, (int) crc.getValue());
+		// written last: the record becomes visible once its length is in place.
+		buffer.putInt(position, length);
+		tail.writePosition = position + HEADER_SIZE + length;
+		tail.dirty = true;
+
+		pendingRecords++;
+		notifyAll();
+		return true;
+	}
+
+	/**
+	 * Returns the batch at the head of the spool, waiting for one to be appended if the spool is empty. The batch
+	 * remains in the spool until {@link #remove()} is called.
+	 *
+	 * @param timeout the maximum time to wait, in milliseconds.
+	 * @return the oldest batch not yet replayed, or {@code null} if none was appended within the given time.
+	 * @throws InterruptedException if interrupted while waiting.
+	 */
+	synchronized byte[] peek(long timeout) throws InterruptedException {
+		if (pendingRecords == 0 && !closed) {
+			wait(timeout);
+		}
+		if (pendingRecords == 0 || closed) {
+			return null;
+		}
+		Segment head = advanceToHead();
+		int length = head.buffer.getInt(readPosition);
+		byte[] out = new byte[length];
+		head.buffer.position(readPosition + HEADER_SIZE);
+		head.buffer.get(out);
+		return out;
+	}
+
+	/**
+	 * Marks the batch at the head of the spool as replayed, and deletes the segment file that contained it if it has no
+	 * more batches to replay.
+	 */
+	synchronized void remove() {
+		checkOpen();
+		if (pendingRecords == 0) {
+			throw new IllegalStateException("Spool is empty");
+		}
+		Segment head = advanceToHead();
+		int length = head.buffer.getInt(readPosition);
+		head.buffer.putInt(readPosition, -length);
+		head.dirty = true;
+		readPosition += HEADER_SIZE + length;
+		pendingRecords--;
+
+		if (pendingRecords == 0) {
+			while (!segments.isEmpty()) {
+				discardHead();
+			}
+		} else if (readPosition + HEADER_SIZE > segmentSize || head.buffer.getInt(readPosition) == 0) {
+			// reached the end of a segment that is not the last.
+			discardHead();
+		}
+	}
+
+	// skips records already replayed, and segments with nothing left to replay.
+	private Segment advanceToHead() {
+		while (true) {
+			Segment head = segments.getFirst();
+			if (readPosition + HEADER_SIZE <= segmentSize) {
+				int length = head.buffer.getInt(readPosition);
+				if (length > 0) {
+					return head;
+				}
+				if (length < 0) {
+					readPosition += HEADER_SIZE - length;
+					continue;
+				}
+			}
+			discardHead();
+		}
+	}
+
+	private void discardHead() {
+		Segment head = segments.removeFirst();
+		head.close();
+		delete(head.file);
+		readPosition = 0;
+	}
+
+	/**
+	 * Forces all changes to the segment files to be written to disk, so they survive a crash of the operating system.
+	 */
+	synchronized void sync() {
+		if (closed) {
+			return;
+		}
+		for (Segment segment : segments) {
+			if (segment.dirty) {
+				segment.buffer.force();
+				segment.dirty = false;
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of batches not yet replayed
+	 *
+	 * @return the number of batches in the spool.
+	 */
+	synchronized int size() {
+		return pendingRecords;
+	}
+
+	/**
+	 * Returns whether there are no batches to replay
+	 *
+	 * @return {@code true} if the spool is empty.
+	 */
+	synchronized boolean isEmpty() {
+		return pendingRecords == 0;
+	}
+
+	/**
+	 * Returns the total size of the segment files
+	 *
+	 * @return the disk space used by this spool, in bytes.
+	 */
+	synchronized long getSizeOnDisk() {
+		return (long) segments.size() * segmentSize;
+	}
+
+	private void checkOpen() {
+		if (closed) {
+			throw new IllegalStateException("Spool " + directory.getAbsolutePath() + " is closed");
+		}
+	}
+
+	/**
+	 * Writes all changes to disk and closes the segment files. Batches not replayed are recovered when the spool is opened again.
+	 */
+	synchronized void close() {
+		if (closed) {
+			return;
+		}
+		sync();
+		closed = true;
+		for (Segment segment : segments) {
+			segment.close();
+		}
+		segments.clear();
+		try {
+			lock.release();
+			lockFile.close();
+		} catch (IOException e) {
+			log.warn("Unable to release lock of spool directory " + directory.getAbsolutePath(), e);
+		}
+		notifyAll();
+	}
+
+	@Override
+	public String toString() {
+		return "spool " + directory.getAbsolutePath() + " (" + size() + " batches)";
+	}
+
+	/**
+	 * A segment file, mapped into memory.
+	 */
+	private class Segment {
+		final File file;
+		final RandomAccessFile randomAccessFile;
+		final MappedByteBuffer buffer;
+		int writePosition;
+		int firstPending = -1;
+		boolean dirty;
+
+		Segment(File file) throws IOException {
+			this.file = file;
+			this.randomAccessFile = new RandomAccessFile(file, "rw");
+			try {
+				// new files are filled with zeros, i.e. no records.
+				randomAccessFile.setLength(segmentSize);
+				this.buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+			} catch (IOException e) {
+				randomAccessFile.close();
+				throw e;
+			}
+		}
+
+		/**
+		 * Finds the end of the last valid record, and the first record not yet replayed.
+		 *
+		 * @return the number of records not yet replayed.
+		 */
+		int recover() {
+			int pending = 0;
+			int position = 0;
+			CRC32 crc = new CRC32();
+			byte[] content = new byte[0];
+			while (position + HEADER_SIZE <= segmentSize) {
+				int length = buffer.getInt(position);
+				if (length == 0) {
+					break;
+				}
+				int size = Math.abs(length);
+				if (length == Integer.MIN_VALUE || size > segmentSize - position - HEADER_SIZE) {
+					discardFrom(position);
+					break;
+				}
+				if (length > 0) {
+					if (content.length < size) {
+						content = new byte[size];
+					}
+					buffer.position(position + HEADER_SIZE);
+					buffer.get(content, 0, size);
+					crc.reset();
+					crc.update(content, 0, size);
+					if ((int) crc.getValue() != buffer.getInt(position + 4)) {
+						discardFrom(position);
+						break;
+					}
+					if (firstPending == -1) {
+						firstPending = position;
+					}
+					pending++;
+				}
+				position += HEADER_SIZE + size;
+			}
+			writePosition = position;
+			return pending;
+		}
+
+		// clears an incomplete record and anything after it, so it's not mistaken for a valid record later.
+		private void discardFrom(int position) {
+			log.warn("Discarding incomplete batch at position {} of spool segment {}", position, file.getAbsolutePath());
+			buffer.position(position);
+			while (buffer.hasRemaining()) {
+				buffer.put((byte) 0);
+			}
+			dirty = true;
+		}
+
+		void close() {
+			try {
+				if (dirty) {
+					buffer.force();
+				}
+				randomAccessFile.close();
+			} catch (IOException e) {
+				log.warn("Error closing spool segment " + file.getAbsolutePath(), e);
+			}
+		}
+	}
+}
@@ -0,0 +1,28 @@
+/*******************************************************************************
+ * Copyright (c) 2014 uniVocity Software Pty Ltd. All rights reserved.
+ * This file is subject to the terms and conditions defined in file
+ * 'LICENSE.txt', which is part of this source code package.
+ ******************************************************************************/
+package com.univocity.articles.kairosdb.custom;
+
+/**
+ * The protocols {@link KairosDataStore} can use to send data points to KairosDB.
+ *
+ * @author uniVocity Software Pty Ltd - <a href="mailto:dev@univocity.com">dev@univocity.com</a>
+ *
+ */
+public enum KairosTransport {
+
+	/**
+	 * Data points are pushed in batches to the REST API (/api/v1/datapoints) as JSON.
+	 */
+	HTTP,
+
+	/**
+	 * Data points are streamed as {@code put <metric> <timestamp> <value> <tag=value>...} lines through a persistent TCP connection
+	 * to the telnet port of KairosDB. This avoids the cost of producing JSON and parsing HTTP responses, but KairosDB does
+	 * not acknowledge individual lines, so errors are only detected when the connection fails. Spaces, {@code =} and control
+	 * characters in metric names and tags are replaced by {@code _}, as the line protocol can't escape them.
+	 */
+	TELNET
+}
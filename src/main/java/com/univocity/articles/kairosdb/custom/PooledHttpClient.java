@@ -0,0 +1,226 @@
+/*******************************************************************************
+ * Copyright (c) 2014 uniVocity Software Pty Ltd. All rights reserved.
+ * This file is subject to the terms and conditions defined in file
+ * 'LICENSE.txt', which is part of this source code package.
+ ******************************************************************************/
+package com.univocity.articles.kairosdb.custom;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.apache.http.*;
+import org.apache.http.client.config.*;
+import org.apache.http.client.methods.*;
+import org.apache.http.entity.*;
+import org.apache.http.impl.client.*;
+import org.apache.http.impl.conn.*;
+import org.kairosdb.client.*;
+import org.kairosdb.client.builder.QueryBuilder;
+import org.kairosdb.client.deserializer.*;
+import org.kairosdb.client.response.*;
+import org.slf4j.*;
+
+import com.google.gson.*;
+
+/**
+ * A long-lived {@link HttpClient} that keeps a pool of persistent connections to KairosDB.
+ *
+ * Connections are kept alive between requests and reused across transactions. A background thread evicts connections that
+ * have been idle for longer than {@link KairosDataStoreConfiguration#getConnectionIdleTimeout()}.
+ *
+ * {@link HttpClient} keeps its retry count in a field that is incremented on every request, so a long-lived client shared
+ * by several threads would end up retrying failed requests indefinitely. The requests made by this class are executed
+ * here instead, each one with its own count of attempts.
+ *
+ * @author uniVocity Software Pty Ltd - <a href="mailto:dev@univocity.com">dev@univocity.com</a>
+ *
+ */
+class PooledHttpClient extends HttpClient {
+
+	private static final Logger log = LoggerFactory.getLogger(PooledHttpClient.class);
+
+	private static final int RETRIES = 3;
+
+	private final String datapointsUrl;
+	private final String queryUrl;
+	private final String metricNamesUrl;
+	private final Gson mapper;
+	private final CloseableHttpClient client;
+	private final PoolingHttpClientConnectionManager connectionManager;
+	private final ScheduledExecutorService evictor;
+
+	public PooledHttpClient(KairosDataStoreConfiguration configuration, String url) throws MalformedURLException {
+		super(url);
+		datapointsUrl = url + "/api/v1/datapoints";
+		queryUrl = url + "/api/v1/datapoints/query";
+		metricNamesUrl = url + "/api/v1/metricnames";
+
+		// the same deserializers registered by the superclass, which keeps its own mapper private.
+		mapper = new GsonBuilder()
+				.registerTypeAdapter(GroupResult.class, new GroupByDeserializer())
+				.registerTypeAdapter(Results.class, new ResultsDeserializer(this))
+				.create();
+
+		connectionManager = new PoolingHttpClientConnectionManager();
+		connectionManager.setMaxTotal(configuration.getMaxConnections());
+		connectionManager.setDefaultMaxPerRoute(configuration.getMaxConnections());
+
+		RequestConfig requestConfig = RequestConfig.custom()
+				.setConnectTimeout(configuration.getConnectTimeout())
+				.setConnectionRequestTimeout(configuration.getConnectTimeout())
+				.setSocketTimeout(configuration.getReadTimeout())
+				.build();
+
+		client = HttpClients.custom()
+				.setConnectionManager(connectionManager)
+				.setDefaultRequestConfig(requestConfig)
+				.setKeepAliveStrategy(DefaultConnectionKeepAliveStrategy.INSTANCE)
+				.build();
+
+		// discards the client created by default in the superclass.
+		try {
+			super.shutdown();
+		} catch (IOException e) {
+			log.debug("Error closing default HTTP client", e);
+		}
+		setClient(client);
+
+		final long idleTimeout = configuration.getConnectionIdleTimeout();
+		evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "kairos-connection-evictor");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		evictor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				connectionManager.closeExpiredConnections();
+				connectionManager.closeIdleConnections(idleTimeout, TimeUnit.MILLISECONDS);
+			}
+		}, idleTimeout, idleTimeout, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Pushes data points encoded as JSON, such as the content of a {@link JsonBatch} read back from a {@link KairosSpool}.
+	 *
+	 * @param bytes the JSON array of metrics to push
+	 * @param length the number of bytes to push
+	 * @return the response from KairosDB, with any errors it reported.
+	 * @throws IOException if the data points could not be sent.
+	 */
+	public Response pushBytes(byte[] bytes, int length) throws IOException {
+		HttpPost post = new HttpPost(datapointsUrl);
+		post.setEntity(new ByteArrayEntity(bytes, 0, length, ContentType.APPLICATION_JSON));
+
+		CloseableHttpResponse httpResponse = execute(post);
+		try {
+			return readResponse(httpResponse);
+		} finally {
+			httpResponse.close();
+		}
+	}
+
+	// sends a request, trying again up to RETRIES times if it can't be sent.
+	private CloseableHttpResponse execute(HttpUriRequest request) throws IOException {
+		IOException error = null;
+		for (int attempt = 0; attempt < RETRIES; attempt++) {
+			try {
+				return client.execute(request);
+			} catch (IOException e) {
+				error = e;
+			}
+		}
+		throw error;
+	}
+
+	private Response readResponse(HttpResponse httpResponse) throws IOException {
+		int status = httpResponse.getStatusLine().getStatusCode();
+		Response response = new Response(status);
+		HttpEntity entity = httpResponse.getEntity();
+		if (entity != null) {
+			InputStreamReader reader = new InputStreamReader(entity.getContent(), "UTF-8");
+			try {
+				if (status != 204) {
+					ErrorResponse errors = new Gson().fromJson(reader, ErrorResponse.class);
+					if (errors != null && errors.errors != null) {
+						response.addErrors(errors.errors);
+					}
+				}
+			} catch (JsonParseException e) {
+				response.addErrors(Collections.singletonList("Unable to parse response of KairosDB (HTTP status " + status + ")"));
+			} finally {
+				reader.close();
+			}
+		}
+		if (status >= 400 && response.getErrors().isEmpty()) {
+			response.addErrors(Collections.singletonList(httpResponse.getStatusLine().toString()));
+		}
+		return response;
+	}
+
+	private static class ErrorResponse {
+		List<String> errors;
+	}
+
+	@Override
+	public QueryResponse query(QueryBuilder builder) throws URISyntaxException, IOException {
+		HttpPost post = new HttpPost(queryUrl);
+		post.setEntity(new StringEntity(builder.build(), ContentType.APPLICATION_JSON));
+
+		CloseableHttpResponse httpResponse = execute(post);
+		try {
+			int status = httpResponse.getStatusLine().getStatusCode();
+			if (status >= 400) {
+				QueryResponse response = new QueryResponse();
+				response.setStatusCode(status);
+				response.addErrors(readResponse(httpResponse).getErrors());
+				return response;
+			}
+			InputStreamReader reader = new InputStreamReader(httpResponse.getEntity().getContent(), "UTF-8");
+			try {
+				QueryResponse response = mapper.fromJson(reader, QueryResponse.class);
+				response.setStatusCode(status);
+				return response;
+			} finally {
+				reader.close();
+			}
+		} finally {
+			httpResponse.close();
+		}
+	}
+
+	@Override
+	public GetResponse getMetricNames() throws IOException {
+		CloseableHttpResponse httpResponse = execute(new HttpGet(metricNamesUrl));
+		try {
+			int status = httpResponse.getStatusLine().getStatusCode();
+			if (status >= 400) {
+				return new GetResponse(status);
+			}
+			InputStreamReader reader = new InputStreamReader(httpResponse.getEntity().getContent(), "UTF-8");
+			try {
+				NameResponse names = mapper.fromJson(reader, NameResponse.class);
+				return new GetResponse(status, names == null || names.results == null ? new ArrayList<String>() : names.results);
+			} finally {
+				reader.close();
+			}
+		} finally {
+			httpResponse.close();
+		}
+	}
+
+	private static class NameResponse {
+		List<String> results;
+	}
+
+	@Override
+	public void shutdown() throws IOException {
+		evictor.shutdownNow();
+		super.shutdown();
+	}
+}
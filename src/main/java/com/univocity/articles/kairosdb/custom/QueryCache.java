@@ -0,0 +1,108 @@
+/*******************************************************************************
+ * Copyright (c) 2014 uniVocity Software Pty Ltd. All rights reserved.
+ * This file is subject to the terms and conditions defined in file
+ * 'LICENSE.txt', which is part of this source code package.
+ ******************************************************************************/
+package com.univocity.articles.kairosdb.custom;
+
+import java.util.*;
+
+/**
+ * A bounded cache of query results, one entry per chunk of time read by a {@link KairosQuery}. When the cache is full,
+ * the least recently used chunk is evicted.
+ *
+ * Only chunks that cover a full time bucket in the past should be cached: their data points are not expected to
+ * change, so they can be served again without querying KairosDB.
+ *
+ * @author uniVocity Software Pty Ltd - <a href="mailto:dev@univocity.com">dev@univocity.com</a>
+ *
+ */
+class QueryCache {
+
+	private final int maxSize;
+	private final LinkedHashMap<String, List<Object[]>> chunks;
+
+	private long hits;
+	private long misses;
+
+	/**
+	 * Creates a new cache
+	 *
+	 * @param maxSize the maximum number of chunks kept in the cache.
+	 */
+	QueryCache(final int maxSize) {
+		this.maxSize = maxSize;
+		// access order: iteration starts at the least recently used chunk.
+		this.chunks = new LinkedHashMap<String, List<Object[]>>(Math.min(maxSize, 1024), 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, List<Object[]>> eldest) {
+				return size() > QueryCache.this.maxSize;
+			}
+		};
+	}
+
+	/**
+	 * Returns a copy of the rows of a cached chunk. Rows are copied as the caller is free to modify them.
+	 *
+	 * @param key the key of the chunk
+	 * @return a copy of the rows of the chunk, or {@code null} if the chunk is not in the cache.
+	 */
+	List<Object[]> get(String key) {
+		List<Object[]> rows;
+		synchronized (this) {
+			rows = chunks.get(key);
+			if (rows == null) {
+				misses++;
+				return null;
+			}
+			hits++;
+		}
+		return copy(rows);
+	}
+
+	/**
+	 * Adds a chunk to the cache.
+	 *
+	 * @param key the key of the chunk
+	 * @param rows the rows of the chunk. They are copied, so the given list and rows can be modified afterwards.
+	 */
+	void put(String key, List<Object[]> rows) {
+		List<Object[]> copy = copy(rows);
+		synchronized (this) {
+			chunks.put(key, copy);
+		}
+	}
+
+	private static LinkedList<Object[]> copy(List<Object[]> rows) {
+		LinkedList<Object[]> out = new LinkedList<Object[]>();
+		for (Object[] row : rows) {
+			out.add(row.clone());
+		}
+		return out;
+	}
+
+	/**
+	 * Returns the number of chunks served from the cache.
+	 *
+	 * @return the number of hits.
+	 */
+	synchronized long getHits() {
+		return hits;
+	}
+
+	/**
+	 * Returns the number of chunks that had to be queried because they were not in the cache.
+	 *
+	 * @return the number of misses.
+	 */
+	synchronized long getMisses() {
+		return misses;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "QueryCache [size=" + chunks.size() + ", hits=" + hits + ", misses=" + misses + "]";
+	}
+}
@@ -0,0 +1,284 @@
+/*******************************************************************************
+ * Copyright (c) 2014 uniVocity Software Pty Ltd. All rights reserved.
+ * This file is subject to the terms and conditions defined in file
+ * 'LICENSE.txt', which is part of this source code package.
+ ******************************************************************************/
+package com.univocity.articles.kairosdb.custom;
+
+import org.slf4j.*;
+
+import com.univocity.articles.kairosdb.metrics.*;
+
+/**
+ * Downsamples the data points written into an entity (see {@link KairosDataStoreConfiguration#addEntity(String, Rollup, String...)}).
+ * The numeric data points of each series (a metric name and its tag values) are grouped into buckets of a fixed interval, and
+ * the minimum, maximum, average and count of each bucket are written into KairosDB as 4 metrics once the bucket closes.
+ * For example, with an interval of 1 minute, the data points of metric {@code temperature} produce {@code temperature.1m.min},
+ * {@code temperature.1m.max}, {@code temperature.1m.avg} and {@code temperature.1m.count}, with the start of each minute as
+ * timestamp and the same tags of the original data points.
+ *
+ * A bucket closes when a data point past its end plus the grace period is written. Data points that arrive later than
+ * that are not aggregated (but still written as raw data points if {@link #isRawPointsKept()}).
+ *
+ * Data points are aggregated when the transaction that writes them completes, so rows read again after a failed
+ * transaction are not counted twice. Buckets are written into KairosDB after the transaction that closes them. If that
+ * fails, they are written again after the next transaction.
+ *
+ * Open buckets are kept in memory, in primitive arrays that use about 120 bytes per bucket, plus the tag values of each
+ * bucket. If more than {@link #getMaxBuckets()} buckets are open, the oldest ones are closed early. Buckets still open when
+ * the data store is shut down are lost.
+ *
+ * An instance of this class holds the buckets of one entity. Give the same instance to the configurations of data stores
+ * that write the same series in parallel, so each bucket aggregates the data points written through all of them.
+ *
+ * @author uniVocity Software Pty Ltd - <a href="mailto:dev@univocity.com">dev@univocity.com</a>
+ *
+ */
+public class Rollup {
+
+	private static final Logger log = LoggerFactory.getLogger(Rollup.class);
+
+	private final long interval;
+	private final String suffix;
+	private long gracePeriod;
+	private boolean rawPointsKept = true;
+	private int maxBuckets = 64 * 1024;
+
+	private RollupBuckets open;
+	private RollupBuckets closed;
+	// the latest timestamp aggregated. Buckets that end before this time minus the grace period are closed.
+	private volatile long watermark = Long.MIN_VALUE;
+
+	/**
+	 * Creates a rollup of data points into buckets of the given interval. The name of the interval in the names of the
+	 * metrics produced is derived from its length, e.g. {@code 1m} for 60000 milliseconds, or {@code 15s} for 15000.
+	 *
+	 * @param interval the length of each bucket, in milliseconds. Must be at least 1 second.
+	 */
+	public Rollup(long interval) {
+		if (interval < 1000) {
+			throw new IllegalArgumentException("Rollup interval must be at least 1 second");
+		}
+		this.interval = interval;
+		this.suffix = "." + intervalName(interval) + ".";
+		this.gracePeriod = interval;
+	}
+
+	private static String intervalName(long interval) {
+		if (interval % (24 * 60 * 60 * 1000L) == 0) {
+			return interval / (24 * 60 * 60 * 1000L) + "d";
+		}
+		if (interval % (60 * 60 * 1000L) == 0) {
+			return interval / (60 * 60 * 1000L) + "h";
+		}
+		if (interval % (60 * 1000L) == 0) {
+			return interval / (60 * 1000L) + "m";
+		}
+		if (interval % 1000L == 0) {
+			return interval / 1000L + "s";
+		}
+		return interval + "ms";
+	}
+
+	/**
+	 * Returns the length of each bucket
+	 *
+	 * @return the rollup interval, in milliseconds.
+	 */
+	public long getInterval() {
+		return interval;
+	}
+
+	/**
+	 * Returns the time a bucket is kept open after its end to aggregate late data points
+	 *
+	 * @return the grace period, in milliseconds.
+	 */
+	public long getGracePeriod() {
+		return gracePeriod;
+	}
+
+	/**
+	 * Defines the time a bucket is kept open after its end, to aggregate data points that arrive out of order. Longer grace
+	 * periods keep more buckets in memory and delay their rollup metrics. Defaults to one interval.
+	 *
+	 * @param gracePeriod the grace period, in milliseconds.
+	 */
+	public void setGracePeriod(long gracePeriod) {
+		if (gracePeriod < 0) {
+			throw new IllegalArgumentException("Rollup grace period cannot be negative");
+		}
+		this.gracePeriod = gracePeriod;
+	}
+
+	/**
+	 * Returns whether the original data points are written into KairosDB along with the rollup metrics
+	 *
+	 * @return {@code true} if raw data points are written, {@code false} if only rollup metrics are written.
+	 */
+	public boolean isRawPointsKept() {
+		return rawPointsKept;
+	}
+
+	/**
+	 * Defines whether the original data points are written into KairosDB along with the rollup metrics. Non-numeric data
+	 * points are always written. Defaults to {@code true}.
+	 *
+	 * @param rawPointsKept flag indicating whether raw data points should be written.
+	 */
+	public void setRawPointsKept(boolean rawPointsKept) {
+		this.rawPointsKept = rawPointsKept;
+	}
+
+	/**
+	 * Returns the maximum number of buckets kept open
+	 *
+	 * @return the maximum number of open buckets.
+	 */
+	public int getMaxBuckets() {
+		return maxBuckets;
+	}
+
+	/**
+	 * Defines the maximum number of buckets kept open, which bounds the memory used by the rollup: about 120 bytes per
+	 * bucket, plus the tag values of the series of each bucket. Data stores that use this rollup also keep up to this number
+	 * of buckets while their transactions are running. When the limit is reached, the oldest buckets are closed early.
+	 * Defaults to 65,536.
+	 *
+	 * @param maxBuckets the maximum number of open buckets.
+	 */
+	public synchronized void setMaxBuckets(int maxBuckets) {
+		if (maxBuckets <= 0 || maxBuckets > (1 << 26)) {
+			throw new IllegalArgumentException("Invalid maximum number of rollup buckets: " + maxBuckets);
+		}
+		if (open != null) {
+			throw new IllegalStateException("Rollup already in use");
+		}
+		this.maxBuckets = maxBuckets;
+	}
+
+	/**
+	 * Creates a set of buckets to hold the data points of a transaction
+	 *
+	 * @return a new set of buckets
+	 */
+	synchronized RollupBuckets newBuckets() {
+		if (open == null) {
+			open = new RollupBuckets(maxBuckets);
+			closed = new RollupBuckets(maxBuckets);
+		}
+		return new RollupBuckets(maxBuckets);
+	}
+
+	/**
+	 * Adds a data point into a set of buckets of a transaction, unless it arrived too late
+	 *
+	 * @param staged the buckets of the transaction
+	 * @param name the metric name
+	 * @param tagValues the tag values of the data point
+	 * @param timestamp the timestamp of the data point
+	 * @param value the value of the data point
+	 * @param metrics the metrics of the load process. Can be {@code null}.
+	 * @return {@code false} if the data point requires a new bucket and the buckets of the transaction are full.
+	 */
+	boolean stage(RollupBuckets staged, String name, String[] tagValues, long timestamp, double value, LoadMetrics metrics) {
+		long start = timestamp - ((timestamp % interval) + interval) % interval;
+		if (isClosed(start, watermark)) {
+			if (metrics != null) {
+				metrics.rollupLate(1);
+			}
+			return true;
+		}
+		if (staged.add(DuplicateFilter.fingerprint(name, start, null, tagValues), name, tagValues, start, value, value, value, 1L)) {
+			staged.seen(timestamp);
+			return true;
+		}
+		return false;
+	}
+
+	private boolean isClosed(long start, long watermark) {
+		return watermark != Long.MIN_VALUE && start + interval + gracePeriod <= watermark;
+	}
+
+	/**
+	 * Aggregates the buckets of a transaction into the open buckets, and closes the buckets that end before the latest
+	 * timestamp minus the grace period. The buckets of the transaction are cleared.
+	 *
+	 * @param staged the buckets of the transaction
+	 * @param metrics the metrics of the load process. Can be {@code null}.
+	 */
+	synchronized void merge(RollupBuckets staged, final LoadMetrics metrics) {
+		final long watermark = this.watermark;
+		staged.forEach(new RollupBuckets.Visitor() {
+			@Override
+			public void visit(String name, String[] tagValues, long start, double min, double max, double sum, long count) {
+				if (isClosed(start, watermark)) {
+					if (metrics != null) {
+						metrics.rollupLate(count);
+					}
+					return;
+				}
+				long key = DuplicateFilter.fingerprint(name, start, null, tagValues);
+				if (!open.add(key, name, tagValues, start, min, max, sum, count)) {
+					log.warn("More than {} rollup buckets open. Closing buckets that start at {} early", maxBuckets, open.getOldestStart());
+					close(open.getOldestStart() + 1);
+					open.add(key, name, tagValues, start, min, max, sum, count);
+				}
+			}
+		});
+		if (staged.getLatest() > watermark) {
+			this.watermark = staged.getLatest();
+			close(this.watermark - interval - gracePeriod + 1);
+		}
+		staged.clear();
+	}
+
+	private void close(long limit) {
+		int discarded = open.moveStartingBefore(limit, closed);
+		if (discarded > 0) {
+			log.warn("Discarding {} rollup buckets: buckets closed earlier could not be written into KairosDB yet", discarded);
+		}
+	}
+
+	/**
+	 * Returns whether there are closed buckets to write into KairosDB
+	 *
+	 * @return {@code true} if there are closed buckets.
+	 */
+	synchronized boolean hasClosedBuckets() {
+		return closed != null && closed.size() > 0;
+	}
+
+	/**
+	 * Writes the rollup metrics of each closed bucket. The buckets are kept until {@link #clearClosedBuckets()} is called,
+	 * once the metrics have reached KairosDB.
+	 *
+	 * @param writer the writer to receive the rollup metrics.
+	 * @return the number of data points written.
+	 */
+	synchronized int writeClosedBuckets(final DataPointWriter writer) {
+		if (closed == null) {
+			return 0;
+		}
+		closed.forEach(new RollupBuckets.Visitor() {
+			@Override
+			public void visit(String name, String[] tagValues, long start, double min, double max, double sum, long count) {
+				String prefix = name + suffix;
+				writer.write(prefix + "min", start, min, tagValues);
+				writer.write(prefix + "max", start, max, tagValues);
+				writer.write(prefix + "avg", start, sum / count, tagValues);
+				writer.write(prefix + "count", start, count, tagValues);
+			}
+		});
+		return closed.size() * 4;
+	}
+
+	/**
+	 * Discards the closed buckets, after their rollup metrics have been written into KairosDB.
+	 */
+	synchronized void clearClosedBuckets() {
+		if (closed != null) {
+			closed.clear();
+		}
+	}
+}
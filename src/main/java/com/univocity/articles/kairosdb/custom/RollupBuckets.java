@@ -0,0 +1,289 @@
+/*******************************************************************************
+ * Copyright (c) 2014 uniVocity Software Pty Ltd. All rights reserved.
+ * This file is subject to the terms and conditions defined in file
+ * 'LICENSE.txt', which is part of this source code package.
+ ******************************************************************************/
+package com.univocity.articles.kairosdb.custom;
+
+import java.util.*;
+
+/**
+ * The aggregates (min, max, sum and count) of a set of rollup buckets, where each bucket holds the data points of a series
+ * within an interval. Buckets are identified by a 64-bit key derived from the series and the start of the interval.
+ *
+ * Buckets are kept in an open-addressing hash table of primitive arrays, which grows as buckets are added up to twice
+ * the maximum number of buckets. Removed buckets are replaced by shifting back the subsequent entries of their probe
+ * sequence, so the table never accumulates deleted entries.
+ *
+ * This class is not thread-safe.
+ *
+ * @author uniVocity Software Pty Ltd - <a href="mailto:dev@univocity.com">dev@univocity.com</a>
+ *
+ */
+class RollupBuckets {
+
+	private static final int INITIAL_TABLE_SIZE = 2048;
+
+	private final int maxSize;
+
+	private long[] keys;
+	private long[] starts;
+	private double[] mins;
+	private double[] maxs;
+	private double[] sums;
+	private long[] counts;
+	private String[] names;
+	private String[][] tags;
+	private int mask;
+	private int size;
+
+	private long oldestStart = Long.MAX_VALUE;
+	private long latest = Long.MIN_VALUE;
+
+	/**
+	 * Callback that receives the aggregates of each bucket
+	 */
+	interface Visitor {
+		void visit(String name, String[] tagValues, long start, double min, double max, double sum, long count);
+	}
+
+	/**
+	 * Creates an empty set of buckets
+	 *
+	 * @param maxSize the maximum number of buckets.
+	 */
+	RollupBuckets(int maxSize) {
+		this.maxSize = maxSize;
+		allocate(Math.min(INITIAL_TABLE_SIZE, tableSizeFor(maxSize)));
+	}
+
+	// at most half full, so probe sequences stay short.
+	private static int tableSizeFor(int size) {
+		return Integer.highestOneBit(Math.max(2, size) * 2 - 1) << 1;
+	}
+
+	private void allocate(int tableSize) {
+		keys = new long[tableSize];
+		starts = new long[tableSize];
+		mins = new double[tableSize];
+		maxs = new double[tableSize];
+		sums = new double[tableSize];
+		counts = new long[tableSize];
+		names = new String[tableSize];
+		tags = new String[tableSize][];
+		mask = tableSize - 1;
+	}
+
+	/**
+	 * Adds aggregated values into a bucket, creating the bucket if required.
+	 *
+	 * @param key the key of the bucket. Must not be 0.
+	 * @param name the metric name of the series
+	 * @param tagValues the tag values of the series. Copied if a new bucket is created.
+	 * @param start the start of the interval of the bucket
+	 * @param min the minimum value to add
+	 * @param max the maximum value to add
+	 * @param sum the sum of the values to add
+	 * @param count the number of values to add
+	 * @return {@code true} if the values were added, or {@code false} if a new bucket is required and the maximum number of buckets has been reached.
+	 */
+	boolean add(long key, String name, String[] tagValues, long start, double min, double max, double sum, long count) {
+		int i = slot(key);
+		long k;
+		while ((k = keys[i]) != 0L) {
+			if (k == key) {
+				if (min < mins[i]) {
+					mins[i] = min;
+				}
+				if (max > maxs[i]) {
+					maxs[i] = max;
+				}
+				sums[i] += sum;
+				counts[i] += count;
+				return true;
+			}
+			i = (i + 1) & mask;
+		}
+		if (size >= maxSize) {
+			return false;
+		}
+		if ((size + 1) * 2 > keys.length) {
+			grow();
+			i = slot(key);
+			while (keys[i] != 0L) {
+				i = (i + 1) & mask;
+			}
+		}
+		keys[i] = key;
+		starts[i] = start;
+		mins[i] = min;
+		maxs[i] = max;
+		sums[i] = sum;
+		counts[i] = count;
+		names[i] = name;
+		tags[i] = tagValues.clone();
+		size++;
+		if (start < oldestStart) {
+			oldestStart = start;
+		}
+		return true;
+	}
+
+	private void grow() {
+		long[] oldKeys = keys;
+		long[] oldStarts = starts;
+		double[] oldMins = mins;
+		double[] oldMaxs = maxs;
+		double[] oldSums = sums;
+		long[] oldCounts = counts;
+		String[] oldNames = names;
+		String[][] oldTags = tags;
+
+		allocate(keys.length * 2);
+		for (int j = 0; j < oldKeys.length; j++) {
+			if (oldKeys[j] != 0L) {
+				int i = slot(oldKeys[j]);
+				while (keys[i] != 0L) {
+					i = (i + 1) & mask;
+				}
+				keys[i] = oldKeys[j];
+				starts[i] = oldStarts[j];
+				mins[i] = oldMins[j];
+				maxs[i] = oldMaxs[j];
+				sums[i] = oldSums[j];
+				counts[i] = oldCounts[j];
+				names[i] = oldNames[j];
+				tags[i] = oldTags[j];
+			}
+		}
+	}
+
+	/**
+	 * Moves all buckets that start before a given time into another set of buckets. Buckets that don't fit in the target
+	 * are discarded.
+	 *
+	 * @param limit the time limit. Buckets that start before this time are moved.
+	 * @param target the set of buckets that receives the buckets moved
+	 * @return the number of buckets discarded because the target is full.
+	 */
+	int moveStartingBefore(long limit, RollupBuckets target) {
+		if (oldestStart >= limit) {
+			return 0;
+		}
+		int discarded = 0;
+		long oldest = Long.MAX_VALUE;
+		int i = 0;
+		while (i < keys.length) {
+			if (keys[i] != 0L && starts[i] < limit) {
+				if (!target.add(keys[i], names[i], tags[i], starts[i], mins[i], maxs[i], sums[i], counts[i])) {
+					discarded++;
+				}
+				// an entry further down the probe sequence may be shifted into this slot, so it is checked again.
+				remove(i);
+			} else {
+				if (keys[i] != 0L && starts[i] < oldest) {
+					oldest = starts[i];
+				}
+				i++;
+			}
+		}
+		oldestStart = oldest;
+		return discarded;
+	}
+
+	private void remove(int hole) {
+		int j = hole;
+		while (true) {
+			j = (j + 1) & mask;
+			long key = keys[j];
+			if (key == 0L) {
+				break;
+			}
+			// moves the entry back unless its home slot lies cyclically within (hole, j]
+			int home = slot(key);
+			if (hole <= j ? (home <= hole || home > j) : (home <= hole && home > j)) {
+				keys[hole] = key;
+				starts[hole] = starts[j];
+				mins[hole] = mins[j];
+				maxs[hole] = maxs[j];
+				sums[hole] = sums[j];
+				counts[hole] = counts[j];
+				names[hole] = names[j];
+				tags[hole] = tags[j];
+				hole = j;
+			}
+		}
+		keys[hole] = 0L;
+		names[hole] = null;
+		tags[hole] = null;
+		size--;
+	}
+
+	/**
+	 * Sends the aggregates of each bucket to a visitor, in no particular order.
+	 *
+	 * @param visitor the visitor to receive the aggregates.
+	 */
+	void forEach(Visitor visitor) {
+		for (int i = 0; i < keys.length; i++) {
+			if (keys[i] != 0L) {
+				visitor.visit(names[i], tags[i], starts[i], mins[i], maxs[i], sums[i], counts[i]);
+			}
+		}
+	}
+
+	/**
+	 * Removes all buckets.
+	 */
+	void clear() {
+		if (size > 0) {
+			Arrays.fill(keys, 0L);
+			Arrays.fill(names, null);
+			Arrays.fill(tags, null);
+			size = 0;
+		}
+		oldestStart = Long.MAX_VALUE;
+		latest = Long.MIN_VALUE;
+	}
+
+	/**
+	 * Records the timestamp of a data point added to this set of buckets
+	 *
+	 * @param timestamp the timestamp of the data point.
+	 */
+	void seen(long timestamp) {
+		if (timestamp > latest) {
+			latest = timestamp;
+		}
+	}
+
+	/**
+	 * Returns the latest timestamp recorded with {@link #seen(long)}
+	 *
+	 * @return the latest timestamp, or {@code Long.MIN_VALUE} if none was recorded.
+	 */
+	long getLatest() {
+		return latest;
+	}
+
+	/**
+	 * Returns the start of the oldest bucket
+	 *
+	 * @return the start of the oldest bucket, or {@code Long.MAX_VALUE} if there are no buckets.
+	 */
+	long getOldestStart() {
+		return size == 0 ? Long.MAX_VALUE : oldestStart;
+	}
+
+	int size() {
+		return size;
+	}
+
+	boolean isFull() {
+		return size >= maxSize;
+	}
+
+	private int slot(long key) {
+		return (int) (key ^ (key >>> 32)) & mask;
+	}
+}
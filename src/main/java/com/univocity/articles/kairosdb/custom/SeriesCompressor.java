@@ -0,0 +1,291 @@
+/*******************************************************************************
+ * Copyright (c) 2014 uniVocity Software Pty Ltd. All rights reserved.
+ * This file is subject to the terms and conditions defined in file
+ * 'LICENSE.txt', which is part of this source code package.
+ ******************************************************************************/
+package com.univocity.articles.kairosdb.custom;
+
+import java.util.*;
+
+/**
+ * Skips numeric data points that add little information to their series, with one of the algorithms of {@link CompressionMode}.
+ * A data point is always written if the heartbeat interval elapsed since the last data point written for its series, so
+ * series that don't change still show up in queries over recent data.
+ *
+ * The state of each series (the last data point written, the slopes of the swinging door and the data point held) is
+ * a record in an open-addressing hash table of primitive arrays, keyed by a 64-bit fingerprint of the metric name and tag
+ * values. Once the maximum number of series is reached, data points of new series are written without compression.
+ *
+ * Data points older than the last one seen for their series are written as they are, without changing its state.
+ *
+ * Changes are made within transactions: the data points held must be written with {@link #flush(DataPointWriter)} before
+ * a transaction completes, and then {@link #commit()} keeps the state of each series. If the transaction fails, {@link #rollback()}
+ * restores the state of the series changed by it, so the data points of the transaction are compressed again once
+ * written again.
+ *
+ * @author uniVocity Software Pty Ltd - <a href="mailto:dev@univocity.com">dev@univocity.com</a>
+ *
+ */
+class SeriesCompressor {
+
+	private static final long NONE = Long.MIN_VALUE;
+
+	private final boolean swingingDoor;
+	private final double tolerance;
+	private final long heartbeat;
+	private final int capacity;
+	private final int mask;
+
+	private final long[] keys;
+	private final String[] names;
+	private final String[][] tagValues;
+	// the last data point written
+	private final long[] archivedTimes;
+	private final double[] archivedValues;
+	// the range of slopes of lines from the last data point written that pass within the tolerance of every data point received since
+	private final double[] upperSlopes;
+	private final double[] lowerSlopes;
+	// the last data point received, if not written
+	private final long[] heldTimes;
+	private final double[] heldValues;
+	private final boolean[] heldFloating;
+	private int size;
+	private int held;
+
+	// the state of each series before its first change in the current transaction.
+	private final boolean[] journaled;
+	private int[] undoSlots = new int[64];
+	private long[] undoKeys = new long[64];
+	private long[] undoArchivedTimes = new long[64];
+	private double[] undoArchivedValues = new double[64];
+	private double[] undoUpperSlopes = new double[64];
+	private double[] undoLowerSlopes = new double[64];
+	private long[] undoHeldTimes = new long[64];
+	private double[] undoHeldValues = new double[64];
+	private boolean[] undoHeldFloating = new boolean[64];
+	private int undoSize;
+	private int committedSize;
+	private int committedHeld;
+
+	/**
+	 * Creates a compressor
+	 *
+	 * @param mode the compression algorithm. Either {@link CompressionMode#DEADBAND} or {@link CompressionMode#SWINGING_DOOR}
+	 * @param tolerance the maximum deviation from the values received allowed by skipping data points.
+	 * @param heartbeat the maximum time, in milliseconds, between data points written for a series.
+	 * @param capacity the maximum number of series compressed.
+	 */
+	SeriesCompressor(CompressionMode mode, double tolerance, long heartbeat, int capacity) {
+		if (mode == null || mode == CompressionMode.NONE) {
+			throw new IllegalArgumentException("Invalid compression mode " + mode);
+		}
+		this.swingingDoor = mode == CompressionMode.SWINGING_DOOR;
+		this.tolerance = tolerance;
+		this.heartbeat = heartbeat;
+		this.capacity = capacity;
+
+		// at most half full, so probe sequences stay short.
+		int tableSize = Integer.highestOneBit(Math.max(2, capacity) * 2 - 1) << 1;
+		this.mask = tableSize - 1;
+		this.keys = new long[tableSize];
+		this.names = new String[tableSize];
+		this.tagValues = new String[tableSize][];
+		this.archivedTimes = new long[tableSize];
+		this.archivedValues = new double[tableSize];
+		this.upperSlopes = new double[tableSize];
+		this.lowerSlopes = new double[tableSize];
+		this.heldTimes = new long[tableSize];
+		this.heldValues = new double[tableSize];
+		this.heldFloating = new boolean[tableSize];
+		this.journaled = new boolean[tableSize];
+	}
+
+	/**
+	 * Writes a numeric data point unless it can be skipped. Data points held earlier may be written before it.
+	 *
+	 * @param name the metric name
+	 * @param tagValues the values of each tag of the data point
+	 * @param timestamp the timestamp of the data point
+	 * @param value the value of the data point
+	 * @param writer the writer that receives the data points to write
+	 * @return the number of data points written: 0 if the data point was skipped, or 1 or 2 if a data point held was written.
+	 */
+	synchronized int offer(String name, String[] tagValues, long timestamp, Number value, DataPointWriter writer) {
+		long key = DuplicateFilter.fingerprint(name, 0L, null, tagValues);
+		int i = (int) (key ^ (key >>> 32)) & mask;
+		long k;
+		while ((k = keys[i]) != 0L && k != key) {
+			i = (i + 1) & mask;
+		}
+		if (k == 0L) {
+			writer.write(name, timestamp, value, tagValues);
+			if (size < capacity) {
+				journal(i);
+				keys[i] = key;
+				names[i] = name;
+				this.tagValues[i] = tagValues.clone();
+				heldTimes[i] = NONE;
+				archive(i, timestamp, value.doubleValue());
+				size++;
+			}
+			return 1;
+		}
+
+		double v = value.doubleValue();
+		if (timestamp <= (heldTimes[i] == NONE ? archivedTimes[i] : heldTimes[i])) {
+			writer.write(name, timestamp, value, tagValues);
+			return 1;
+		}
+
+		if (!swingingDoor) {
+			if (timestamp - archivedTimes[i] >= heartbeat || Math.abs(v - archivedValues[i]) > tolerance) {
+				writer.write(name, timestamp, value, tagValues);
+				journal(i);
+				archive(i, timestamp, v);
+				return 1;
+			}
+			return 0;
+		}
+
+		journal(i);
+		int written = 0;
+		if (heldTimes[i] != NONE) {
+			double slope = (v - archivedValues[i]) / (timestamp - archivedTimes[i]);
+			if (slope > upperSlopes[i] || slope < lowerSlopes[i]) {
+				// a line to this data point would deviate too much from a data point skipped: the data point held ends the current line instead.
+				writeHeld(i, writer);
+				written++;
+			}
+		}
+		if (timestamp - archivedTimes[i] >= heartbeat) {
+			writer.write(name, timestamp, value, tagValues);
+			archive(i, timestamp, v);
+			return written + 1;
+		}
+		// narrows the doors to the slopes of lines that pass within the tolerance of this data point.
+		double elapsed = timestamp - archivedTimes[i];
+		double upper = (v + tolerance - archivedValues[i]) / elapsed;
+		double lower = (v - tolerance - archivedValues[i]) / elapsed;
+		if (heldTimes[i] != NONE) {
+			upper = Math.min(upper, upperSlopes[i]);
+			lower = Math.max(lower, lowerSlopes[i]);
+		} else {
+			held++;
+		}
+		upperSlopes[i] = upper;
+		lowerSlopes[i] = lower;
+		heldTimes[i] = timestamp;
+		heldValues[i] = v;
+		heldFloating[i] = !(value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte);
+		return written;
+	}
+
+	private void writeHeld(int i, DataPointWriter writer) {
+		writer.write(names[i], heldTimes[i], heldFloating[i] ? (Object) heldValues[i] : (Object) (long) heldValues[i], tagValues[i]);
+		archive(i, heldTimes[i], heldValues[i]);
+	}
+
+	private void archive(int i, long timestamp, double value) {
+		archivedTimes[i] = timestamp;
+		archivedValues[i] = value;
+		if (heldTimes[i] != NONE) {
+			heldTimes[i] = NONE;
+			held--;
+		}
+	}
+
+	/**
+	 * Returns whether there are data points held, to be written by {@link #flush(DataPointWriter)}
+	 *
+	 * @return {@code true} if any series has a data point held.
+	 */
+	synchronized boolean hasHeldDataPoints() {
+		return held > 0;
+	}
+
+	/**
+	 * Writes the data point held of each series, so every data point received is either written or within the tolerance
+	 * of the data points written. The next data point of each series starts a new line from the data point held.
+	 *
+	 * @param writer the writer that receives the data points held
+	 * @return the number of data points written.
+	 */
+	synchronized int flush(DataPointWriter writer) {
+		int written = 0;
+		for (int i = 0; held > 0 && i < keys.length; i++) {
+			if (keys[i] != 0L && heldTimes[i] != NONE) {
+				journal(i);
+				writeHeld(i, writer);
+				written++;
+			}
+		}
+		return written;
+	}
+
+	/**
+	 * Keeps the changes made since the last commit or rollback.
+	 */
+	synchronized void commit() {
+		for (int u = 0; u < undoSize; u++) {
+			journaled[undoSlots[u]] = false;
+		}
+		undoSize = 0;
+		committedSize = size;
+		committedHeld = held;
+	}
+
+	/**
+	 * Restores the state of each series changed since the last commit or rollback. Series that were new are forgotten.
+	 */
+	synchronized void rollback() {
+		for (int u = 0; u < undoSize; u++) {
+			int i = undoSlots[u];
+			journaled[i] = false;
+			keys[i] = undoKeys[u];
+			if (keys[i] == 0L) {
+				names[i] = null;
+				tagValues[i] = null;
+			}
+			archivedTimes[i] = undoArchivedTimes[u];
+			archivedValues[i] = undoArchivedValues[u];
+			upperSlopes[i] = undoUpperSlopes[u];
+			lowerSlopes[i] = undoLowerSlopes[u];
+			heldTimes[i] = undoHeldTimes[u];
+			heldValues[i] = undoHeldValues[u];
+			heldFloating[i] = undoHeldFloating[u];
+		}
+		undoSize = 0;
+		size = committedSize;
+		held = committedHeld;
+	}
+
+	// saves the state of a series before its first change in the current transaction.
+	private void journal(int i) {
+		if (journaled[i]) {
+			return;
+		}
+		if (undoSize == undoSlots.length) {
+			int length = undoSize * 2;
+			undoSlots = Arrays.copyOf(undoSlots, length);
+			undoKeys = Arrays.copyOf(undoKeys, length);
+			undoArchivedTimes = Arrays.copyOf(undoArchivedTimes, length);
+			undoArchivedValues = Arrays.copyOf(undoArchivedValues, length);
+			undoUpperSlopes = Arrays.copyOf(undoUpperSlopes, length);
+			undoLowerSlopes = Arrays.copyOf(undoLowerSlopes, length);
+			undoHeldTimes = Arrays.copyOf(undoHeldTimes, length);
+			undoHeldValues = Arrays.copyOf(undoHeldValues, length);
+			undoHeldFloating = Arrays.copyOf(undoHeldFloating, length);
+		}
+		journaled[i] = true;
+		undoSlots[undoSize] = i;
+		undoKeys[undoSize] = keys[i];
+		undoArchivedTimes[undoSize] = archivedTimes[i];
+		undoArchivedValues[undoSize] = archivedValues[i];
+		undoUpperSlopes[undoSize] = upperSlopes[i];
+		undoLowerSlopes[undoSize] = lowerSlopes[i];
+		undoHeldTimes[undoSize] = heldTimes[i];
+		undoHeldValues[undoSize] = heldValues[i];
+		undoHeldFloating[undoSize] = heldFloating[i];
+		undoSize++;
+	}
+}
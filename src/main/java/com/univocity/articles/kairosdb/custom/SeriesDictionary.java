@@ -0,0 +1,341 @@
+/*******************************************************************************
+ * Copyright (c) 2014 uniVocity Software Pty Ltd. All rights reserved.
+ * This file is subject to the terms and conditions defined in file
+ * 'LICENSE.txt', which is part of this source code package.
+ ******************************************************************************/
+package com.univocity.articles.kairosdb.custom;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+import org.apache.commons.lang.*;
+
+/**
+ * A bounded dictionary of series keys. It maps the raw values that identify a series (e.g. zone, address, device and kind of
+ * an observation) to the metric name built from them, and to an integer id.
+ *
+ * Metric names are built (joining the values with '.') only once per key, so identical names are not allocated over and
+ * over for every row. When the dictionary is full, the least recently used key is evicted.
+ *
+ * Ids are in the range [0, maxSize) and remain the same while a key is in the dictionary. The id of an evicted key is
+ * given to the next new key.
+ *
+ * The contents of the dictionary can be saved to a memory-mapped snapshot file with {@link #saveSnapshot(File)}, and loaded
+ * with {@link #loadSnapshot(File)} to start with a warm dictionary after a restart.
+ *
+ * @author uniVocity Software Pty Ltd - <a href="mailto:dev@univocity.com">dev@univocity.com</a>
+ *
+ */
+public class SeriesDictionary {
+
+	private static final int SNAPSHOT_VERSION = 1;
+
+	private final int maxSize;
+	private final LinkedHashMap<Key, Series> series;
+	private final Key probe = new Key();
+
+	private long hits;
+	private long misses;
+	private long evictions;
+
+	/**
+	 * Creates a new dictionary
+	 *
+	 * @param maxSize the maximum number of keys kept in the dictionary.
+	 */
+	public SeriesDictionary(int maxSize) {
+		if (maxSize <= 0) {
+			throw new IllegalArgumentException("Maximum size of series dictionary must be positive");
+		}
+		this.maxSize = maxSize;
+		// access order: iteration starts at the least recently used series.
+		this.series = new LinkedHashMap<Key, Series>(Math.min(maxSize, 1024), 0.75f, true);
+	}
+
+	/**
+	 * Returns the metric name of the series identified by the given values.
+	 *
+	 * @param key the values that identify the series.
+	 * @return the metric name, built by joining the given values with '.'
+	 */
+	public String getName(Object[] key) {
+		return lookup(key).name;
+	}
+
+	/**
+	 * Returns the id of the series identified by the given values.
+	 *
+	 * @param key the values that identify the series.
+	 * @return the id of the series.
+	 */
+	public int getId(Object[] key) {
+		return lookup(key).id;
+	}
+
+	/**
+	 * Returns the series identified by the given values, adding it to the dictionary if required.
+	 *
+	 * @param key the values that identify the series.
+	 * @return the series identified by the given values.
+	 */
+	public synchronized Series lookup(Object[] key) {
+		Series s = series.get(probe.set(key));
+		if (s != null) {
+			hits++;
+			return s;
+		}
+		misses++;
+		return add(key.clone(), StringUtils.join(key, '.'));
+	}
+
+	private Series add(Object[] key, String name) {
+		int id;
+		if (series.size() < maxSize) {
+			id = series.size();
+		} else {
+			// the dictionary is full: evicts the least recently used series and reuses its id.
+			Iterator<Series> eldest = series.values().iterator();
+			id = eldest.next().id;
+			eldest.remove();
+			evictions++;
+		}
+		Series s = new Series(key, name, id);
+		series.put(new Key().set(key), s);
+		return s;
+	}
+
+	/**
+	 * Returns the number of lookups that found the series in the dictionary.
+	 *
+	 * @return the number of hits.
+	 */
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	/**
+	 * Returns the number of lookups that had to add a series to the dictionary.
+	 *
+	 * @return the number of misses.
+	 */
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * Returns the number of series evicted to make room for new ones.
+	 *
+	 * @return the number of evictions.
+	 */
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	/**
+	 * Returns the number of series in the dictionary.
+	 *
+	 * @return the current size of the dictionary.
+	 */
+	public synchronized int size() {
+		return series.size();
+	}
+
+	/**
+	 * Returns the maximum number of series kept in the dictionary.
+	 *
+	 * @return the maximum size of the dictionary.
+	 */
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "SeriesDictionary [size=" + series.size() + ", hits=" + hits + ", misses=" + misses + ", evictions=" + evictions + "]";
+	}
+
+	/**
+	 * Saves the keys in this dictionary, from the least to the most recently used, to a snapshot file. The snapshot is
+	 * written into a temporary file which then replaces the given file, so an existing snapshot is never left incomplete.
+	 *
+	 * @param file the snapshot file.
+	 */
+	public synchronized void saveSnapshot(File file) {
+		ByteArrayOutputStream content = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(content);
+		try {
+			out.writeInt(SNAPSHOT_VERSION);
+			out.writeInt(series.size());
+			for (Key key : series.keySet()) {
+				out.writeInt(key.parts.length);
+				for (Object part : key.parts) {
+					writePart(out, part);
+				}
+			}
+			out.flush();
+		} catch (IOException e) {
+			throw new IllegalStateException("Error encoding series dictionary snapshot", e);
+		}
+
+		File tmp = new File(file.getPath() + ".tmp");
+		try {
+			RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+			try {
+				raf.setLength(content.size());
+				MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, content.size());
+				buffer.put(content.toByteArray());
+				buffer.force();
+			} finally {
+				raf.close();
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException("Error writing series dictionary snapshot to " + tmp.getAbsolutePath(), e);
+		}
+		if (file.exists() && !file.delete() || !tmp.renameTo(file)) {
+			throw new IllegalStateException("Unable to replace series dictionary snapshot " + file.getAbsolutePath());
+		}
+	}
+
+	/**
+	 * Loads the keys saved in a snapshot file into this dictionary. Nothing happens if the file doesn't exist.
+	 *
+	 * @param file the snapshot file.
+	 * @return the number of keys loaded.
+	 */
+	public synchronized int loadSnapshot(File file) {
+		if (!file.exists()) {
+			return 0;
+		}
+		try {
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+				if (buffer.getInt() != SNAPSHOT_VERSION) {
+					return 0;
+				}
+				int count = buffer.getInt();
+				for (int i = 0; i < count; i++) {
+					Object[] key = new Object[buffer.getInt()];
+					for (int j = 0; j < key.length; j++) {
+						key[j] = readPart(buffer);
+					}
+					if (series.get(probe.set(key)) == null) {
+						add(key, StringUtils.join(key, '.'));
+					}
+				}
+				return count;
+			} finally {
+				raf.close();
+			}
+		} catch (Exception e) {
+			throw new IllegalStateException("Error reading series dictionary snapshot from " + file.getAbsolutePath(), e);
+		}
+	}
+
+	private static void writePart(DataOutputStream out, Object part) throws IOException {
+		if (part == null) {
+			out.writeByte('N');
+		} else if (part instanceof Integer) {
+			out.writeByte('I');
+			out.writeInt((Integer) part);
+		} else if (part instanceof Long) {
+			out.writeByte('L');
+			out.writeLong((Long) part);
+		} else {
+			// other types are restored as strings. Such keys will not match, but they are harmless.
+			out.writeByte('S');
+			out.writeUTF(part.toString());
+		}
+	}
+
+	private static Object readPart(ByteBuffer buffer) throws IOException {
+		byte type = buffer.get();
+		switch (type) {
+		case 'N':
+			return null;
+		case 'I':
+			return buffer.getInt();
+		case 'L':
+			return buffer.getLong();
+		case 'S':
+			// strings are written with writeUTF, in modified UTF-8, which only readUTF decodes correctly.
+			int length = buffer.getShort() & 0xFFFF;
+			byte[] utf = new byte[length + 2];
+			utf[0] = (byte) (length >>> 8);
+			utf[1] = (byte) length;
+			buffer.get(utf, 2, length);
+			return new DataInputStream(new ByteArrayInputStream(utf)).readUTF();
+		default:
+			throw new IOException("Unknown type in series dictionary snapshot: " + (char) type);
+		}
+	}
+
+	/**
+	 * A series in the dictionary: its metric name and id.
+	 */
+	public static final class Series {
+		private final Object[] key;
+		private final String name;
+		private final int id;
+
+		Series(Object[] key, String name, int id) {
+			this.key = key;
+			this.name = name;
+			this.id = id;
+		}
+
+		/**
+		 * Returns the values that identify this series. The array must not be modified.
+		 *
+		 * @return the key of this series in the dictionary.
+		 */
+		Object[] getKey() {
+			return key;
+		}
+
+		/**
+		 * Returns the metric name of this series
+		 *
+		 * @return the metric name.
+		 */
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * Returns the id of this series
+		 *
+		 * @return the series id, between 0 and the maximum size of the dictionary.
+		 */
+		public int getId() {
+			return id;
+		}
+	}
+
+	/**
+	 * The values that identify a series. A single mutable instance is used to probe the dictionary so lookups don't
+	 * allocate anything.
+	 */
+	private static final class Key {
+		Object[] parts;
+		int hash;
+
+		Key set(Object[] parts) {
+			this.parts = parts;
+			this.hash = Arrays.hashCode(parts);
+			return this;
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof Key && ((Key) o).hash == hash && Arrays.equals(((Key) o).parts, parts);
+		}
+	}
+}
@@ -0,0 +1,261 @@
+/*******************************************************************************
+ * Copyright (c) 2014 uniVocity Software Pty Ltd. All rights reserved.
+ * This file is subject to the terms and conditions defined in file
+ * 'LICENSE.txt', which is part of this source code package.
+ ******************************************************************************/
+package com.univocity.articles.kairosdb.custom;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.concurrent.*;
+
+import org.slf4j.*;
+
+/**
+ * A persistent TCP connection to the telnet port of KairosDB.
+ *
+ * Data points are encoded as {@code put} lines directly into a buffer, which is written to the socket when it becomes full,
+ * when {@link #flush()} is invoked, and periodically by a background thread so data doesn't sit in the buffer when
+ * the source is quiet.
+ *
+ * If the connection is lost, it is re-established and the buffered content is sent again. KairosDB simply overwrites
+ * data points with the same metric, tags and timestamp, so any line sent twice is harmless.
+ *
+ * The line protocol has no escaping: spaces separate the fields of a line, and {@code =} separates tag names from their values.
+ * Spaces, {@code =} and control characters (including line breaks) in metric names, values, tag names and tag values are
+ * written as {@code _}, so they can't split a line into bogus fields or commands.
+ *
+ * @author uniVocity Software Pty Ltd - <a href="mailto:dev@univocity.com">dev@univocity.com</a>
+ *
+ */
+class TelnetConnection {
+
+	private static final Logger log = LoggerFactory.getLogger(TelnetConnection.class);
+
+	private static final int MAX_CONNECTION_ATTEMPTS = 3;
+
+	private static final byte[] PUT = new byte[] { 'p', 'u', 't', ' ' };
+
+	private final InetSocketAddress address;
+	private final int connectTimeout;
+	private final ByteBuffer buffer;
+	private final ScheduledExecutorService flusher;
+
+	private SocketChannel channel;
+	private RuntimeException backgroundError;
+
+	/**
+	 * Creates a connection to the telnet port of a KairosDB server. The socket is only opened when data is flushed.
+	 *
+	 * @param host the host name of the KairosDB server.
+	 * @param configuration the data store configuration, with the port, buffer size, timeouts and flush interval to use.
+	 */
+	TelnetConnection(String host, KairosDataStoreConfiguration configuration) {
+		this.address = new InetSocketAddress(host, configuration.getTelnetPort());
+		this.connectTimeout = configuration.getConnectTimeout();
+		this.buffer = ByteBuffer.allocateDirect(configuration.getTelnetBufferSize());
+
+		long flushInterval = configuration.getTelnetFlushInterval();
+		flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "kairos-telnet-flush-" + address);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		flusher.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				synchronized (TelnetConnection.this) {
+					try {
+						sendBuffer();
+					} catch (RuntimeException e) {
+						log.warn("Error flushing data points to KairosDB at " + address, e);
+						// reported on the next flush, so the transaction that produced the lost data points fails.
+						backgroundError = e;
+					}
+				}
+			}
+		}, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Writes a data point into the buffer.
+	 *
+	 * @param metric the metric name
+	 * @param timestamp the timestamp of the data point, in milliseconds
+	 * @param value the value of the data point
+	 * @param tagNames the names of the tags of the metric
+	 * @param tagValues the values of each tag. Tags with {@code null} values are not written.
+	 */
+	synchronized void put(String metric, long timestamp, Object value, String[] tagNames, String[] tagValues) {
+		int lineStart = buffer.position();
+		try {
+			buffer.put(PUT);
+			putString(metric);
+			buffer.put((byte) ' ');
+			putLong(timestamp);
+			buffer.put((byte) ' ');
+			if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+				putLong(((Number) value).longValue());
+			} else {
+				putString(String.valueOf(value));
+			}
+			for (int i = 0; i < tagNames.length; i++) {
+				if (tagValues[i] != null) {
+					buffer.put((byte) ' ');
+					putString(tagNames[i]);
+					buffer.put((byte) '=');
+					putString(tagValues[i]);
+				}
+			}
+			buffer.put((byte) '\n');
+		} catch (BufferOverflowException e) {
+			if (lineStart == 0) {
+				throw new IllegalStateException("Data point of metric " + metric + " is larger than the telnet buffer size", e);
+			}
+			// sends what we have so far and writes the line again into the empty buffer.
+			buffer.position(lineStart);
+			flush();
+			put(metric, timestamp, value, tagNames, tagValues);
+		}
+	}
+
+	private void putString(String s) {
+		for (int i = 0; i < s.length(); i++) {
+			char ch = s.charAt(i);
+			if (ch <= ' ' || ch == '=' || ch == 0x7F) {
+				buffer.put((byte) '_');
+			} else if (ch < 0x80) {
+				buffer.put((byte) ch);
+			} else if (ch < 0x800) {
+				buffer.put((byte) (0xC0 | (ch >> 6)));
+				buffer.put((byte) (0x80 | (ch & 0x3F)));
+			} else if (Character.isHighSurrogate(ch) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+				int codePoint = Character.toCodePoint(ch, s.charAt(++i));
+				buffer.put((byte) (0xF0 | (codePoint >> 18)));
+				buffer.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+				buffer.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+				buffer.put((byte) (0x80 | (codePoint & 0x3F)));
+			} else if (Character.isSurrogate(ch)) {
+				// a lone surrogate has no UTF-8 encoding.
+				buffer.put((byte) '?');
+			} else {
+				buffer.put((byte) (0xE0 | (ch >> 12)));
+				buffer.put((byte) (0x80 | ((ch >> 6) & 0x3F)));
+				buffer.put((byte) (0x80 | (ch & 0x3F)));
+			}
+		}
+	}
+
+	private void putLong(long value) {
+		if (value == Long.MIN_VALUE) {
+			putString(String.valueOf(value));
+			return;
+		}
+		if (value < 0) {
+			buffer.put((byte) '-');
+			value = -value;
+		}
+		long divisor = 1;
+		while (value / divisor >= 10) {
+			divisor *= 10;
+		}
+		while (divisor > 0) {
+			buffer.put((byte) ('0' + (value / divisor) % 10));
+			divisor /= 10;
+		}
+	}
+
+	/**
+	 * Writes all buffered lines to the socket, reconnecting if required.
+	 */
+	synchronized void flush() {
+		if (backgroundError != null) {
+			RuntimeException error = backgroundError;
+			backgroundError = null;
+			throw new IllegalStateException("Data points were lost while sending them to KairosDB at " + address, error);
+		}
+		sendBuffer();
+	}
+
+	private void sendBuffer() {
+		if (buffer.position() == 0) {
+			return;
+		}
+		buffer.flip();
+		try {
+			for (int attempt = 1;; attempt++) {
+				try {
+					SocketChannel channel = connect();
+					while (buffer.hasRemaining()) {
+						channel.write(buffer);
+					}
+					break;
+				} catch (IOException e) {
+					disconnect();
+					if (attempt >= MAX_CONNECTION_ATTEMPTS) {
+						throw new IllegalStateException("Unable to send data points to KairosDB at " + address, e);
+					}
+					log.warn("Connection to KairosDB at {} lost. Reconnecting (attempt {} of {})", address, attempt + 1, MAX_CONNECTION_ATTEMPTS);
+					// part of the buffer might have been sent already, but we can't know what reached KairosDB.
+					buffer.rewind();
+					pause(attempt * 100L);
+				}
+			}
+		} finally {
+			buffer.clear();
+		}
+	}
+
+	private SocketChannel connect() throws IOException {
+		if (channel == null || !channel.isConnected()) {
+			SocketChannel newChannel = SocketChannel.open();
+			try {
+				newChannel.socket().setTcpNoDelay(false);
+				newChannel.socket().setKeepAlive(true);
+				newChannel.socket().connect(address, connectTimeout);
+			} catch (IOException e) {
+				newChannel.close();
+				throw e;
+			}
+			channel = newChannel;
+		}
+		return channel;
+	}
+
+	private void disconnect() {
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				log.debug("Error closing connection to KairosDB at " + address, e);
+			}
+			channel = null;
+		}
+	}
+
+	private void pause(long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while reconnecting to KairosDB at " + address, e);
+		}
+	}
+
+	/**
+	 * Flushes any buffered data points and closes the connection.
+	 */
+	synchronized void close() {
+		flusher.shutdownNow();
+		try {
+			flush();
+		} finally {
+			disconnect();
+		}
+	}
+}
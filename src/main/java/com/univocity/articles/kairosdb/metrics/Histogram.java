@@ -0,0 +1,141 @@
+/*******************************************************************************
+ * Copyright (c) 2014 uniVocity Software Pty Ltd. All rights reserved.
+ * This file is subject to the terms and conditions defined in file
+ * 'LICENSE.txt', which is part of this source code package.
+ ******************************************************************************/
+package com.univocity.articles.kairosdb.metrics;
+
+import java.util.concurrent.atomic.*;
+
+/**
+ * A distribution of non-negative values, such as durations or sizes, that can be updated from multiple threads
+ * without locking.
+ *
+ * Values are counted in buckets with bounds that grow exponentially: each power of 2 is split into 4 buckets, so
+ * percentiles are reported within 25% of the actual value, using a fixed amount of memory regardless of the number of
+ * values recorded. Count, sum and maximum are exact.
+ *
+ * @author uniVocity Software Pty Ltd - <a href="mailto:dev@univocity.com">dev@univocity.com</a>
+ *
+ */
+public class Histogram {
+
+	// values under 8 get a bucket each. Above that, each power of 2 from 2^3 to 2^62 has 4 buckets.
+	private static final int LINEAR_BUCKETS = 8;
+	private static final int BUCKETS = LINEAR_BUCKETS + (63 - 3) * 4;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Records a value. Negative values are recorded as 0.
+	 *
+	 * @param value the value to record
+	 */
+	public void update(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+		buckets.incrementAndGet(bucketOf(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+
+		long currentMax;
+		while (value > (currentMax = max.get()) && !max.compareAndSet(currentMax, value)) {
+			// retry until this value is stored or a larger one gets there first.
+		}
+	}
+
+	private static int bucketOf(long value) {
+		if (value < LINEAR_BUCKETS) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int subBucket = (int) (value >>> (exponent - 2)) & 3;
+		return LINEAR_BUCKETS + (exponent - 3) * 4 + subBucket;
+	}
+
+	private static long upperBoundOf(int bucket) {
+		if (bucket < LINEAR_BUCKETS) {
+			return bucket;
+		}
+		int exponent = (bucket - LINEAR_BUCKETS) / 4 + 3;
+		long subBucket = (bucket - LINEAR_BUCKETS) % 4;
+		return ((4 + subBucket + 1) << (exponent - 2)) - 1;
+	}
+
+	/**
+	 * Returns the number of values recorded
+	 *
+	 * @return the number of values recorded.
+	 */
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * Returns the sum of all values recorded
+	 *
+	 * @return the sum of all values.
+	 */
+	public long getSum() {
+		return sum.get();
+	}
+
+	/**
+	 * Returns the largest value recorded
+	 *
+	 * @return the maximum value, or 0 if no values were recorded.
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * Returns the average of all values recorded
+	 *
+	 * @return the mean value, or 0 if no values were recorded.
+	 */
+	public double getMean() {
+		long n = count.get();
+		return n == 0 ? 0.0 : (double) sum.get() / n;
+	}
+
+	/**
+	 * Returns an approximation of a percentile of the values recorded: the upper bound of the bucket that contains it,
+	 * limited to the maximum value recorded.
+	 *
+	 * @param percentile the percentile, between 0 and 100.
+	 * @return the value at the given percentile, or 0 if no values were recorded.
+	 */
+	public long getPercentile(double percentile) {
+		if (percentile < 0 || percentile > 100) {
+			throw new IllegalArgumentException("Percentile must be between 0 and 100");
+		}
+		long total = 0;
+		long[] counts = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = buckets.get(i);
+			total += counts[i];
+		}
+		if (total == 0) {
+			return 0L;
+		}
+		long rank = Math.max(1L, (long) Math.ceil(percentile / 100.0 * total));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if (seen >= rank) {
+				return Math.min(upperBoundOf(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	@Override
+	public String toString() {
+		return "count=" + getCount() + ", mean=" + String.format("%.2f", getMean()) + ", p50=" + getPercentile(50) + ", p99=" + getPercentile(99) + ", max=" + getMax();
+	}
+}
@@ -0,0 +1,456 @@
+/*******************************************************************************
+ * Copyright (c) 2014 uniVocity Software Pty Ltd. All rights reserved.
+ * This file is subject to the terms and conditions defined in file
+ * 'LICENSE.txt', which is part of this source code package.
+ ******************************************************************************/
+package com.univocity.articles.kairosdb.metrics;
+
+import java.lang.management.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import javax.management.*;
+
+import org.slf4j.*;
+
+/**
+ * Counters and distributions of the load pipeline, from the rows read from the database to the data points pushed into
+ * KairosDB. All values are accumulated since this object was created.
+ *
+ * The load process records rows and cycles, while the KairosDB data store records pushes. The metrics can be
+ * exposed over JMX with {@link #register(String)}, and reported into KairosDB itself (see
+ * {@link com.univocity.articles.kairosdb.custom.KairosDataStoreConfiguration#setMetricsReportInterval(long)}).
+ *
+ * @author uniVocity Software Pty Ltd - <a href="mailto:dev@univocity.com">dev@univocity.com</a>
+ *
+ */
+public class LoadMetrics implements LoadMetricsMBean {
+
+	private static final Logger log = LoggerFactory.getLogger(LoadMetrics.class);
+
+	private final AtomicLong rowsRead = new AtomicLong();
+	private final AtomicLong rowsDiscarded = new AtomicLong();
+	private final AtomicLong duplicatesSuppressed = new AtomicLong();
+	private final AtomicLong lateRollupPoints = new AtomicLong();
+	private final AtomicLong rollupPointsWritten = new AtomicLong();
+	private final AtomicLong compressionInput = new AtomicLong();
+	private final AtomicLong compressionOutput = new AtomicLong();
+	private final AtomicLong dataPointsPushed = new AtomicLong();
+	private final AtomicLong bytesPushed = new AtomicLong();
+	private final AtomicLong failedPushes = new AtomicLong();
+	private final AtomicLong spooledBatches = new AtomicLong();
+	private final AtomicLong replayedBatches = new AtomicLong();
+	private final AtomicLong failedCycles = new AtomicLong();
+	private volatile long checkpointLag;
+
+	private final Histogram dataPointsPerPush = new Histogram();
+	private final Histogram bytesPerPush = new Histogram();
+	private final Histogram pushLatency = new Histogram();
+	private final Histogram cycleDuration = new Histogram();
+
+	// pushes to each KairosDB node, by URL.
+	private final ConcurrentMap<String, NodeCounters> nodes = new ConcurrentSkipListMap<String, NodeCounters>();
+
+	private ObjectName objectName;
+
+	/**
+	 * Records a row read from the source.
+	 */
+	public void rowRead() {
+		rowsRead.incrementAndGet();
+	}
+
+	/**
+	 * Records a row discarded before being written into KairosDB.
+	 */
+	public void rowDiscarded() {
+		rowsDiscarded.incrementAndGet();
+	}
+
+	/**
+	 * Records a data point discarded for being a duplicate of another written recently.
+	 */
+	public void duplicateSuppressed() {
+		duplicatesSuppressed.incrementAndGet();
+	}
+
+	/**
+	 * Records data points that arrived after their rollup bucket was closed, and were not aggregated.
+	 *
+	 * @param dataPoints the number of data points.
+	 */
+	public void rollupLate(long dataPoints) {
+		lateRollupPoints.addAndGet(dataPoints);
+	}
+
+	/**
+	 * Records rollup metrics written for closed buckets.
+	 *
+	 * @param dataPoints the number of data points written.
+	 */
+	public void rollupWritten(int dataPoints) {
+		rollupPointsWritten.addAndGet(dataPoints);
+	}
+
+	/**
+	 * Records a numeric data point given to the compression of the data store
+	 *
+	 * @param written the number of data points written as a result: 0 if the data point was skipped, or more if data points held before were written with it.
+	 */
+	public void compressed(int written) {
+		compressionInput.incrementAndGet();
+		if (written > 0) {
+			compressionOutput.addAndGet(written);
+		}
+	}
+
+	/**
+	 * Records data points held by the compression of the data store, and written at the end of a transaction
+	 *
+	 * @param written the number of data points written.
+	 */
+	public void compressionFlushed(int written) {
+		compressionOutput.addAndGet(written);
+	}
+
+	/**
+	 * Records a push of data points into KairosDB
+	 *
+	 * @param dataPoints the number of data points in the push
+	 * @param bytes the size of the push
+	 * @param latency the time taken by the push, in milliseconds, including retries.
+	 * @param accepted {@code true} if KairosDB accepted the data points, or {@code false} if the push failed or KairosDB reported errors.
+	 */
+	public void pushed(int dataPoints, int bytes, long latency, boolean accepted) {
+		dataPointsPerPush.update(dataPoints);
+		bytesPerPush.update(bytes);
+		pushLatency.update(latency);
+		if (accepted) {
+			dataPointsPushed.addAndGet(dataPoints);
+			bytesPushed.addAndGet(bytes);
+		} else {
+			failedPushes.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Records a request sent to a node of a KairosDB cluster. A push that fails over to other nodes is recorded
+	 * once for each node tried.
+	 *
+	 * @param node the URL of the node
+	 * @param dataPoints the number of data points accepted by the node, if known.
+	 * @param bytes the number of bytes accepted by the node.
+	 * @param accepted {@code true} if the node accepted the data points, or {@code false} if the request failed or the node reported errors.
+	 */
+	public void nodePushed(String node, int dataPoints, int bytes, boolean accepted) {
+		NodeCounters counters = nodes.get(node);
+		if (counters == null) {
+			NodeCounters newCounters = new NodeCounters();
+			counters = nodes.putIfAbsent(node, newCounters);
+			if (counters == null) {
+				counters = newCounters;
+			}
+		}
+		counters.pushes.incrementAndGet();
+		if (accepted) {
+			counters.dataPoints.addAndGet(dataPoints);
+			counters.bytes.addAndGet(bytes);
+		} else {
+			counters.errors.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Records a batch appended to the spool, instead of being pushed.
+	 */
+	public void batchSpooled() {
+		spooledBatches.incrementAndGet();
+	}
+
+	/**
+	 * Records a spooled batch replayed into KairosDB.
+	 */
+	public void batchReplayed() {
+		replayedBatches.incrementAndGet();
+	}
+
+	/**
+	 * Records a load cycle
+	 *
+	 * @param duration the time taken by the cycle, in milliseconds.
+	 * @param failed {@code true} if the cycle failed.
+	 */
+	public void cycleCompleted(long duration, boolean failed) {
+		cycleDuration.update(duration);
+		if (failed) {
+			failedCycles.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Updates the checkpoint lag: the highest id known in the source table minus the last id processed. While catching up,
+	 * the highest id is only known up to the last rows read.
+	 *
+	 * @param lag the number of ids yet to be processed.
+	 */
+	public void setCheckpointLag(long lag) {
+		this.checkpointLag = lag;
+	}
+
+	@Override
+	public long getRowsRead() {
+		return rowsRead.get();
+	}
+
+	@Override
+	public long getRowsDiscarded() {
+		return rowsDiscarded.get();
+	}
+
+	@Override
+	public long getDuplicatesSuppressed() {
+		return duplicatesSuppressed.get();
+	}
+
+	@Override
+	public long getLateRollupPoints() {
+		return lateRollupPoints.get();
+	}
+
+	@Override
+	public long getRollupPointsWritten() {
+		return rollupPointsWritten.get();
+	}
+
+	@Override
+	public long getCompressionInput() {
+		return compressionInput.get();
+	}
+
+	@Override
+	public long getCompressionOutput() {
+		return compressionOutput.get();
+	}
+
+	@Override
+	public double getCompressionRatio() {
+		long output = compressionOutput.get();
+		return output == 0 ? 0.0 : (double) compressionInput.get() / output;
+	}
+
+	@Override
+	public long getDataPointsPushed() {
+		return dataPointsPushed.get();
+	}
+
+	@Override
+	public long getBytesPushed() {
+		return bytesPushed.get();
+	}
+
+	@Override
+	public long getPushes() {
+		return pushLatency.getCount();
+	}
+
+	@Override
+	public long getFailedPushes() {
+		return failedPushes.get();
+	}
+
+	@Override
+	public double getDataPointsPerPushMean() {
+		return dataPointsPerPush.getMean();
+	}
+
+	@Override
+	public long getDataPointsPerPushMax() {
+		return dataPointsPerPush.getMax();
+	}
+
+	@Override
+	public double getBytesPerPushMean() {
+		return bytesPerPush.getMean();
+	}
+
+	@Override
+	public long getBytesPerPushMax() {
+		return bytesPerPush.getMax();
+	}
+
+	@Override
+	public double getPushLatencyMean() {
+		return pushLatency.getMean();
+	}
+
+	@Override
+	public long getPushLatencyP50() {
+		return pushLatency.getPercentile(50);
+	}
+
+	@Override
+	public long getPushLatencyP99() {
+		return pushLatency.getPercentile(99);
+	}
+
+	@Override
+	public long getPushLatencyMax() {
+		return pushLatency.getMax();
+	}
+
+	@Override
+	public String[] getNodeStatistics() {
+		List<String> out = new ArrayList<String>();
+		for (Map.Entry<String, NodeCounters> e : nodes.entrySet()) {
+			out.add(e.getKey() + ": " + e.getValue());
+		}
+		return out.toArray(new String[out.size()]);
+	}
+
+	@Override
+	public long getSpooledBatches() {
+		return spooledBatches.get();
+	}
+
+	@Override
+	public long getReplayedBatches() {
+		return replayedBatches.get();
+	}
+
+	@Override
+	public long getCycles() {
+		return cycleDuration.getCount();
+	}
+
+	@Override
+	public long getFailedCycles() {
+		return failedCycles.get();
+	}
+
+	@Override
+	public double getCycleDurationMean() {
+		return cycleDuration.getMean();
+	}
+
+	@Override
+	public long getCycleDurationP50() {
+		return cycleDuration.getPercentile(50);
+	}
+
+	@Override
+	public long getCycleDurationP99() {
+		return cycleDuration.getPercentile(99);
+	}
+
+	@Override
+	public long getCycleDurationMax() {
+		return cycleDuration.getMax();
+	}
+
+	@Override
+	public long getCheckpointLag() {
+		return checkpointLag;
+	}
+
+	/**
+	 * Returns the current value of all metrics, with names in the form {@code <group>.<metric>}, e.g. {@code push.latency.p99}.
+	 *
+	 * @return a map of metric names to their current values.
+	 */
+	public Map<String, Number> snapshot() {
+		Map<String, Number> out = new LinkedHashMap<String, Number>();
+		out.put("rows.read", getRowsRead());
+		out.put("rows.discarded", getRowsDiscarded());
+		out.put("rows.duplicates", getDuplicatesSuppressed());
+		out.put("rollup.late", getLateRollupPoints());
+		out.put("rollup.datapoints", getRollupPointsWritten());
+		out.put("compression.input", getCompressionInput());
+		out.put("compression.output", getCompressionOutput());
+		out.put("compression.ratio", getCompressionRatio());
+		out.put("push.count", getPushes());
+		out.put("push.failed", getFailedPushes());
+		out.put("push.datapoints", getDataPointsPushed());
+		out.put("push.bytes", getBytesPushed());
+		out.put("push.datapoints.mean", getDataPointsPerPushMean());
+		out.put("push.datapoints.max", getDataPointsPerPushMax());
+		out.put("push.bytes.mean", getBytesPerPushMean());
+		out.put("push.bytes.max", getBytesPerPushMax());
+		out.put("push.latency.mean", getPushLatencyMean());
+		out.put("push.latency.p50", getPushLatencyP50());
+		out.put("push.latency.p99", getPushLatencyP99());
+		out.put("push.latency.max", getPushLatencyMax());
+		for (Map.Entry<String, NodeCounters> e : nodes.entrySet()) {
+			// e.g. node.10_0_0_1_8080.pushes
+			String prefix = "node." + e.getKey().replaceFirst("^[a-z]+://", "").replaceAll("[^A-Za-z0-9]", "_") + ".";
+			NodeCounters counters = e.getValue();
+			out.put(prefix + "pushes", counters.pushes.get());
+			out.put(prefix + "errors", counters.errors.get());
+			out.put(prefix + "datapoints", counters.dataPoints.get());
+			out.put(prefix + "bytes", counters.bytes.get());
+		}
+		out.put("spool.spooled", getSpooledBatches());
+		out.put("spool.replayed", getReplayedBatches());
+		out.put("cycle.count", getCycles());
+		out.put("cycle.failed", getFailedCycles());
+		out.put("cycle.duration.mean", getCycleDurationMean());
+		out.put("cycle.duration.p50", getCycleDurationP50());
+		out.put("cycle.duration.p99", getCycleDurationP99());
+		out.put("cycle.duration.max", getCycleDurationMax());
+		out.put("checkpoint.lag", getCheckpointLag());
+		return out;
+	}
+
+	/**
+	 * Exposes these metrics over JMX, under {@code com.univocity.articles.kairosdb:type=LoadMetrics,name=<name>}. Errors
+	 * are logged, as metrics are not essential for the load process to work.
+	 *
+	 * @param name the name that identifies these metrics, e.g. the name of the load process.
+	 */
+	public synchronized void register(String name) {
+		if (objectName != null) {
+			return;
+		}
+		try {
+			ObjectName objectName = new ObjectName("com.univocity.articles.kairosdb:type=LoadMetrics,name=" + ObjectName.quote(name));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+			this.objectName = objectName;
+		} catch (Exception e) {
+			log.warn("Unable to expose load metrics '" + name + "' over JMX", e);
+		}
+	}
+
+	/**
+	 * Removes these metrics from JMX, if they were registered.
+	 */
+	public synchronized void unregister() {
+		if (objectName == null) {
+			return;
+		}
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+		} catch (Exception e) {
+			log.warn("Unable to remove load metrics from JMX", e);
+		} finally {
+			objectName = null;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "rows read=" + getRowsRead() + ", discarded=" + getRowsDiscarded() + ", duplicates=" + getDuplicatesSuppressed() + ", data points pushed=" + getDataPointsPushed() + ", push latency (" + pushLatency
+				+ "), cycle duration (" + cycleDuration + "), checkpoint lag=" + getCheckpointLag();
+	}
+
+	private static class NodeCounters {
+		final AtomicLong pushes = new AtomicLong();
+		final AtomicLong errors = new AtomicLong();
+		final AtomicLong dataPoints = new AtomicLong();
+		final AtomicLong bytes = new AtomicLong();
+
+		@Override
+		public String toString() {
+			return "pushes=" + pushes + ", errors=" + errors + ", data points=" + dataPoints + ", bytes=" + bytes;
+		}
+	}
+}
@@ -0,0 +1,75 @@
+/*******************************************************************************
+ * Copyright (c) 2014 uniVocity Software Pty Ltd. All rights reserved.
+ * This file is subject to the terms and conditions defined in file
+ * 'LICENSE.txt', which is part of this source code package.
+ ******************************************************************************/
+package com.univocity.articles.kairosdb.metrics;
+
+/**
+ * The attributes of {@link LoadMetrics} exposed over JMX. Durations are in milliseconds and sizes in bytes.
+ *
+ * @author uniVocity Software Pty Ltd - <a href="mailto:dev@univocity.com">dev@univocity.com</a>
+ *
+ */
+public interface LoadMetricsMBean {
+
+	long getRowsRead();
+
+	long getRowsDiscarded();
+
+	long getDuplicatesSuppressed();
+
+	long getLateRollupPoints();
+
+	long getRollupPointsWritten();
+
+	long getCompressionInput();
+
+	long getCompressionOutput();
+
+	double getCompressionRatio();
+
+	long getDataPointsPushed();
+
+	long getBytesPushed();
+
+	long getPushes();
+
+	long getFailedPushes();
+
+	double getDataPointsPerPushMean();
+
+	long getDataPointsPerPushMax();
+
+	double getBytesPerPushMean();
+
+	long getBytesPerPushMax();
+
+	double getPushLatencyMean();
+
+	long getPushLatencyP50();
+
+	long getPushLatencyP99();
+
+	long getPushLatencyMax();
+
+	String[] getNodeStatistics();
+
+	long getSpooledBatches();
+
+	long getReplayedBatches();
+
+	long getCycles();
+
+	long getFailedCycles();
+
+	double getCycleDurationMean();
+
+	long getCycleDurationP50();
+
+	long getCycleDurationP99();
+
+	long getCycleDurationMax();
+
+	long getCheckpointLag();
+}
@@ -0,0 +1,85 @@
+/*******************************************************************************
+ * Copyright (c) 2014 uniVocity Software Pty Ltd. All rights reserved.
+ * This file is subject to the terms and conditions defined in file
+ * 'LICENSE.txt', which is part of this source code package.
+ ******************************************************************************/
+package com.univocity.articles.kairosdb;
+
+import static org.junit.Assert.*;
+
+import org.junit.*;
+import org.springframework.jdbc.core.*;
+import org.springframework.jdbc.datasource.*;
+
+public class CheckpointWriterTest {
+
+	private JdbcTemplate jdbcTemplate;
+	private CheckpointWriter checkpoint;
+
+	@Before
+	public void setUp() {
+		DriverManagerDataSource dataSource = new DriverManagerDataSource("jdbc:hsqldb:mem:checkpoint", "sa", "");
+		dataSource.setDriverClassName("org.hsqldb.jdbcDriver");
+		jdbcTemplate = new JdbcTemplate(dataSource);
+		jdbcTemplate.execute("create table processed_rows (table_name varchar(256) not null unique, increment_size integer not null, last_id bigint not null)");
+		checkpoint = new CheckpointWriter(dataSource, "observation", 60000L);
+		checkpoint.create(100L, 100L);
+	}
+
+	@After
+	public void tearDown() {
+		checkpoint.close();
+		jdbcTemplate.execute("drop table processed_rows");
+	}
+
+	@Test
+	public void advancesToEndOfRangeWithRows() {
+		assertTrue(checkpoint.advance(200L, 180L, 1000L));
+		assertEquals(200L, checkpoint.getLastId());
+	}
+
+	@Test
+	public void skipsEmptyRangeBelowHighestId() {
+		// a gap in the ids: rows exist after the range.
+		assertTrue(checkpoint.advance(200L, 100L, 1000L));
+		assertTrue(checkpoint.advance(300L, 250L, 1000L));
+		assertEquals(300L, checkpoint.getLastId());
+	}
+
+	@Test
+	public void stopsAtLastIdReadInTrailingRange() {
+		assertFalse(checkpoint.advance(200L, 170L, 170L));
+		assertEquals(170L, checkpoint.getLastId());
+	}
+
+	@Test
+	public void doesNotSkipEmptyRangeAtTableHead() {
+		assertFalse(checkpoint.advance(200L, 100L, 100L));
+		assertEquals(100L, checkpoint.getLastId());
+
+		// rows inserted after the cycle started are not skipped either.
+		assertFalse(checkpoint.advance(200L, 100L, 150L));
+		assertEquals(150L, checkpoint.getLastId());
+	}
+
+	@Test
+	public void usesLastIdReadAboveHighestIdOfCycleStart() {
+		// rows inserted while the range was being read.
+		assertFalse(checkpoint.advance(200L, 160L, 150L));
+		assertEquals(160L, checkpoint.getLastId());
+	}
+
+	@Test
+	public void neverMovesBackwards() {
+		checkpoint.advance(200L, 200L, 1000L);
+		assertFalse(checkpoint.advance(150L, 100L, 120L));
+		assertEquals(200L, checkpoint.getLastId());
+	}
+
+	@Test
+	public void flushWritesCheckpoint() {
+		checkpoint.advance(200L, 190L, 190L);
+		checkpoint.flush();
+		assertEquals(Long.valueOf(190L), jdbcTemplate.queryForObject("select last_id from processed_rows where table_name = 'observation'", Long.class));
+	}
+}
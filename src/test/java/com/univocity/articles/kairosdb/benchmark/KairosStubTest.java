@@ -0,0 +1,75 @@
+/*******************************************************************************
+ * Copyright (c) 2014 uniVocity Software Pty Ltd. All rights reserved.
+ * This file is subject to the terms and conditions defined in file
+ * 'LICENSE.txt', which is part of this source code package.
+ ******************************************************************************/
+package com.univocity.articles.kairosdb.benchmark;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.net.*;
+
+import org.junit.*;
+
+public class KairosStubTest {
+
+	private static final String BATCH = "[{\"name\":\"t\",\"tags\":{\"kind\":\"temperature\"},\"datapoints\":[[1000,20.5],[-2000,-1],[3000,0]]},"
+			+ "{\"name\":\"u\",\"tags\":{\"kind\":\"[humidity]\"},\"datapoints\":[[1000,3]]}]";
+
+	private KairosStub stub;
+
+	@After
+	public void tearDown() {
+		stub.stop();
+	}
+
+	private int push(String json) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL(stub.getUrl() + "/api/v1/datapoints").openConnection();
+		connection.setRequestMethod("POST");
+		connection.setDoOutput(true);
+		connection.setRequestProperty("Content-Type", "application/json");
+		OutputStream out = connection.getOutputStream();
+		try {
+			out.write(json.getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+		int status = connection.getResponseCode();
+		connection.disconnect();
+		return status;
+	}
+
+	@Test
+	public void countsDataPointsOfAcceptedPushes() throws Exception {
+		stub = new KairosStub(0L, 0.0);
+		stub.start();
+		assertEquals(204, push(BATCH));
+		assertEquals(204, push(BATCH));
+		assertEquals(2, stub.getPushes());
+		assertEquals(0, stub.getFailures());
+		assertEquals(8, stub.getDataPoints());
+		assertEquals(2 * BATCH.length(), stub.getBytes());
+	}
+
+	@Test
+	public void rejectsPushesAtTheFailureRate() throws Exception {
+		stub = new KairosStub(0L, 1.0);
+		stub.start();
+		assertEquals(500, push(BATCH));
+		assertEquals(1, stub.getPushes());
+		assertEquals(1, stub.getFailures());
+		assertEquals(0, stub.getDataPoints());
+	}
+
+	@Test
+	public void pushTimesIncludeTheLatency() throws Exception {
+		stub = new KairosStub(50L, 0.0);
+		stub.start();
+		assertEquals(0.0, stub.getPushTime(50.0), 0.0);
+		push(BATCH);
+		push(BATCH);
+		assertTrue(stub.getPushTime(50.0) >= 50.0);
+		assertTrue(stub.getPushTime(100.0) >= stub.getPushTime(0.0));
+	}
+}
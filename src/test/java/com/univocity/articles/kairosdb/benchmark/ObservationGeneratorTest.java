@@ -0,0 +1,65 @@
+/*******************************************************************************
+ * Copyright (c) 2014 uniVocity Software Pty Ltd. All rights reserved.
+ * This file is subject to the terms and conditions defined in file
+ * 'LICENSE.txt', which is part of this source code package.
+ ******************************************************************************/
+package com.univocity.articles.kairosdb.benchmark;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.junit.*;
+import org.springframework.jdbc.core.*;
+import org.springframework.jdbc.datasource.*;
+
+public class ObservationGeneratorTest {
+
+	private DriverManagerDataSource dataSource;
+	private JdbcTemplate jdbcTemplate;
+
+	@Before
+	public void setUp() {
+		dataSource = new DriverManagerDataSource("jdbc:hsqldb:mem:generator", "sa", "");
+		dataSource.setDriverClassName("org.hsqldb.jdbcDriver");
+		jdbcTemplate = new JdbcTemplate(dataSource);
+		Scanner script = new Scanner(getClass().getResourceAsStream("/database/hsqldb/observation.tbl"), "UTF-8");
+		try {
+			jdbcTemplate.execute(script.useDelimiter("\\A").next());
+		} finally {
+			script.close();
+		}
+	}
+
+	@After
+	public void tearDown() {
+		jdbcTemplate.execute("drop table observation");
+	}
+
+	@Test
+	public void cyclesThroughAllSeries() {
+		new ObservationGenerator(dataSource, 100, 1000).generate(1L, 2550L, 1400000000L);
+
+		assertEquals(2550L, jdbcTemplate.queryForObject("select count(*) from observation", Long.class).longValue());
+		assertEquals(2550L, jdbcTemplate.queryForObject("select max(id) from observation", Long.class).longValue());
+		assertEquals(100L, jdbcTemplate.queryForObject("select count(*) from (select distinct fieldUnitZoneIdentifier, fieldUnitAddress, deviceLabel, observationKind from observation)", Long.class).longValue());
+		// a reading of every series per second
+		assertEquals(1400000025L, jdbcTemplate.queryForObject("select max(observationTimeEpochSeconds) from observation", Long.class).longValue());
+		assertEquals(50L, jdbcTemplate.queryForObject("select count(*) from observation where observationTimeEpochSeconds = 1400000025", Long.class).longValue());
+	}
+
+	@Test
+	public void fewRowsHaveNoValue() {
+		new ObservationGenerator(dataSource, 10, 500).generate(1L, 10000L, 1400000000L);
+		long missing = jdbcTemplate.queryForObject("select count(*) from observation where observedValue is null", Long.class);
+		assertTrue(String.valueOf(missing), missing > 0 && missing < 30);
+	}
+
+	@Test
+	public void continuesFromGivenId() {
+		ObservationGenerator generator = new ObservationGenerator(dataSource, 10, 7);
+		generator.generate(1L, 20L, 1400000000L);
+		generator.generate(21L, 20L, 1400000002L);
+		assertEquals(40L, jdbcTemplate.queryForObject("select count(distinct id) from observation", Long.class).longValue());
+	}
+}
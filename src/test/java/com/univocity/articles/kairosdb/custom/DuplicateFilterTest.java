@@ -0,0 +1,112 @@
+/*******************************************************************************
+ * Copyright (c) 2014 uniVocity Software Pty Ltd. All rights reserved.
+ * This file is subject to the terms and conditions defined in file
+ * 'LICENSE.txt', which is part of this source code package.
+ ******************************************************************************/
+package com.univocity.articles.kairosdb.custom;
+
+import static org.junit.Assert.*;
+
+import org.junit.*;
+
+public class DuplicateFilterTest {
+
+	private static final String[] TAGS = { "temperature" };
+	private static final long HOUR = 60 * 60 * 1000L;
+	private static final long WINDOW = 100L;
+
+	private long now = 1000000L;
+
+	// a filter with a clock that only moves when the test says so.
+	private DuplicateFilter filter(long window, int capacity) {
+		return new DuplicateFilter(window, capacity) {
+			@Override
+			long currentTimeMillis() {
+				return now;
+			}
+		};
+	}
+
+	private boolean isDuplicate(DuplicateFilter filter, String name) {
+		return filter.isDuplicate(name, 1000L, 20.0, TAGS);
+	}
+
+	@Test
+	public void detectsDataPointsSeenBefore() {
+		DuplicateFilter filter = filter(HOUR, 100);
+		assertFalse(filter.isDuplicate("a", 1000L, 20.0, TAGS));
+		assertTrue(filter.isDuplicate("a", 1000L, 20.0, TAGS));
+		assertTrue(filter.isDuplicate("a", 1000L, 20.0, new String[] { "temperature" }));
+
+		assertFalse(filter.isDuplicate("b", 1000L, 20.0, TAGS));
+		assertFalse(filter.isDuplicate("a", 2000L, 20.0, TAGS));
+		assertFalse(filter.isDuplicate("a", 1000L, 20.5, TAGS));
+		assertFalse(filter.isDuplicate("a", 1000L, 20.0, new String[] { "humidity" }));
+		assertFalse(filter.isDuplicate("a", 1000L, 20.0, new String[] { null }));
+		assertTrue(filter.isDuplicate("a", 1000L, 20.0, new String[] { null }));
+	}
+
+	@Test
+	public void integersOfDifferentTypesAreTheSameValue() {
+		DuplicateFilter filter = filter(HOUR, 100);
+		assertFalse(filter.isDuplicate("a", 1000L, 20, TAGS));
+		assertTrue(filter.isDuplicate("a", 1000L, 20L, TAGS));
+		assertFalse(filter.isDuplicate("a", 1000L, 20.0, TAGS));
+	}
+
+	@Test
+	public void remembersDataPointsForAtLeastTheWindow() {
+		DuplicateFilter filter = filter(WINDOW, 100);
+		assertFalse(isDuplicate(filter, "a"));
+		now += WINDOW;
+		// starts a new generation, and "a" moves to the previous one.
+		assertFalse(isDuplicate(filter, "b"));
+		assertTrue(isDuplicate(filter, "a"));
+		assertTrue(isDuplicate(filter, "b"));
+	}
+
+	@Test
+	public void forgetsDataPointsAfterTwoWindows() {
+		DuplicateFilter filter = filter(WINDOW, 100);
+		assertFalse(isDuplicate(filter, "a"));
+		now += WINDOW;
+		assertFalse(isDuplicate(filter, "b"));
+		now += WINDOW;
+		assertFalse(isDuplicate(filter, "c"));
+		assertFalse(isDuplicate(filter, "a"));
+		assertTrue(isDuplicate(filter, "b"));
+	}
+
+	@Test
+	public void dataPointsAreNotForgottenWithoutNewOnes() {
+		DuplicateFilter filter = filter(WINDOW, 100);
+		assertFalse(isDuplicate(filter, "a"));
+		now += WINDOW * 10;
+		// generations only change when a new data point arrives.
+		assertTrue(isDuplicate(filter, "a"));
+	}
+
+	@Test
+	public void startsNewGenerationWhenFull() {
+		DuplicateFilter filter = filter(HOUR, 2);
+		assertFalse(isDuplicate(filter, "a"));
+		assertFalse(isDuplicate(filter, "b"));
+		assertFalse(isDuplicate(filter, "c"));
+		assertTrue(isDuplicate(filter, "a"));
+		assertFalse(isDuplicate(filter, "d"));
+		assertFalse(isDuplicate(filter, "e"));
+		assertFalse(isDuplicate(filter, "a"));
+		assertTrue(isDuplicate(filter, "c"));
+	}
+
+	@Test
+	public void clearForgetsAllDataPoints() {
+		DuplicateFilter filter = filter(HOUR, 2);
+		assertFalse(isDuplicate(filter, "a"));
+		assertFalse(isDuplicate(filter, "b"));
+		assertFalse(isDuplicate(filter, "c"));
+		filter.clear();
+		assertFalse(isDuplicate(filter, "a"));
+		assertFalse(isDuplicate(filter, "c"));
+	}
+}
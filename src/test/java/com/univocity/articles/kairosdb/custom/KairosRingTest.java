@@ -0,0 +1,136 @@
+/*******************************************************************************
+ * Copyright (c) 2014 uniVocity Software Pty Ltd. All rights reserved.
+ * This file is subject to the terms and conditions defined in file
+ * 'LICENSE.txt', which is part of this source code package.
+ ******************************************************************************/
+package com.univocity.articles.kairosdb.custom;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.junit.*;
+
+public class KairosRingTest {
+
+	private static final int KEYS = 30000;
+
+	private static final List<String> URLS = Arrays.asList("http://kairos-a:8080", "http://kairos-b:8080", "http://kairos-c:8080");
+
+	private long now = 1000000L;
+
+	private static String key(int i) {
+		return "ZONE_" + (i % 10) + "." + (i / 10) + ".DEV" + (i % 5) + ".temperature";
+	}
+
+	// nodes with a clock that only moves when the test says so.
+	private KairosNode[] nodes(List<String> urls, long retryDelay) {
+		KairosDataStoreConfiguration configuration = new KairosDataStoreConfiguration("ring", urls.get(0));
+		for (int i = 1; i < urls.size(); i++) {
+			configuration.addUrl(urls.get(i));
+		}
+		configuration.setNodeRetryDelay(retryDelay);
+		KairosNode[] nodes = new KairosNode[urls.size()];
+		for (int i = 0; i < nodes.length; i++) {
+			nodes[i] = new KairosNode(configuration, urls.get(i), i) {
+				@Override
+				long currentTimeMillis() {
+					return now;
+				}
+			};
+		}
+		return nodes;
+	}
+
+	@Test
+	public void spreadsKeysAmongNodes() {
+		KairosRing ring = new KairosRing(URLS);
+		int[] counts = new int[URLS.size()];
+		for (int i = 0; i < KEYS; i++) {
+			counts[ring.owner(key(i))]++;
+		}
+		for (int count : counts) {
+			assertTrue(Arrays.toString(counts), count > KEYS / 5 && count < KEYS / 2);
+		}
+	}
+
+	@Test
+	public void addingNodeOnlyMovesKeysToIt() {
+		KairosRing ring = new KairosRing(URLS);
+		List<String> urls = new ArrayList<String>(URLS);
+		urls.add("http://kairos-d:8080");
+		KairosRing larger = new KairosRing(urls);
+
+		int moved = 0;
+		for (int i = 0; i < KEYS; i++) {
+			int before = ring.owner(key(i));
+			int after = larger.owner(key(i));
+			if (before != after) {
+				assertEquals(3, after);
+				moved++;
+			}
+		}
+		assertTrue(String.valueOf(moved), moved > KEYS / 8 && moved < KEYS / 2);
+	}
+
+	@Test
+	public void routesToOwnerWhenAvailable() {
+		KairosRing ring = new KairosRing(URLS);
+		KairosNode[] nodes = nodes(URLS, 60000L);
+		for (int i = 0; i < KEYS; i += 7) {
+			assertEquals(ring.owner(key(i)), ring.route(key(i), nodes));
+		}
+	}
+
+	@Test
+	public void spreadsKeysOfFailedNodeAmongTheOthers() {
+		KairosRing ring = new KairosRing(URLS);
+		KairosNode[] nodes = nodes(URLS, 60000L);
+		nodes[1].failed("test");
+
+		int[] rerouted = new int[URLS.size()];
+		for (int i = 0; i < KEYS; i++) {
+			int owner = ring.owner(key(i));
+			int node = ring.route(key(i), nodes);
+			if (owner == 1) {
+				rerouted[node]++;
+			} else {
+				assertEquals(owner, node);
+			}
+		}
+		assertEquals(0, rerouted[1]);
+		assertTrue(Arrays.toString(rerouted), rerouted[0] > 0 && rerouted[2] > 0);
+
+		nodes[1].succeeded();
+		for (int i = 0; i < KEYS; i += 7) {
+			assertEquals(ring.owner(key(i)), ring.route(key(i), nodes));
+		}
+	}
+
+	@Test
+	public void failedNodeIsRetriedAfterDelay() {
+		KairosRing ring = new KairosRing(URLS);
+		KairosNode[] nodes = nodes(URLS, 50L);
+		nodes[0].failed("test");
+		assertFalse(nodes[0].isAvailable());
+		now += 49L;
+		assertFalse(nodes[0].isAvailable());
+		now += 1L;
+		assertTrue(nodes[0].isAvailable());
+		for (int i = 0; i < KEYS; i += 7) {
+			assertEquals(ring.owner(key(i)), ring.route(key(i), nodes));
+		}
+	}
+
+	@Test
+	public void routesToOwnerWhenNoNodeIsAvailable() {
+		KairosRing ring = new KairosRing(URLS);
+		KairosNode[] nodes = nodes(URLS, 60000L);
+		for (KairosNode node : nodes) {
+			node.failed("test");
+		}
+		for (int i = 0; i < KEYS; i += 7) {
+			assertEquals(ring.owner(key(i)), ring.route(key(i), nodes));
+		}
+	}
+}
@@ -0,0 +1,186 @@
+/*******************************************************************************
+ * Copyright (c) 2014 uniVocity Software Pty Ltd. All rights reserved.
+ * This file is subject to the terms and conditions defined in file
+ * 'LICENSE.txt', which is part of this source code package.
+ ******************************************************************************/
+package com.univocity.articles.kairosdb.custom;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.util.*;
+
+import org.junit.*;
+import org.junit.rules.*;
+
+public class KairosSpoolTest {
+
+	// room for 3 records in each segment: 8 bytes of header and 24 of content.
+	private static final int SEGMENT_SIZE = 100;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File directory;
+	private KairosSpool spool;
+
+	@Before
+	public void setup() throws IOException {
+		directory = folder.newFolder("spool");
+		spool = open();
+	}
+
+	@After
+	public void tearDown() {
+		spool.close();
+	}
+
+	private KairosSpool open() throws IOException {
+		return new KairosSpool(directory, SEGMENT_SIZE, 10 * SEGMENT_SIZE);
+	}
+
+	private KairosSpool reopen() throws IOException {
+		spool.close();
+		spool = open();
+		return spool;
+	}
+
+	private static byte[] batch(int n) {
+		try {
+			return String.format("[{\"batch\":%012d}]", n).getBytes("US-ASCII");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private void append(int... batches) throws IOException {
+		for (int n : batches) {
+			byte[] bytes = batch(n);
+			assertTrue(spool.append(bytes, bytes.length));
+		}
+	}
+
+	private void replay(int... batches) throws InterruptedException {
+		for (int n : batches) {
+			assertArrayEquals(batch(n), spool.peek(0L));
+			spool.remove();
+		}
+	}
+
+	// replays the given batches, which must be all the batches in the spool.
+	private void assertReplayed(int... batches) throws InterruptedException {
+		replay(batches);
+		assertTrue(spool.isEmpty());
+		assertNull(spool.peek(1L));
+	}
+
+	private File[] segments() {
+		File[] files = directory.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.endsWith(".seg");
+			}
+		});
+		Arrays.sort(files);
+		return files;
+	}
+
+	private static void corrupt(File file, long position) throws IOException {
+		RandomAccessFile out = new RandomAccessFile(file, "rw");
+		try {
+			out.seek(position);
+			out.write(out.read() ^ 0xFF);
+		} finally {
+			out.close();
+		}
+	}
+
+	@Test
+	public void replaysBatchesInOrderAcrossSegments() throws Exception {
+		append(1, 2, 3, 4, 5, 6, 7);
+		assertEquals(7, spool.size());
+		assertEquals(3, segments().length);
+		assertReplayed(1, 2, 3, 4, 5, 6, 7);
+		assertEquals(0, segments().length);
+	}
+
+	@Test
+	public void recoversBatchesNotReplayed() throws Exception {
+		append(1, 2, 3, 4, 5);
+		replay(1, 2);
+		reopen();
+		assertEquals(3, spool.size());
+		assertReplayed(3, 4, 5);
+	}
+
+	@Test
+	public void deletesSegmentsFullyReplayed() throws Exception {
+		append(1, 2, 3, 4);
+		replay(1, 2, 3);
+		assertEquals(1, segments().length);
+		reopen();
+		assertReplayed(4);
+	}
+
+	@Test
+	public void discardsRecordWithBadChecksumAndWhatFollowsInItsSegment() throws Exception {
+		append(1, 2, 3, 4, 5);
+		// content of the second record of the first segment.
+		corrupt(segments()[0], 32 + 8 + 3);
+		reopen();
+		assertEquals(3, spool.size());
+		assertReplayed(1, 4, 5);
+	}
+
+	@Test
+	public void discardsRecordCutShort() throws Exception {
+		append(1, 2);
+		spool.close();
+		// a crash after the length of a third record was written, but not its content.
+		RandomAccessFile out = new RandomAccessFile(segments()[0], "rw");
+		try {
+			out.seek(64);
+			out.writeInt(40);
+		} finally {
+			out.close();
+		}
+		spool = open();
+		assertEquals(2, spool.size());
+		// the space of the discarded record is reused.
+		append(3);
+		reopen();
+		assertReplayed(1, 2, 3);
+	}
+
+	@Test
+	public void discardsTruncatedSegmentFile() throws Exception {
+		append(1, 2, 3, 4, 5, 6);
+		spool.close();
+		RandomAccessFile out = new RandomAccessFile(segments()[1], "rw");
+		try {
+			out.setLength(SEGMENT_SIZE / 2);
+		} finally {
+			out.close();
+		}
+		spool = open();
+		assertEquals(1, segments().length);
+		// new segments are created after the last one found, so batches are still replayed in order.
+		append(7);
+		assertReplayed(1, 2, 3, 7);
+	}
+
+	@Test
+	public void rejectsBatchesWhenFull() throws Exception {
+		for (int i = 0; i < 30; i++) {
+			append(i);
+		}
+		byte[] bytes = batch(30);
+		assertFalse(spool.append(bytes, bytes.length));
+		assertEquals(10 * SEGMENT_SIZE, spool.getSizeOnDisk());
+	}
+
+	@Test(expected = IOException.class)
+	public void directoryCanOnlyBeUsedByOneSpool() throws Exception {
+		open();
+	}
+}
@@ -0,0 +1,134 @@
+/*******************************************************************************
+ * Copyright (c) 2014 uniVocity Software Pty Ltd. All rights reserved.
+ * This file is subject to the terms and conditions defined in file
+ * 'LICENSE.txt', which is part of this source code package.
+ ******************************************************************************/
+package com.univocity.articles.kairosdb.custom;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.junit.*;
+
+public class RollupBucketsTest {
+
+	private static final String[] TAGS = { "temperature" };
+
+	private static void add(RollupBuckets buckets, long key, long start, double value) {
+		assertTrue(buckets.add(key, "t", TAGS, start, value, value, value, 1L));
+	}
+
+	// start -> "min,max,sum,count" of each bucket
+	private static Map<Long, String> contents(RollupBuckets buckets) {
+		final Map<Long, String> out = new TreeMap<Long, String>();
+		buckets.forEach(new RollupBuckets.Visitor() {
+			@Override
+			public void visit(String name, String[] tagValues, long start, double min, double max, double sum, long count) {
+				out.put(start, min + "," + max + "," + sum + "," + count);
+			}
+		});
+		return out;
+	}
+
+	@Test
+	public void aggregatesValuesOfTheSameBucket() {
+		RollupBuckets buckets = new RollupBuckets(10);
+		add(buckets, 1L, 0L, 5.0);
+		add(buckets, 1L, 0L, 2.0);
+		add(buckets, 1L, 0L, 8.0);
+		add(buckets, 2L, 60000L, 1.0);
+		assertEquals(2, buckets.size());
+		assertEquals("2.0,8.0,15.0,3", contents(buckets).get(0L));
+		assertEquals("1.0,1.0,1.0,1", contents(buckets).get(60000L));
+	}
+
+	@Test
+	public void movesBucketsStartingBeforeTheLimitOnly() {
+		RollupBuckets buckets = new RollupBuckets(10);
+		RollupBuckets target = new RollupBuckets(10);
+		add(buckets, 1L, 0L, 1.0);
+		add(buckets, 2L, 60000L, 2.0);
+		add(buckets, 3L, 120000L, 3.0);
+
+		assertEquals(0, buckets.moveStartingBefore(60000L, target));
+		assertEquals(Collections.singleton(0L), contents(target).keySet());
+		assertEquals(60000L, buckets.getOldestStart());
+
+		assertEquals(0, buckets.moveStartingBefore(60001L, target));
+		assertEquals(new HashSet<Long>(Arrays.asList(0L, 60000L)), contents(target).keySet());
+		assertEquals(120000L, buckets.getOldestStart());
+		assertEquals(1, buckets.size());
+	}
+
+	@Test
+	public void movedBucketsAreMergedIntoTheTarget() {
+		RollupBuckets buckets = new RollupBuckets(10);
+		RollupBuckets target = new RollupBuckets(10);
+		add(target, 1L, 0L, 1.0);
+		add(buckets, 1L, 0L, 3.0);
+		buckets.moveStartingBefore(1L, target);
+		assertEquals("1.0,3.0,4.0,2", contents(target).get(0L));
+	}
+
+	@Test
+	public void countsBucketsDiscardedWhenTheTargetIsFull() {
+		RollupBuckets buckets = new RollupBuckets(10);
+		RollupBuckets target = new RollupBuckets(1);
+		add(buckets, 1L, 0L, 1.0);
+		add(buckets, 2L, 1000L, 1.0);
+		add(buckets, 3L, 2000L, 1.0);
+		assertEquals(2, buckets.moveStartingBefore(3000L, target));
+		assertEquals(0, buckets.size());
+		assertEquals(1, target.size());
+	}
+
+	@Test
+	public void rejectsNewBucketsWhenFull() {
+		RollupBuckets buckets = new RollupBuckets(2);
+		add(buckets, 1L, 0L, 1.0);
+		add(buckets, 2L, 1000L, 1.0);
+		assertTrue(buckets.isFull());
+		assertFalse(buckets.add(3L, "t", TAGS, 2000L, 1.0, 1.0, 1.0, 1L));
+		// existing buckets still aggregate values
+		add(buckets, 1L, 0L, 2.0);
+		assertEquals("1.0,2.0,3.0,2", contents(buckets).get(0L));
+	}
+
+	@Test
+	public void keepsBucketsFoundAfterRemovalsAndGrowth() {
+		RollupBuckets buckets = new RollupBuckets(5000);
+		RollupBuckets target = new RollupBuckets(5000);
+		// keys that collide in the table, so removals shift entries of long probe sequences.
+		for (int i = 1; i <= 3000; i++) {
+			add(buckets, ((long) i << 32) | i, i, i);
+		}
+		assertEquals(3000, buckets.size());
+		assertEquals(0, buckets.moveStartingBefore(1501L, target));
+		assertEquals(1500, buckets.size());
+		assertEquals(1500, target.size());
+		assertEquals(1501L, buckets.getOldestStart());
+
+		// values added to the remaining buckets must find them, not create new ones.
+		for (int i = 1501; i <= 3000; i++) {
+			add(buckets, ((long) i << 32) | i, i, 0.0);
+		}
+		assertEquals(1500, buckets.size());
+		Map<Long, String> contents = contents(buckets);
+		for (long i = 1501; i <= 3000; i++) {
+			assertEquals("0.0," + (double) i + "," + (double) i + ",2", contents.get(i));
+		}
+	}
+
+	@Test
+	public void clearRemovesAllBuckets() {
+		RollupBuckets buckets = new RollupBuckets(10);
+		add(buckets, 1L, 0L, 1.0);
+		buckets.seen(5L);
+		buckets.clear();
+		assertEquals(0, buckets.size());
+		assertEquals(Long.MAX_VALUE, buckets.getOldestStart());
+		assertEquals(Long.MIN_VALUE, buckets.getLatest());
+		assertTrue(contents(buckets).isEmpty());
+	}
+}
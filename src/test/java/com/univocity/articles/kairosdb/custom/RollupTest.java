@@ -0,0 +1,142 @@
+/*******************************************************************************
+ * Copyright (c) 2014 uniVocity Software Pty Ltd. All rights reserved.
+ * This file is subject to the terms and conditions defined in file
+ * 'LICENSE.txt', which is part of this source code package.
+ ******************************************************************************/
+package com.univocity.articles.kairosdb.custom;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.junit.*;
+
+public class RollupTest {
+
+	private static final String[] TAGS = { "temperature" };
+	private static final long MINUTE = 60 * 1000L;
+
+	// "name@timestamp=value" of each data point written, sorted.
+	private final List<String> written = new ArrayList<String>();
+
+	private final DataPointWriter writer = new DataPointWriter() {
+		@Override
+		public void write(String name, long timestamp, Object value, String[] tagValues) {
+			assertArrayEquals(TAGS, tagValues);
+			written.add(name + "@" + timestamp + "=" + value);
+		}
+	};
+
+	private Rollup rollup;
+	private RollupBuckets staged;
+
+	private void create(long gracePeriod) {
+		rollup = new Rollup(MINUTE);
+		rollup.setGracePeriod(gracePeriod);
+		staged = rollup.newBuckets();
+	}
+
+	// stages and merges data points as a transaction, and collects the buckets it closed.
+	private List<String> transaction(long... timestampsAndValues) {
+		for (int i = 0; i < timestampsAndValues.length; i += 2) {
+			assertTrue(rollup.stage(staged, "t", TAGS, timestampsAndValues[i], timestampsAndValues[i + 1], null));
+		}
+		rollup.merge(staged, null);
+		written.clear();
+		rollup.writeClosedBuckets(writer);
+		rollup.clearClosedBuckets();
+		Collections.sort(written);
+		return written;
+	}
+
+	private static List<String> bucket(long start, double min, double max, double avg, long count) {
+		return Arrays.asList("t.1m.avg@" + start + "=" + avg, "t.1m.count@" + start + "=" + count, "t.1m.max@" + start + "=" + max, "t.1m.min@" + start + "=" + min);
+	}
+
+	@Test
+	public void bucketsStartAtMultiplesOfTheInterval() {
+		create(0L);
+		assertEquals(Collections.emptyList(), transaction(0L, 1L, MINUTE - 1, 3L));
+		// the end of a bucket is exclusive: a data point at its end goes into the next bucket, and closes it.
+		assertEquals(bucket(0L, 1.0, 3.0, 2.0, 2), transaction(MINUTE, 10L));
+		assertEquals(bucket(MINUTE, 10.0, 10.0, 10.0, 1), transaction(2 * MINUTE, 20L));
+	}
+
+	@Test
+	public void bucketsOfNegativeTimestampsStartBeforeThem() {
+		create(0L);
+		assertEquals(bucket(-2 * MINUTE, 9.0, 9.0, 9.0, 1), transaction(-1L, 5L, -MINUTE, 7L, -MINUTE - 1, 9L));
+		assertEquals(bucket(-MINUTE, 5.0, 7.0, 6.0, 2), transaction(0L, 1L));
+	}
+
+	@Test
+	public void bucketsCloseAfterTheGracePeriod() {
+		create(30 * 1000L);
+		transaction(0L, 1L);
+		assertEquals(Collections.emptyList(), transaction(MINUTE + 30 * 1000L - 1, 2L));
+		// still within the grace period of the first bucket
+		assertEquals(Collections.emptyList(), transaction(MINUTE - 1, 3L));
+		assertEquals(bucket(0L, 1.0, 3.0, 2.0, 2), transaction(MINUTE + 30 * 1000L, 4L));
+	}
+
+	@Test
+	public void defaultGracePeriodIsOneInterval() {
+		rollup = new Rollup(MINUTE);
+		staged = rollup.newBuckets();
+		transaction(0L, 1L);
+		assertEquals(Collections.emptyList(), transaction(2 * MINUTE - 1, 2L));
+		assertEquals(bucket(0L, 1.0, 1.0, 1.0, 1), transaction(2 * MINUTE, 3L));
+	}
+
+	@Test
+	public void lateDataPointsAreNotAggregated() {
+		create(0L);
+		transaction(0L, 1L, MINUTE, 2L);
+		// the bucket at 0 was closed by the data point at 1 minute.
+		assertEquals(Collections.emptyList(), transaction(MINUTE - 1, 100L, MINUTE + 1, 4L));
+		assertEquals(bucket(MINUTE, 2.0, 4.0, 3.0, 2), transaction(2 * MINUTE, 0L));
+	}
+
+	@Test
+	public void lateDataPointsOfTheSameTransactionAreAggregated() {
+		create(0L);
+		// out of order within the transaction: the watermark only moves when it is merged.
+		assertEquals(bucket(0L, 1.0, 3.0, 2.0, 2), transaction(MINUTE, 2L, MINUTE - 1, 3L, 0L, 1L));
+	}
+
+	@Test
+	public void failedTransactionsAreNotAggregated() {
+		create(0L);
+		transaction(0L, 1L);
+		rollup.stage(staged, "t", TAGS, 1L, 100L, null);
+		// as done when the transaction fails.
+		staged.clear();
+		assertEquals(bucket(0L, 1.0, 1.0, 1.0, 1), transaction(MINUTE, 2L));
+	}
+
+	@Test
+	public void intervalNames() {
+		assertEquals("t.15s.count@0=1", nameOf(15 * 1000L));
+		assertEquals("t.90s.count@0=1", nameOf(90 * 1000L));
+		assertEquals("t.2h.count@0=1", nameOf(2 * 60 * MINUTE));
+		assertEquals("t.1d.count@0=1", nameOf(24 * 60 * MINUTE));
+		assertEquals("t.1500ms.count@0=1", nameOf(1500L));
+	}
+
+	private String nameOf(long interval) {
+		rollup = new Rollup(interval);
+		rollup.setGracePeriod(0L);
+		staged = rollup.newBuckets();
+		rollup.stage(staged, "t", TAGS, 0L, 1.0, null);
+		rollup.stage(staged, "t", TAGS, interval, 1.0, null);
+		rollup.merge(staged, null);
+		written.clear();
+		rollup.writeClosedBuckets(writer);
+		for (String point : written) {
+			if (point.contains(".count@")) {
+				return point;
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,186 @@
+/*******************************************************************************
+ * Copyright (c) 2014 uniVocity Software Pty Ltd. All rights reserved.
+ * This file is subject to the terms and conditions defined in file
+ * 'LICENSE.txt', which is part of this source code package.
+ ******************************************************************************/
+package com.univocity.articles.kairosdb.custom;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.junit.*;
+
+public class SeriesCompressorTest {
+
+	private static final String[] TAGS = { "temperature" };
+	private static final long HOUR = 60 * 60 * 1000L;
+
+	private final List<Long> times = new ArrayList<Long>();
+	private final List<Object> values = new ArrayList<Object>();
+	private final List<String> names = new ArrayList<String>();
+
+	private final DataPointWriter writer = new DataPointWriter() {
+		@Override
+		public void write(String name, long timestamp, Object value, String[] tagValues) {
+			assertArrayEquals(TAGS, tagValues);
+			names.add(name);
+			times.add(timestamp);
+			values.add(value);
+		}
+	};
+
+	@Test
+	public void deadbandSkipsValuesWithinTolerance() {
+		SeriesCompressor compressor = new SeriesCompressor(CompressionMode.DEADBAND, 0.5, HOUR, 10);
+		assertEquals(1, compressor.offer("a", TAGS, 1000L, 20.0, writer));
+		assertEquals(0, compressor.offer("a", TAGS, 2000L, 20.4, writer));
+		assertEquals(0, compressor.offer("a", TAGS, 3000L, 19.5, writer));
+		assertEquals(1, compressor.offer("a", TAGS, 4000L, 20.6, writer));
+		// compared to the last value written, not the last received.
+		assertEquals(0, compressor.offer("a", TAGS, 5000L, 20.2, writer));
+		assertEquals(Arrays.<Object> asList(20.0, 20.6), values);
+		assertFalse(compressor.hasHeldDataPoints());
+	}
+
+	@Test
+	public void deadbandWritesHeartbeat() {
+		SeriesCompressor compressor = new SeriesCompressor(CompressionMode.DEADBAND, 0.5, HOUR, 10);
+		for (long t = 0; t <= 3 * HOUR; t += 60000L) {
+			compressor.offer("a", TAGS, t, 20.0, writer);
+		}
+		assertEquals(Arrays.asList(0L, HOUR, 2 * HOUR, 3 * HOUR), times);
+	}
+
+	@Test
+	public void seriesAreIndependent() {
+		SeriesCompressor compressor = new SeriesCompressor(CompressionMode.DEADBAND, 0.5, HOUR, 10);
+		compressor.offer("a", TAGS, 1000L, 20.0, writer);
+		compressor.offer("b", TAGS, 1000L, 20.0, writer);
+		compressor.offer("a", TAGS, 2000L, 20.0, writer);
+		compressor.offer("b", TAGS, 2000L, 30.0, writer);
+		assertEquals(Arrays.asList("a", "b", "b"), names);
+	}
+
+	@Test
+	public void outOfOrderDataPointsAreWritten() {
+		SeriesCompressor compressor = new SeriesCompressor(CompressionMode.DEADBAND, 0.5, HOUR, 10);
+		compressor.offer("a", TAGS, 5000L, 20.0, writer);
+		assertEquals(1, compressor.offer("a", TAGS, 4000L, 20.0, writer));
+		assertEquals(0, compressor.offer("a", TAGS, 6000L, 20.0, writer));
+	}
+
+	@Test
+	public void seriesBeyondCapacityAreNotCompressed() {
+		SeriesCompressor compressor = new SeriesCompressor(CompressionMode.DEADBAND, 0.5, HOUR, 1);
+		compressor.offer("a", TAGS, 1000L, 20.0, writer);
+		assertEquals(1, compressor.offer("b", TAGS, 1000L, 20.0, writer));
+		assertEquals(1, compressor.offer("b", TAGS, 2000L, 20.0, writer));
+		assertEquals(0, compressor.offer("a", TAGS, 2000L, 20.0, writer));
+	}
+
+	@Test
+	public void swingingDoorSkipsStraightLine() {
+		SeriesCompressor compressor = new SeriesCompressor(CompressionMode.SWINGING_DOOR, 0.1, HOUR, 10);
+		for (int i = 0; i < 100; i++) {
+			compressor.offer("a", TAGS, i * 1000L, (long) (i * 2), writer);
+		}
+		// the first data point is written, the last one is held.
+		assertEquals(Arrays.asList(0L), times);
+		assertTrue(compressor.hasHeldDataPoints());
+
+		assertEquals(1, compressor.flush(writer));
+		assertEquals(Arrays.asList(0L, 99000L), times);
+		// integral values are written as integral values
+		assertEquals(Arrays.<Object> asList(0L, 198L), values);
+		assertFalse(compressor.hasHeldDataPoints());
+		assertEquals(0, compressor.flush(writer));
+	}
+
+	@Test
+	public void swingingDoorStaysWithinTolerance() {
+		double tolerance = 0.5;
+		SeriesCompressor compressor = new SeriesCompressor(CompressionMode.SWINGING_DOOR, tolerance, Long.MAX_VALUE / 4, 10);
+		Random random = new Random(3);
+		double[] series = new double[20000];
+		double v = 0;
+		for (int i = 0; i < series.length; i++) {
+			v += random.nextGaussian() * 0.2;
+			series[i] = v;
+			compressor.offer("a", TAGS, i * 1000L, v, writer);
+		}
+		compressor.flush(writer);
+		assertTrue(times.size() < series.length / 4);
+		assertEquals((series.length - 1) * 1000L, (long) times.get(times.size() - 1));
+
+		// linear interpolation between the data points written never deviates from a value received by more than the tolerance.
+		int j = 0;
+		for (int i = 0; i < series.length; i++) {
+			long t = i * 1000L;
+			while (j + 2 < times.size() && times.get(j + 1) <= t) {
+				j++;
+			}
+			long t0 = times.get(j);
+			long t1 = times.get(j + 1);
+			double v0 = (Double) values.get(j);
+			double v1 = (Double) values.get(j + 1);
+			double interpolated = v0 + (v1 - v0) * (t - t0) / (t1 - t0);
+			assertEquals("Data point " + i, series[i], interpolated, tolerance + 1e-9);
+		}
+	}
+
+	@Test
+	public void swingingDoorWritesHeldDataPointWhenDoorBreaks() {
+		SeriesCompressor compressor = new SeriesCompressor(CompressionMode.SWINGING_DOOR, 0.1, HOUR, 10);
+		compressor.offer("a", TAGS, 0L, 0.0, writer);
+		compressor.offer("a", TAGS, 1000L, 1.0, writer);
+		compressor.offer("a", TAGS, 2000L, 2.0, writer);
+		// the slope changes: the line ends at the data point held.
+		assertEquals(1, compressor.offer("a", TAGS, 3000L, 2.0, writer));
+		assertEquals(Arrays.asList(0L, 2000L), times);
+	}
+
+	@Test
+	public void rollbackRestoresStateOfCommittedTransactions() {
+		SeriesCompressor compressor = new SeriesCompressor(CompressionMode.SWINGING_DOOR, 0.1, HOUR, 10);
+		compressor.offer("a", TAGS, 0L, 0.0, writer);
+		compressor.offer("a", TAGS, 1000L, 1.0, writer);
+		compressor.flush(writer);
+		compressor.commit();
+		assertEquals(Arrays.asList(0L, 1000L), times);
+
+		// a failed transaction: a data point held, a new series and a flush.
+		compressor.offer("a", TAGS, 2000L, 2.0, writer);
+		compressor.offer("b", TAGS, 2000L, 5.0, writer);
+		compressor.offer("b", TAGS, 3000L, 5.0, writer);
+		compressor.flush(writer);
+		compressor.rollback();
+		assertFalse(compressor.hasHeldDataPoints());
+
+		// written again: series "a" continues from its last committed data point, and series "b" is new again.
+		times.clear();
+		names.clear();
+		compressor.offer("a", TAGS, 2000L, 2.0, writer);
+		compressor.offer("b", TAGS, 2000L, 5.0, writer);
+		compressor.offer("b", TAGS, 3000L, 5.0, writer);
+		assertEquals(Arrays.asList("b"), names);
+		assertEquals(2, compressor.flush(writer));
+		compressor.commit();
+		assertEquals(3, names.size());
+		assertTrue(names.subList(1, 3).containsAll(Arrays.asList("a", "b")));
+	}
+
+	@Test
+	public void rollbackKeepsHeldDataPointsOfCommittedState() {
+		SeriesCompressor compressor = new SeriesCompressor(CompressionMode.SWINGING_DOOR, 0.1, HOUR, 10);
+		compressor.offer("a", TAGS, 0L, 0.0, writer);
+		compressor.offer("a", TAGS, 1000L, 1.0, writer);
+		compressor.commit();
+		compressor.offer("a", TAGS, 2000L, 2.0, writer);
+		compressor.rollback();
+
+		assertTrue(compressor.hasHeldDataPoints());
+		assertEquals(1, compressor.flush(writer));
+		assertEquals(Arrays.asList(0L, 1000L), times);
+	}
+}
@@ -0,0 +1,40 @@
+/*******************************************************************************
+ * Copyright (c) 2014 uniVocity Software Pty Ltd. All rights reserved.
+ * This file is subject to the terms and conditions defined in file
+ * 'LICENSE.txt', which is part of this source code package.
+ ******************************************************************************/
+package com.univocity.articles.kairosdb.custom;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+
+import org.junit.*;
+import org.junit.rules.*;
+
+public class SeriesDictionaryTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void snapshotRestoresKeysAndNames() throws Exception {
+		// NUL and characters outside the BMP are encoded differently in modified UTF-8.
+		Object[][] keys = { { "zone\u0000a", 1, 2L, null }, { "😀 café", 3, 4L, "temperature" } };
+
+		SeriesDictionary saved = new SeriesDictionary(10);
+		for (Object[] key : keys) {
+			saved.getName(key);
+		}
+		File file = new File(folder.getRoot(), "series.snapshot");
+		saved.saveSnapshot(file);
+
+		SeriesDictionary loaded = new SeriesDictionary(10);
+		assertEquals(2, loaded.loadSnapshot(file));
+		for (Object[] key : keys) {
+			assertEquals(saved.getName(key), loaded.getName(key));
+		}
+		assertEquals(2, loaded.size());
+		assertEquals(0, loaded.getMisses());
+	}
+}
@@ -0,0 +1,189 @@
+/*******************************************************************************
+ * Copyright (c) 2014 uniVocity Software Pty Ltd. All rights reserved.
+ * This file is subject to the terms and conditions defined in file
+ * 'LICENSE.txt', which is part of this source code package.
+ ******************************************************************************/
+package com.univocity.articles.kairosdb.custom;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.junit.*;
+
+/**
+ * Runs a {@link TelnetConnection} against a local socket that stands in for the telnet port of KairosDB.
+ */
+public class TelnetConnectionTest {
+
+	private static final String[] TAG_NAMES = { "kind", "zone" };
+
+	private ServerSocket server;
+	private final BlockingQueue<String> lines = new LinkedBlockingQueue<String>();
+	private final List<Socket> accepted = new CopyOnWriteArrayList<Socket>();
+	private Thread acceptor;
+	private TelnetConnection connection;
+
+	@Before
+	public void setUp() throws IOException {
+		server = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+		acceptor = new Thread("telnet-stand-in") {
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						final Socket socket = server.accept();
+						accepted.add(socket);
+						new Thread("telnet-stand-in-reader") {
+							@Override
+							public void run() {
+								read(socket);
+							}
+						}.start();
+					}
+				} catch (IOException e) {
+					// server closed
+				}
+			}
+		};
+		acceptor.setDaemon(true);
+		acceptor.start();
+
+		connection = newConnection(server.getLocalPort());
+	}
+
+	private TelnetConnection newConnection(int port) {
+		KairosDataStoreConfiguration configuration = new KairosDataStoreConfiguration("kairos", "http://127.0.0.1:8080");
+		configuration.setTelnetPort(port);
+		configuration.setTelnetFlushInterval(100L);
+		configuration.setTelnetBufferSize(1024);
+		return new TelnetConnection("127.0.0.1", configuration);
+	}
+
+	private void read(Socket socket) {
+		try {
+			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+			String line;
+			while ((line = in.readLine()) != null) {
+				lines.add(line);
+			}
+		} catch (IOException e) {
+			// connection closed
+		}
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		try {
+			connection.close();
+		} finally {
+			server.close();
+			for (Socket socket : accepted) {
+				socket.close();
+			}
+		}
+	}
+
+	private String nextLine() throws InterruptedException {
+		String line = lines.poll(5, TimeUnit.SECONDS);
+		assertNotNull("Line not received", line);
+		return line;
+	}
+
+	@Test
+	public void writesPutLines() throws Exception {
+		connection.put("zone1.temperature", 1000L, 42L, TAG_NAMES, new String[] { "temperature", "north" });
+		connection.put("zone1.temperature", 2000L, 21.5, TAG_NAMES, new String[] { "temperature", null });
+		connection.put("zone1.pressure", -5L, Long.MIN_VALUE, TAG_NAMES, new String[] { "pressure", "sul" });
+		connection.flush();
+
+		assertEquals("put zone1.temperature 1000 42 kind=temperature zone=north", nextLine());
+		assertEquals("put zone1.temperature 2000 21.5 kind=temperature", nextLine());
+		assertEquals("put zone1.pressure -5 -9223372036854775808 kind=pressure zone=sul", nextLine());
+		assertEquals(1, accepted.size());
+	}
+
+	@Test
+	public void sanitizesSeparators() throws Exception {
+		connection.put("zone 1\nput bogus 1 1 a=b", 1000L, 1L, TAG_NAMES, new String[] { "a=b c", "line\r\nbreak\ttab" });
+		connection.flush();
+
+		assertEquals("put zone_1_put_bogus_1_1_a_b 1000 1 kind=a_b_c zone=line__break_tab", nextLine());
+		assertNull(lines.poll(200, TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	public void keepsNonAsciiCharacters() throws Exception {
+		connection.put("s\u00e3o.paulo", 1000L, 1L, TAG_NAMES, new String[] { "temperatura", "\u00e1gua" });
+		connection.flush();
+
+		assertEquals("put s\u00e3o.paulo 1000 1 kind=temperatura zone=\u00e1gua", nextLine());
+	}
+
+	@Test
+	public void encodesSupplementaryCharactersAsUtf8() throws Exception {
+		connection.put("zone\ud83d\ude00", 1000L, 1L, TAG_NAMES, new String[] { "lone\ud83d", "\ude00lone" });
+		connection.flush();
+
+		// pairs are one 4-byte sequence, lone surrogates have no UTF-8 encoding.
+		assertEquals("put zone\ud83d\ude00 1000 1 kind=lone? zone=?lone", nextLine());
+	}
+
+	@Test
+	public void flushesPeriodically() throws Exception {
+		connection.put("quiet", 1000L, 1L, TAG_NAMES, new String[] { "a", "b" });
+		// no explicit flush: the background thread sends the line.
+		assertEquals("put quiet 1000 1 kind=a zone=b", nextLine());
+	}
+
+	@Test
+	public void flushesWhenBufferIsFull() throws Exception {
+		for (int i = 0; i < 100; i++) {
+			connection.put("metric", i, (long) i, TAG_NAMES, new String[] { "a", "b" });
+		}
+		// 100 lines don't fit in 1024 bytes, so some were sent before the flush.
+		connection.flush();
+		for (int i = 0; i < 100; i++) {
+			assertEquals("put metric " + i + " " + i + " kind=a zone=b", nextLine());
+		}
+	}
+
+	@Test
+	public void reconnectsAndResendsBuffer() throws Exception {
+		connection.put("before", 1000L, 1L, TAG_NAMES, new String[] { "a", "b" });
+		connection.flush();
+		assertEquals("put before 1000 1 kind=a zone=b", nextLine());
+
+		// the server drops the connection with a reset, so the next write fails.
+		Socket first = accepted.get(0);
+		first.setSoLinger(true, 0);
+		first.close();
+		Thread.sleep(200L);
+
+		connection.put("after", 2000L, 2L, TAG_NAMES, new String[] { "a", "b" });
+		connection.flush();
+		assertEquals("put after 2000 2 kind=a zone=b", nextLine());
+		assertEquals(2, accepted.size());
+	}
+
+	@Test
+	public void failsWhenServerIsUnavailable() throws Exception {
+		// a socket bound but not listening refuses connections, and keeps the port from being reused while the test runs.
+		Socket closedPort = new Socket();
+		closedPort.bind(new InetSocketAddress("127.0.0.1", 0));
+		connection.close();
+		connection = newConnection(closedPort.getLocalPort());
+		try {
+			connection.put("lost", 1000L, 1L, TAG_NAMES, new String[] { "a", "b" });
+			connection.flush();
+			fail("Expected failure to connect");
+		} catch (IllegalStateException e) {
+			assertTrue(e.getMessage().contains("Unable to send data points"));
+		} finally {
+			closedPort.close();
+		}
+	}
+}